@@ -0,0 +1,324 @@
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// the work queue behind a Dispatcher pool: requests wait here in one of
+// three lanes and workers always take from the most urgent lane first, so
+// a LOGIN or XIT doesn't sit behind a pile of RDTs. At most capacity
+// requests wait; admit() decides who loses when a new one comes to a full
+// queue, depending on the Policy:
+//
+//   REJECT   the newcomer is turned away
+//   SHED     the request that has waited longest goes, it is the one most
+//            likely to have been given up on already
+//   PRIORITY the newest request in the least urgent lane goes if that lane
+//            is less urgent than the newcomer's, otherwise the newcomer
+//
+// The loser comes back to the caller, which tells its client to back off.
+// Jobs added through the plain BlockingQueue methods (what the executor
+// itself uses, and transfer connections that already hold a token) are
+// never refused, never evicted and don't count against capacity
+public final class AdmissionQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    public enum Policy {
+        REJECT, SHED, PRIORITY
+    }
+
+    // most urgent first
+    public static final int SESSION = 0, MUTATE = 1, READ = 2;
+    private static final int LANES = 3;
+
+    private final int capacity;
+    private final Policy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // all guarded by lock
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<Runnable>[] lanes = new ArrayDeque[LANES];
+    private int size = 0;
+    // how many of size are refusable Jobs
+    private int requests = 0;
+    private long lastSeq = 0;
+
+    public AdmissionQueue(int capacity, Policy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        for (int i = 0; i < LANES; i++)
+            lanes[i] = new ArrayDeque<>();
+    }
+
+    public static int lane(int action) {
+        switch (action) {
+            case Server.FIRST_CONN:
+            case Server.LOGIN:
+            case Server.XIT:
+                return SESSION;
+            case Server.LST:
+            case Server.RDT:
+                return READ;
+            default:
+                return MUTATE;
+        }
+    }
+
+    // a request waiting in the queue, and what to do if it is refused
+    public static final class Job implements Runnable {
+        final Runnable task;
+        final Runnable onRefused;
+        final int lane;
+        long seq;
+
+        public Job(int action, Runnable task, Runnable onRefused) {
+            this.task = task;
+            this.onRefused = onRefused;
+            this.lane = lane(action);
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        boolean refusable() {
+            return onRefused != null;
+        }
+
+        void refuse() {
+            onRefused.run();
+        }
+    }
+
+    // queues job, or not, by the policy. Returns the job that lost out:
+    // job itself if it was refused, one it evicted, or null if it fit
+    public Job admit(Job job) {
+        if (!job.refusable())
+            throw new IllegalArgumentException("Admitted jobs need a way to refuse them");
+        lock.lock();
+        try {
+            Job loser = null;
+            if (requests >= capacity) {
+                loser = victim(job);
+                if (loser == job)
+                    return job;
+                lanes[loser.lane].removeFirstOccurrence(loser);
+                size--;
+                requests--;
+            }
+            job.seq = ++lastSeq;
+            lanes[job.lane].addLast(job);
+            size++;
+            requests++;
+            notEmpty.signal();
+            return loser;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Job victim(Job newcomer) {
+        switch (policy) {
+            case SHED: {
+                Job oldest = null;
+                for (ArrayDeque<Runnable> lane : lanes) {
+                    for (Runnable r : lane) {
+                        if (r instanceof Job && ((Job) r).refusable()) {
+                            Job j = (Job) r;
+                            if (oldest == null || j.seq < oldest.seq)
+                                oldest = j;
+                            break; // the rest of the lane came later
+                        }
+                    }
+                }
+                return oldest == null ? newcomer : oldest;
+            }
+            case PRIORITY:
+                for (int l = LANES - 1; l > newcomer.lane; l--) {
+                    Iterator<Runnable> newestFirst = lanes[l].descendingIterator();
+                    while (newestFirst.hasNext()) {
+                        Runnable r = newestFirst.next();
+                        if (r instanceof Job && ((Job) r).refusable())
+                            return (Job) r;
+                    }
+                }
+                return newcomer;
+            default:
+                return newcomer;
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /* ---------- BlockingQueue, for the executor ---------- */
+
+    // unconditional: the executor only offers what the dispatcher has
+    // already decided to run
+    @Override
+    public boolean offer(Runnable r) {
+        lock.lock();
+        try {
+            lanes[r instanceof Job ? ((Job) r).lane : MUTATE].addLast(r);
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable r;
+            while ((r = dequeue()) == null)
+                notEmpty.await();
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable r;
+            while ((r = dequeue()) == null) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> lane : lanes) {
+                if (!lane.isEmpty())
+                    return lane.peekFirst();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> lane : lanes) {
+                if (lane.removeFirstOccurrence(o)) {
+                    removed((Runnable) o);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            Runnable r;
+            while (n < maxElements && (r = dequeue()) != null) {
+                c.add(r);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a snapshot, most urgent first
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> all = new ArrayList<>(size);
+            for (ArrayDeque<Runnable> lane : lanes)
+                all.addAll(lane);
+            return all.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // lock held
+    private Runnable dequeue() {
+        for (ArrayDeque<Runnable> lane : lanes) {
+            Runnable r = lane.pollFirst();
+            if (r != null) {
+                removed(r);
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private void removed(Runnable r) {
+        size--;
+        if (r instanceof Job && ((Job) r).refusable())
+            requests--;
+    }
+}
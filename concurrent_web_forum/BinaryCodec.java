@@ -0,0 +1,167 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+// compact frame layout, all fields read and written in place:
+//
+//   magic (1) | flags (1) | opcode (1) | status (1)
+//   [request id (4), if FLAG_REQUEST_ID]
+//   [session (8), if FLAG_SESSION]
+//   username length (1) | username (UTF-8)
+//   payload length (2)  | payload (UTF-8)
+//
+// flags: FLAG_DEFLATED if the payload is raw deflate (its length is then
+// the compressed length), FLAG_INFLATES if the sender can take deflated
+// payloads back, FLAG_REQUEST_ID if the frame carries a request id,
+// FLAG_SESSION if it carries a session token
+public final class BinaryCodec implements WireCodec {
+
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final int HEADER_SIZE = 4,
+            MAX_USERNAME = 0xFF,
+            MAX_PAYLOAD = 0xFFFF;
+
+    public static final byte FLAG_DEFLATED = 0x01,
+            FLAG_INFLATES = 0x02,
+            FLAG_REQUEST_ID = 0x04,
+            FLAG_SESSION = 0x08;
+
+    private static final byte ADVERTISED = Compression.ENABLED ? FLAG_INFLATES : 0;
+
+    // decode scratch space, so reading a field only allocates the String itself
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[MAX_PAYLOAD]);
+    // the UTF-8 of a payload on its way into the deflater
+    private static final ThreadLocal<ByteBuffer> plain = ThreadLocal
+            .withInitial(() -> ByteBuffer.allocate(MAX_PAYLOAD * 3));
+
+    private BinaryCodec() {
+    }
+
+    @Override
+    public Frame decode(ByteBuffer packet, SocketAddress sender) {
+        if (packet.remaining() < HEADER_SIZE + 3 || packet.get() != MAGIC)
+            throw new IllegalArgumentException("Not a binary frame");
+
+        byte flags = packet.get();
+        int action = packet.get() & 0xFF;
+        int status = packet.get() & 0xFF;
+        int requestId = (flags & FLAG_REQUEST_ID) != 0 ? packet.getInt() : 0;
+        long session = (flags & FLAG_SESSION) != 0 ? packet.getLong() : 0;
+        String username = getString(packet, packet.get() & 0xFF);
+        int length = packet.getShort() & 0xFFFF;
+        String content = (flags & FLAG_DEFLATED) != 0 ? getDeflated(packet, length) : getString(packet, length);
+        return new Frame(action, status, username, content, sender, this, (flags & FLAG_INFLATES) != 0,
+                requestId, session);
+    }
+
+    @Override
+    public void encode(int action, int status, String username, String content, ByteBuffer out) {
+        encode(action, status, 0, username, content, false, out);
+    }
+
+    @Override
+    public void encode(int action, int status, int requestId, String username, String content,
+            boolean deflate, ByteBuffer out) {
+        encode(action, status, requestId, 0, username, content, deflate, out);
+    }
+
+    @Override
+    public void encode(int action, int status, int requestId, long session, String username, String content,
+            boolean deflate, ByteBuffer out) {
+        int flagsAt = out.position() + 1;
+        byte flags = ADVERTISED;
+        if (requestId != 0)
+            flags |= FLAG_REQUEST_ID;
+        if (session != 0)
+            flags |= FLAG_SESSION;
+        out.put(MAGIC).put(flags).put((byte) action).put((byte) status);
+        if (requestId != 0)
+            out.putInt(requestId);
+        if (session != 0)
+            out.putLong(session);
+
+        // lengths aren't known until the chars are encoded, so reserve and backfill
+        int lengthAt = out.position();
+        out.put((byte) 0);
+        int length = putUtf8(out, username);
+        if (length > MAX_USERNAME)
+            throw new IllegalArgumentException("Username too long");
+        out.put(lengthAt, (byte) length);
+
+        lengthAt = out.position();
+        out.putShort((short) 0);
+        if (deflate && Compression.ENABLED && content.length() >= Compression.MIN_SIZE) {
+            ByteBuffer utf8 = plain.get().clear();
+            putUtf8(utf8, content);
+            if (utf8.position() > MAX_PAYLOAD)
+                throw new IllegalArgumentException("Payload too long");
+            utf8.flip();
+            if (Compression.deflate(utf8, out)) {
+                out.put(flagsAt, (byte) (flags | FLAG_DEFLATED));
+            } else {
+                out.put(utf8.rewind());
+            }
+            length = out.position() - lengthAt - 2;
+        } else {
+            length = putUtf8(out, content);
+        }
+        if (length > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Payload too long");
+        out.putShort(lengthAt, (short) length);
+    }
+
+    private static String getDeflated(ByteBuffer packet, int length) {
+        if (length > packet.remaining())
+            throw new IllegalArgumentException("Truncated binary frame");
+        ByteBuffer deflated = packet.slice(packet.position(), length);
+        packet.position(packet.position() + length);
+        ByteBuffer inflated = ByteBuffer.wrap(scratch.get());
+        try {
+            Compression.inflate(deflated, inflated);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt deflated payload", e);
+        }
+        return new String(inflated.array(), 0, inflated.position(), StandardCharsets.UTF_8);
+    }
+
+    private static String getString(ByteBuffer packet, int length) {
+        if (length > packet.remaining())
+            throw new IllegalArgumentException("Truncated binary frame");
+        byte[] bytes = scratch.get();
+        packet.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // UTF-8 encode without an intermediate byte[]; returns bytes written
+    static int putUtf8(ByteBuffer out, String s) {
+        int start = out.position();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out.put((byte) (0xF0 | cp >> 18));
+                    out.put((byte) (0x80 | cp >> 12 & 0x3F));
+                    out.put((byte) (0x80 | cp >> 6 & 0x3F));
+                    out.put((byte) (0x80 | cp & 0x3F));
+                } else {
+                    out.put((byte) '?'); // unpaired surrogate, same as String.getBytes
+                }
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return out.position() - start;
+    }
+}
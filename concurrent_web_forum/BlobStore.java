@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+// attachment bytes, stored once per distinct content under
+// blobs/<first two hex digits>/<SHA-256> no matter how many threads post
+// them. Uploads land in blobs/incoming and are hashed into place; each
+// attachment post holds one reference and the blob goes when the last
+// reference does. Counts aren't persisted: they are rebuilt from the
+// recovered threads at startup, which also sweeps up blobs nobody points at.
+//
+// With packing on, a new blob that compresses is also written out as a
+// PackedBlob (<digest>.z) in the background, for downloads to clients that
+// can inflate
+public final class BlobStore {
+
+    private static final String INCOMING = "incoming",
+            PACKED = ".z";
+
+    private final Path root;
+    private final Path incoming;
+    // chunk size packed copies are cut to, 0 to not pack at all
+    private final int packChunkSize;
+    // digest -> attachment posts referring to it; guarded by this
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final BufferPool hashBuffers = new BufferPool(1 << 18, 4);
+    private final ExecutorService packer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "blob-packer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public BlobStore(Path root, int packChunkSize) throws IOException {
+        this.root = root;
+        this.incoming = root.resolve(INCOMING);
+        this.packChunkSize = packChunkSize;
+        Files.createDirectories(incoming);
+    }
+
+    // where an upload of thread/file is written before it is ingested; one
+    // upload per pair is open at a time, so the name is unique
+    public Path staging(String thread, String file) {
+        return incoming.resolve(thread + '-' + file);
+    }
+
+    public Path path(String digest) {
+        return root.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    // the packed copy, null if there isn't one (yet)
+    public Path packedPath(String digest) {
+        Path packed = path(digest).resolveSibling(digest + PACKED);
+        return Files.exists(packed) ? packed : null;
+    }
+
+    // hashes a finished upload and moves it into place, or drops it if the
+    // same content is already stored; returns the digest with one reference
+    // taken for the caller, who hands it to the attachment post or releases it
+    public String ingest(Path staged) throws IOException {
+        String digest = hash(staged);
+        Path target = path(digest);
+        boolean added;
+        synchronized (this) {
+            added = !Files.exists(target);
+            if (added) {
+                Files.createDirectories(target.getParent());
+                Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.delete(staged);
+            }
+            refs.merge(digest, 1, Integer::sum);
+        }
+        if (added && packChunkSize > 0)
+            packer.execute(() -> pack(digest));
+        return digest;
+    }
+
+    public synchronized void retain(String digest) {
+        refs.merge(digest, 1, Integer::sum);
+    }
+
+    // deletes the blob with its last reference
+    public synchronized void release(String digest) throws IOException {
+        Integer left = refs.computeIfPresent(digest, (d, n) -> n == 1 ? null : n - 1);
+        if (left == null) {
+            Path blob = path(digest);
+            Files.deleteIfExists(blob);
+            Files.deleteIfExists(blob.resolveSibling(digest + PACKED));
+        }
+    }
+
+    private void pack(String digest) {
+        Path blob = path(digest);
+        try {
+            try (FileChannel in = FileChannel.open(blob, StandardOpenOption.READ)) {
+                if (!Compression.worthCompressing(in))
+                    return;
+            }
+            Path packed = blob.resolveSibling(digest + PACKED);
+            PackedBlob.write(blob, packed, packChunkSize);
+            synchronized (this) {
+                if (!refs.containsKey(digest))
+                    Files.deleteIfExists(packed); // released while we were packing
+            }
+        } catch (NoSuchFileException e) {
+            // released before we got to it
+        } catch (IOException e) {
+            System.err.println("Could not pack blob " + digest + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized int blobs() {
+        return refs.size();
+    }
+
+    // startup only: the recovered attachments' digests, one per post; any
+    // other blob (an upload that never made it into the log), packed copies
+    // of those, half-written packed copies and anything left in incoming
+    // are deleted
+    synchronized int recount(Stream<String> digests) throws IOException {
+        refs.clear();
+        digests.forEach(this::retain);
+        int swept = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(root)) {
+            for (Path shard : shards) {
+                boolean staging = shard.equals(incoming);
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        String digest = name.endsWith(PACKED) ? name.substring(0, name.length() - PACKED.length())
+                                : name;
+                        if (staging || !refs.containsKey(digest)) {
+                            Files.delete(file);
+                            swept++;
+                        }
+                    }
+                }
+            }
+        }
+        return swept;
+    }
+
+    private String hash(Path file) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK ships it
+        }
+        ByteBuffer buf = hashBuffers.acquire();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                sha.update(buf);
+                buf.clear();
+            }
+        } finally {
+            hashBuffers.release(buf);
+        }
+        return HexFormat.of().formatHex(sha.digest());
+    }
+}
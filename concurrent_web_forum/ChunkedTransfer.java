@@ -0,0 +1,214 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+
+// wire format of the chunked UPD/DWN mode. After its session token a
+// connection carries a run of chunks, each
+//
+//   chunk index (4) | length (4) | CRC32C of the bytes (4) | bytes
+//
+// and a chunk is only counted once its checksum matches, so a transfer cut
+// short (or damaged) resumes from the first chunk that didn't make it.
+// DEFLATED in the length marks bytes that are raw deflate, sent only if
+// they came out smaller; the length is then the compressed one and the
+// checksum is still over the inflated bytes.
+// Several connections can work on one transfer, each taking every n-th
+// chunk. A DWN connection first says which chunks it wants:
+//
+//   first chunk (4) | stride (4)
+public final class ChunkedTransfer {
+
+    public static final int HEADER = 12,
+            REQUEST = 8;
+
+    // readChunk results besides a chunk index
+    public static final int END = -1,
+            CORRUPT = -2;
+
+    public static final int DEFLATED = 0x80000000;
+
+    private ChunkedTransfer() {
+    }
+
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    // file bytes in chunks first, first + stride, ...
+    public static long bytes(long size, int chunkSize, int first, int stride) {
+        long total = 0;
+        for (int i = first; i < chunkCount(size, chunkSize); i += stride)
+            total += Math.min(chunkSize, size - (long) i * chunkSize);
+        return total;
+    }
+
+    // header, then the bytes straight from the file; the checksum is taken
+    // over a mapping of the same range so the data never enters the heap
+    public static void sendChunk(FileChannel file, long size, int chunkSize, int index,
+            SocketChannel out, ByteBuffer header) throws IOException {
+        long position = (long) index * chunkSize;
+        int length = (int) Math.min(chunkSize, size - position);
+        MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, position, length);
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+
+        header.clear();
+        header.putInt(index).putInt(length).putInt((int) crc.getValue()).flip();
+        write(out, header);
+        for (long sent = 0; sent < length;)
+            sent += file.transferTo(position + sent, length - sent, out);
+    }
+
+    // chunks first, first + stride, ... of the file
+    public static int sendChunks(FileChannel file, long size, int chunkSize, int first, int stride,
+            SocketChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        int sent = 0;
+        for (int i = first; i < chunkCount(size, chunkSize); i += stride) {
+            sendChunk(file, size, chunkSize, i, out, header);
+            sent++;
+        }
+        return sent;
+    }
+
+    // the same, deflating each chunk on the way at BEST_SPEED; raw and packed
+    // are scratch buffers of at least chunkSize
+    public static int sendDeflated(FileChannel file, long size, int chunkSize, int first, int stride,
+            SocketChannel out, ByteBuffer raw, ByteBuffer packed) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        int sent = 0;
+        for (int i = first; i < chunkCount(size, chunkSize); i += stride) {
+            long position = (long) i * chunkSize;
+            raw.clear().limit((int) Math.min(chunkSize, size - position));
+            while (raw.hasRemaining()) {
+                if (file.read(raw, position + raw.position()) < 0)
+                    throw new EOFException("File shrank while it was being sent");
+            }
+            raw.flip();
+            CRC32C crc = new CRC32C();
+            crc.update(raw);
+            raw.flip();
+
+            packed.clear();
+            boolean deflated = Compression.deflateFast(raw, packed);
+            ByteBuffer body = deflated ? packed.flip() : raw.rewind();
+            header.clear();
+            header.putInt(i).putInt(body.remaining() | (deflated ? DEFLATED : 0)).putInt((int) crc.getValue())
+                    .flip();
+            write(out, header);
+            write(out, body);
+            sent++;
+        }
+        return sent;
+    }
+
+    // a chunk whose bytes are stored ready to go at position in file, as
+    // PackedBlob keeps them
+    public static void sendStored(FileChannel file, long position, int length, boolean deflated, int index,
+            int crc, SocketChannel out, ByteBuffer header) throws IOException {
+        header.clear();
+        header.putInt(index).putInt(length | (deflated ? DEFLATED : 0)).putInt(crc).flip();
+        write(out, header);
+        for (long sent = 0; sent < length;)
+            sent += file.transferTo(position + sent, length - sent, out);
+    }
+
+    // the next chunk into buf, inflated into spare if it came deflated (both
+    // at least chunkSize big), and written into the part file if its
+    // checksum matches; returns its index, END once the peer has shut down
+    // its side or CORRUPT
+    public static int readChunk(SocketChannel in, PartialFile part, ByteBuffer header, ByteBuffer buf,
+            ByteBuffer spare) throws IOException {
+        header.clear();
+        if (!readFully(in, header, true))
+            return END;
+        header.flip();
+        int index = header.getInt();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        boolean deflated = (length & DEFLATED) != 0;
+        length &= ~DEFLATED;
+        long position = (long) index * part.chunkSize();
+        int expected = index < 0 || index >= part.chunks() ? -1
+                : (int) Math.min(part.chunkSize(), part.size() - position);
+        if (expected < 0 || (deflated ? length >= expected : length != expected))
+            throw new IOException("Bad chunk header " + index + "/" + length);
+
+        buf.clear().limit(length);
+        readFully(in, buf, false);
+        buf.flip();
+        ByteBuffer data = buf;
+        if (deflated) {
+            spare.clear().limit(expected);
+            try {
+                Compression.inflate(buf, spare);
+            } catch (DataFormatException e) {
+                return CORRUPT;
+            }
+            if (spare.hasRemaining())
+                return CORRUPT;
+            data = spare.flip();
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum)
+            return CORRUPT;
+
+        data.flip();
+        while (data.hasRemaining())
+            position += part.channel().write(data, position);
+        part.mark(index);
+        return index;
+    }
+
+    // every chunk the connection carries; returns how many were good
+    public static int receiveChunks(SocketChannel in, PartialFile part, ByteBuffer buf, ByteBuffer spare)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        int good = 0;
+        for (int index; (index = readChunk(in, part, header, buf, spare)) != END;) {
+            if (index >= 0)
+                good++;
+        }
+        return good;
+    }
+
+    // DWN connections open with the chunks they want
+    public static void writeRequest(SocketChannel out, int first, int stride) throws IOException {
+        write(out, ByteBuffer.allocate(REQUEST).putInt(first).putInt(stride).flip());
+    }
+
+    // {first, stride}
+    public static int[] readRequest(SocketChannel in) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(REQUEST);
+        readFully(in, request, false);
+        request.flip();
+        int first = request.getInt();
+        int stride = request.getInt();
+        if (first < 0 || stride < 1)
+            throw new IOException("Bad chunk request " + first + "/" + stride);
+        return new int[] { first, stride };
+    }
+
+    private static void write(SocketChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+    // false on a clean end of stream before the first byte, if allowed
+    private static boolean readFully(SocketChannel in, ByteBuffer buf, boolean endAllowed) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                if (endAllowed && buf.position() == 0)
+                    return false;
+                throw new EOFException("Connection closed mid-chunk");
+            }
+        }
+        return true;
+    }
+}
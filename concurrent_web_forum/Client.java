@@ -1,19 +1,50 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Client {
-    private static DatagramPacket packet;
     private static DatagramSocket socket;
+    // start with binary frames, drop to the text format only for a server
+    // that answers text and ignores binary (see textOnly)
+    private static WireCodec codec = BinaryCodec.INSTANCE;
+    private static boolean negotiated = false;
     private static int serverPort;
     private static InetAddress hostAddress;
     private static Scanner scanner = new Scanner(System.in);
+    // pieces of a fragmented RDT reply
+    private static final Fragments.Assembler fragments = new Fragments.Assembler();
+    // ids start at a random point so a restarted client on a reused port
+    // doesn't collide with its predecessor's cached replies
+    private static int lastRequestId = new Random().nextInt();
+    // the token LOGIN handed out, sent with every request after it
+    private static long session = 0;
+    // parallel connections per chunked UPD/DWN
+    private static final int STREAMS = Integer.getInteger("forum.streams", 4);
 
     // define constants for easier correlation
     public static final int MAX_SIZE = 1024,
+            // largest payload a single UDP datagram can carry
+            MAX_DATAGRAM = 65507,
             MAX_FILE_SIZE = 102400,
             TIMEOUT_MS = 600,
             MAX_RETRIES = 16,
+            // unanswered binary tries before checking for a text-only server
+            PROBE_AFTER = 3,
+            // how long to wait for the server to confirm a finished upload
+            UPLOAD_CONFIRM_MS = 10_000,
+            RECEIVE_BUFFER = 1 << 22,
 
             FIRST_CONN = 0,
             LOGIN = 1,
@@ -32,7 +63,13 @@ public class Client {
             SUCCESS = 1,
             // stands for from client
             FC = 2,
-            UNAUTHENTICATED = 3;
+            UNAUTHENTICATED = 3,
+            // one piece of a reply too big for a datagram, see Fragments
+            FRAGMENT = 4,
+            // the server had no room for the request; back off and send it again
+            BUSY = 5,
+            // over the sender's rate limit; same, but it is the sender's doing
+            THROTTLED = 6;
 
     public static void main(String[] args) throws Exception {
         if (args.length != 1) {
@@ -45,6 +82,8 @@ public class Client {
 
         socket = new DatagramSocket();
         socket.setSoTimeout(TIMEOUT_MS);
+        // room for a burst of RDT fragments
+        socket.setReceiveBufferSize(RECEIVE_BUFFER);
 
         String directory = new File("").getAbsolutePath();
         String username = null;
@@ -59,14 +98,13 @@ public class Client {
                     System.err.println("Enter an actual username!!!");
                     continue;
                 }
-                sendAndReceive(Event.createEvent(FIRST_CONN, FC, username, "Log in request"));
-                String reply = Event.getPacketData(packet);
+                Frame reply = sendAndReceive(FIRST_CONN, username, "Log in request");
 
-                if (Event.getStatus(reply) == SUCCESS) { // instead of SUCCESS
-                    System.out.print(Event.getContent(reply));
+                if (reply.status() == SUCCESS) { // instead of SUCCESS
+                    System.out.print(reply.content());
                     break;
                 } else {
-                    System.out.println(Event.getContent(reply));
+                    System.out.println(reply.content());
                 }
             }
 
@@ -77,13 +115,14 @@ public class Client {
                 System.err.println("Please enter an actual password!");
                 continue;
             }
-            String reply = sendAndReceive(Event.createEvent(LOGIN, FC, username, password));
+            Frame reply = sendAndReceive(LOGIN, username, password);
 
-            if (Event.getStatus(reply) == SUCCESS) {
+            if (reply.status() == SUCCESS) {
                 System.out.println("Welcome to WebForum!!");
+                session = reply.session();
                 authorized = true;
             } else {
-                System.out.println(Event.getContent(reply));
+                System.out.println(reply.content());
             }
         }
 
@@ -104,7 +143,7 @@ public class Client {
                     ? Arrays.copyOfRange(command_str, 1, command_str.length)
                     : null;
             String content_str = content != null ? String.join(" ", content) : null;
-            String reply;
+            Frame reply;
 
             switch (command) {
                 case CRT:
@@ -113,7 +152,7 @@ public class Client {
                         break;
                     }
                     reply = execCommand(command, content_str, username);
-                    System.out.println(Event.getContent(reply));
+                    System.out.println(reply.content());
                     break;
 
                 case MSG:
@@ -122,7 +161,7 @@ public class Client {
                         break;
                     }
                     reply = execCommand(command, content_str, username);
-                    System.out.println(Event.getContent(reply));
+                    System.out.println(reply.content());
                     break;
 
                 case DLT:
@@ -131,7 +170,7 @@ public class Client {
                         break;
                     }
                     reply = execCommand(command, content_str, username);
-                    System.out.println(Event.getContent(reply));
+                    System.out.println(reply.content());
                     break;
 
                 case EDT:
@@ -146,7 +185,7 @@ public class Client {
                         break;
                     }
                     reply = execCommand(command, content_str, username);
-                    System.out.println(Event.getContent(reply));
+                    System.out.println(reply.content());
                     break;
 
                 case LST:
@@ -155,10 +194,10 @@ public class Client {
                         break;
                     }
                     reply = execCommand(command, content_str, username);
-                    if (Event.getStatus(reply) == FAILURE) {
-                        System.out.println(Event.getContent(reply));
+                    if (reply.status() == FAILURE) {
+                        System.out.println(reply.content());
                     } else {
-                        String[] threadNames = Event.getContent(reply).split(" ");
+                        String[] threadNames = reply.content().split(" ");
                         System.out.println("Currently active threads:");
                         for (String threadTitle : threadNames) {
                             System.out.println(threadTitle);
@@ -168,15 +207,15 @@ public class Client {
 
                 case RDT:
                     if (content == null) {
-                        System.out.println("Usage: RDT <threadtitle>");
+                        System.out.println("Usage: RDT <threadtitle> [offset [limit]]");
                         break;
                     }
                     String threadTitle = content[0];
                     reply = execCommand(command, content_str, username);
-                    if (Event.getStatus(reply) == FAILURE) {
-                        System.out.println(Event.getContent(reply));
+                    if (reply.status() == FAILURE) {
+                        System.out.println(reply.content());
                     } else {
-                        String[] threadLines = Event.getContent(reply).split(";");
+                        String[] threadLines = reply.content().split(";");
                         for (String line : threadLines) {
                             System.out.println(line);
                         }
@@ -204,21 +243,19 @@ public class Client {
                         System.out.println("Cannot find file in source directory path.");
                         break;
                     }
-                    reply = execCommand(command, content_str, username);
-                    if (Event.getStatus(reply) == FAILURE) {
-                        System.out.println(Event.getContent(reply));
+                    // the size asks for a chunked, resumable upload
+                    String uploadRequest = content_str + " " + Files.size(Path.of(uploadFilePath));
+                    reply = execCommand(command, uploadRequest, username);
+                    if (reply.status() == FAILURE) {
+                        System.out.println(reply.content());
                         break;
                     }
 
-                    try (Socket uploadTcpSocket = new Socket(hostAddress, serverPort)) {
-                        handleFileUpload(uploadTcpSocket, uploadFilePath);
-                    }
-                    DatagramPacket ack = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
-                    socket.setSoTimeout(TIMEOUT_MS);
-                    try {
-                        socket.receive(ack);
-                    } catch (SocketTimeoutException e) {
-                        System.out.println("Warning: no confirmation – assuming success.");
+                    Frame uploaded = uploadChunked(reply, Path.of(uploadFilePath), uploadRequest, username);
+                    if (uploaded == null || uploaded.status() != SUCCESS) {
+                        System.out.println(uploaded == null ? "Upload of " + uploadFileName + " did not complete"
+                                : uploaded.content());
+                        break;
                     }
                     System.out.println(uploadFileName + " successfully uploaded to " + threadTitle + " thread");
                     break;
@@ -245,25 +282,19 @@ public class Client {
                         break;
                     }
 
-                    reply = execCommand(command, content_str, username);
-                    if (Event.getStatus(reply) == FAILURE) {
-                        System.out.println(Event.getContent(reply));
+                    // the offset asks for a chunked, resumable download
+                    reply = execCommand(command, content_str + " 0", username);
+                    if (reply.status() == FAILURE) {
+                        System.out.println(reply.content());
                         break;
                     }
 
-                    String downloadFilePath = directory + '/' + downloadFileName;
-                    try (Socket downloadTcpSocket = new Socket(hostAddress, serverPort)) {
-                        handleFileDownload(downloadTcpSocket, downloadFilePath);
-                    }
-
-                    socket.setSoTimeout(TIMEOUT_MS);
-                    DatagramPacket udpAck = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
-                    try {
-                        socket.receive(udpAck);
-                    } catch (SocketTimeoutException e) {
-                        System.out.println("Warning: no confirmation from server, assuming success.");
+                    Path downloadPath = Path.of(directory, downloadFileName);
+                    String failure = downloadChunked(reply, downloadPath, content_str, username);
+                    if (failure != null) {
+                        System.out.println(failure);
+                        break;
                     }
-
                     System.out.println(downloadFileName + " successfully downloaded to working directory.");
                     break;
 
@@ -273,11 +304,11 @@ public class Client {
                         break;
                     }
                     reply = execCommand(command, content_str, username);
-                    System.out.println(Event.getContent(reply));
+                    System.out.println(reply.content());
                     break;
 
                 case XIT:
-                    sendAndReceive(Event.createEvent(XIT, FC, username, "exit"));
+                    sendAndReceive(XIT, username, "exit");
                     System.out.println("Goodbye");
                     System.exit(0);
                     break;
@@ -289,81 +320,280 @@ public class Client {
         }
     }
 
-    private static String sendAndReceive(String outgoing) throws Exception {
-        byte[] outBuf = outgoing.getBytes();
-        DatagramPacket request = new DatagramPacket(outBuf, outBuf.length, hostAddress, serverPort);
-        DatagramPacket response = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
-
-        int actionCode = Event.getAction(outgoing);
-        int max = actionCode == DWN ? 1 : MAX_RETRIES;
-        for (int attempt = 0; attempt < max; attempt++) {
-            socket.send(request);
+    // every retry carries the same request id, so the server answers it
+    // from its reply cache instead of running the command again
+    private static Frame sendAndReceive(int actionCode, String username, String content) throws Exception {
+        DatagramPacket response = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        int requestId = nextRequestId();
 
+        attempts: for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
             try {
-                socket.receive(response);
-                String reply = Event.getPacketData(response);
+                socket.send(datagram(codec, actionCode, requestId, username, content));
+            } catch (IllegalArgumentException e) {
+                // answered like a refusal, so every command prints it and carries on
+                return new Frame(actionCode, FAILURE, username, e.getMessage(), null, codec);
+            }
+            // a lost fragment means asking for the whole reply again
+            fragments.reset();
+            // each retry waits a little longer for its answer
+            socket.setSoTimeout(TIMEOUT_MS << Math.min(attempt, 3));
 
-                if (Event.getStatus(reply) == UNAUTHENTICATED) {
-                    System.err.println("Server says you’re not logged in");
-                    break;
-                }
+            try {
+                while (true) {
+                    socket.receive(response);
+                    ByteBuffer data = ByteBuffer.wrap(response.getData(), 0, response.getLength());
+                    Frame reply = WireCodec.forPacket(data).decode(data, response.getSocketAddress());
+                    negotiated = true;
+
+                    if (reply.status() == UNAUTHENTICATED) {
+                        System.err.println("Server says you’re not logged in");
+                        break attempts;
+                    }
+                    if (reply.requestId() != 0 && reply.requestId() != requestId)
+                        continue; // answer to an earlier request, ours may still come
+                    if (reply.action() != actionCode)
+                        break; // stale reply, send again
+                    if (reply.status() == BUSY || reply.status() == THROTTLED) {
+                        // sending again straight away is what kept it busy
+                        long pause = (long) TIMEOUT_MS << Math.min(attempt, 3);
+                        System.err.println(reply.content() + " – retrying in " + pause + " ms");
+                        Thread.sleep(pause);
+                        continue attempts;
+                    }
+                    if (reply.status() != FRAGMENT)
+                        return reply;
 
-                if (Event.getAction(reply) == actionCode) {
-                    packet = response;
-                    return reply;
+                    String whole = fragments.add(reply.content());
+                    if (whole != null)
+                        return new Frame(actionCode, SUCCESS, reply.username(), whole,
+                                reply.sender(), reply.codec());
                 }
             } catch (SocketTimeoutException e) {
+                // a lost datagram is no reason to give up on binary frames,
+                // which carry the request id and session token
+                if (!negotiated && codec == BinaryCodec.INSTANCE && actionCode == FIRST_CONN
+                        && attempt + 1 >= PROBE_AFTER && textOnly(username, content)) {
+                    codec = TextCodec.INSTANCE;
+                    negotiated = true;
+                    System.err.println("Server only speaks the text format, switching to it");
+                }
                 System.err.println("Timed out – retrying " + (attempt + 1) + "/" + MAX_RETRIES);
                 continue;
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring malformed reply: " + e.getMessage());
             }
         }
 
         throw new IOException("No valid response after " + MAX_RETRIES + " attempts");
     }
 
-    private static void handleFileUpload(Socket tcpSocket, String filePath) throws Exception {
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(filePath));
-                BufferedOutputStream bos = new BufferedOutputStream(tcpSocket.getOutputStream())) {
+    // servers that only know the text format drop binary frames without a
+    // word, which looks just like loss. So ask the same FIRST_CONN (it
+    // changes nothing) in text and, if that is answered, straight away in
+    // binary again: only a server that answers the one and not the other
+    // is taken to be text-only. A binary reply arriving meanwhile settles
+    // it the other way
+    private static boolean textOnly(String username, String content) throws IOException {
+        WireCodec answer = probe(TextCodec.INSTANCE, username, content);
+        if (answer == BinaryCodec.INSTANCE)
+            negotiated = true;
+        if (answer != TextCodec.INSTANCE)
+            return false; // nobody there right now, or binary works after all
+        answer = probe(BinaryCodec.INSTANCE, username, content);
+        if (answer == BinaryCodec.INSTANCE)
+            negotiated = true;
+        return answer == null;
+    }
 
-            byte[] buf = new byte[MAX_FILE_SIZE];
-            int n;
-            while ((n = bis.read(buf)) != -1) {
-                bos.write(buf, 0, n);
+    // sends FIRST_CONN in format and returns the format of the first reply
+    // that comes back, null if none does
+    private static WireCodec probe(WireCodec format, String username, String content) throws IOException {
+        try {
+            socket.send(datagram(format, FIRST_CONN, 0, username, content));
+        } catch (IllegalArgumentException e) {
+            return null; // too long in this format, so it can't tell
+        }
+        DatagramPacket response = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        socket.setSoTimeout(TIMEOUT_MS);
+        try {
+            socket.receive(response);
+            return WireCodec.forPacket(ByteBuffer.wrap(response.getData(), 0, response.getLength()));
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    // the server reads at most MAX_SIZE bytes of a datagram and would cut a
+    // longer one short, so a request that doesn't fit is never sent
+    private static DatagramPacket datagram(WireCodec format, int action, int requestId, String username,
+            String content) {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_SIZE);
+        try {
+            format.encode(action, FC, requestId, session, username, content, false, buf);
+        } catch (BufferOverflowException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Request too long, at most " + MAX_SIZE + " bytes", e);
+        }
+        return new DatagramPacket(buf.array(), buf.position(), hostAddress, serverPort);
+    }
+
+    // never 0, that means "no id"
+    private static int nextRequestId() {
+        if (++lastRequestId == 0)
+            lastRequestId = 1;
+        return lastRequestId;
+    }
+
+    // connect for UPD/DWN and present the session token from the "ready" reply
+    private static SocketChannel openTransfer(Frame ready) throws IOException {
+        String[] parts = ready.content().split(" ");
+        if (parts.length < 2)
+            throw new IOException("Server did not hand out a transfer token");
+        SocketChannel conn = SocketChannel.open(new InetSocketAddress(hostAddress, serverPort));
+        ByteBuffer token = ByteBuffer.wrap(parts[1].getBytes(StandardCharsets.US_ASCII));
+        while (token.hasRemaining())
+            conn.write(token);
+        return conn;
+    }
+
+    /* ---------- chunked transfers ---------- */
+
+    // sends every chunk from the resume offset in the "ready <token> <chunk
+    // size> <offset>" reply, spread over parallel connections, then waits
+    // for the server to confirm. A dropped link or a missing confirmation
+    // asks for the upload again, and the server answers with where to
+    // carry on from
+    private static Frame uploadChunked(Frame ready, Path file, String request, String username) throws Exception {
+        long size = Files.size(file);
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            String[] parts = ready.content().split(" ");
+            int chunkSize = Integer.parseInt(parts[2]);
+            long offset = Long.parseLong(parts[3]);
+            if (offset > 0)
+                System.out.println("Resuming upload at byte " + offset + " of " + size);
+
+            int first = (int) (offset / chunkSize);
+            int streams = Math.max(1, Math.min(STREAMS, ChunkedTransfer.chunkCount(size, chunkSize) - first));
+            Frame session = ready;
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                // deflate on the way if the server can inflate and the file shrinks
+                boolean deflate = Compression.ENABLED && ready.inflates() && Compression.worthCompressing(in);
+                parallel(streams, k -> {
+                    try (SocketChannel conn = openTransfer(session)) {
+                        if (deflate)
+                            ChunkedTransfer.sendDeflated(in, size, chunkSize, first + k, streams, conn,
+                                    ByteBuffer.allocateDirect(chunkSize), ByteBuffer.allocateDirect(chunkSize));
+                        else
+                            ChunkedTransfer.sendChunks(in, size, chunkSize, first + k, streams, conn);
+                        conn.shutdownOutput();
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Upload interrupted: " + e.getMessage());
+            }
+
+            Frame done = awaitReply(UPD, UPLOAD_CONFIRM_MS);
+            if (done != null)
+                return done;
+            ready = sendAndReceive(UPD, username, request);
+            if (ready.status() != SUCCESS)
+                return ready;
+        }
+        return null;
+    }
+
+    // fetches every chunk still missing into a ".part" file next to the
+    // target, over parallel connections; on a dropped link it asks again
+    // from the first missing chunk. Returns null once the file is in place
+    private static String downloadChunked(Frame ready, Path target, String request, String username)
+            throws Exception {
+        String[] parts = ready.content().split(" ");
+        long size = Long.parseLong(parts[2]);
+        int chunkSize = Integer.parseInt(parts[3]);
+        PartialFile part = PartialFile.create(target.resolveSibling(target.getFileName() + ".part"), size,
+                chunkSize);
+        for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+            int first = part.firstMissing();
+            int streams = Math.max(1, Math.min(STREAMS, part.chunks() - first));
+            Frame session = ready;
+            try {
+                parallel(streams, k -> {
+                    try (SocketChannel conn = openTransfer(session)) {
+                        ChunkedTransfer.writeRequest(conn, first + k, streams);
+                        ChunkedTransfer.receiveChunks(conn, part, ByteBuffer.allocateDirect(chunkSize),
+                                ByteBuffer.allocateDirect(chunkSize));
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Download interrupted: " + e.getMessage());
+            }
+
+            if (part.firstMissing() == part.chunks() && part.claimCompletion()) {
+                part.commit(target);
+                return null;
             }
-            bos.flush();
-            tcpSocket.shutdownOutput();
+            System.out.println("Resuming download at byte " + part.resumeOffset() + " of " + size);
+            ready = sendAndReceive(DWN, username, request + " " + part.resumeOffset());
+            if (ready.status() != SUCCESS) {
+                part.abort();
+                return ready.content();
+            }
+        }
+        part.abort();
+        return "Download did not complete";
+    }
+
+    private interface Stream {
+        void run(int index) throws IOException;
+    }
 
-            tcpSocket.getInputStream().readNBytes(1024);
+    // runs streams 0..n-1 at once, rethrowing the first failure
+    private static void parallel(int n, Stream stream) throws IOException {
+        List<Future<?>> running = new ArrayList<>();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int k = 0; k < n; k++) {
+                final int index = k;
+                running.add(pool.submit(() -> {
+                    stream.run(index);
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
         }
     }
 
-    private static void handleFileDownload(Socket tcpSocket, String downloadPath) throws Exception {
-        InputStream inputStream = tcpSocket.getInputStream();
-        BufferedInputStream bis = new BufferedInputStream(inputStream);
-        FileOutputStream fos = new FileOutputStream(downloadPath);
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
-
-        byte[] DWNBytes = new byte[MAX_FILE_SIZE];
-        int DWNLength;
-        while ((DWNLength = bis.read(DWNBytes)) != -1)
-            bos.write(DWNBytes, 0, DWNLength);
-        bos.flush();
-
-        OutputStream out = tcpSocket.getOutputStream();
-        String feedbackMessage = "Success";
-        out.write(feedbackMessage.getBytes());
-        fos.close();
-
-        bos.close();
-        bis.close();
+    // the next reply for action within timeoutMs, null if none came
+    private static Frame awaitReply(int action, int timeoutMs) throws IOException {
+        DatagramPacket response = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        socket.setSoTimeout(timeoutMs);
+        try {
+            while (true) {
+                socket.receive(response);
+                ByteBuffer data = ByteBuffer.wrap(response.getData(), 0, response.getLength());
+                Frame reply = WireCodec.forPacket(data).decode(data, response.getSocketAddress());
+                if (reply.action() == action)
+                    return reply;
+            }
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            socket.setSoTimeout(TIMEOUT_MS);
+        }
     }
 
-    private static String execCommand(int action, String content, String username) {
+    private static Frame execCommand(int action, String content, String username) {
         try {
             if (content == null)
                 content = "";
-            String evt = Event.createEvent(action, FC, username, content);
-            return sendAndReceive(evt);
+            return sendAndReceive(action, username, content);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
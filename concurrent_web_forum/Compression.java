@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// raw deflate for reply payloads and attachment chunks. A peer that can
+// inflate says so in every binary frame it sends (BinaryCodec.FLAG_INFLATES),
+// and is then sent compressed RDT/LST replies and chunks; anything that
+// doesn't shrink goes out as it is, so compression never costs bytes.
+// -Dforum.compress=false turns it off on either end
+public final class Compression {
+
+    public static final boolean ENABLED = Boolean
+            .parseBoolean(System.getProperty("forum.compress", "true"));
+
+    // 1 is the fastest, 9 the smallest; see CompressionBenchmark. Used for
+    // replies and for packing attachments at rest, which happens once;
+    // chunks deflated while they are being sent use BEST_SPEED
+    public static final int LEVEL = Integer.getInteger("forum.deflateLevel", Deflater.DEFAULT_COMPRESSION);
+
+    // payloads shorter than this aren't worth the CPU
+    public static final int MIN_SIZE = 128;
+
+    // native zlib streams are expensive to set up, so each thread keeps one
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+            .withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Deflater> fastDeflaters = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private Compression() {
+    }
+
+    // compresses in's remaining bytes into out and returns true, or leaves
+    // out as it was and returns false if that wouldn't save anything. in
+    // is consumed, partly if it returns false, so rewind it to send it raw
+    public static boolean deflate(ByteBuffer in, ByteBuffer out) {
+        return deflate(deflaters.get(), in, out);
+    }
+
+    // the same at BEST_SPEED, for compressing on a transfer's critical path
+    public static boolean deflateFast(ByteBuffer in, ByteBuffer out) {
+        return deflate(fastDeflaters.get(), in, out);
+    }
+
+    private static boolean deflate(Deflater deflater, ByteBuffer in, ByteBuffer out) {
+        int start = out.position();
+        int limit = out.limit();
+        // only worth it if it comes out smaller
+        out.limit(Math.min(limit, start + in.remaining() - 1));
+        try {
+            deflater.setInput(in);
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining())
+                deflater.deflate(out);
+            if (deflater.finished())
+                return true;
+            out.position(start);
+            return false;
+        } finally {
+            out.limit(limit);
+            deflater.reset();
+        }
+    }
+
+    // inflates all of in into out; out must have room for the result
+    public static void inflate(ByteBuffer in, ByteBuffer out) throws DataFormatException {
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(in);
+            while (!inflater.finished()) {
+                if (!out.hasRemaining() || inflater.inflate(out) == 0 && inflater.needsInput())
+                    throw new DataFormatException("Deflated data is truncated or too large");
+            }
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    // bytes of a file looked at by worthCompressing
+    public static final int SAMPLE_SIZE = 1 << 18;
+
+    // a rough ratio from the start of the file, so incompressible files
+    // (media, archives) are skipped without compressing all of them
+    public static boolean worthCompressing(FileChannel file) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, file.size()));
+        while (sample.hasRemaining()) {
+            if (file.read(sample, sample.position()) < 0)
+                break;
+        }
+        return worthCompressing(sample.flip());
+    }
+
+    public static boolean worthCompressing(ByteBuffer sample) {
+        int size = sample.remaining();
+        if (size < MIN_SIZE)
+            return false;
+        ByteBuffer out = ByteBuffer.allocate(size);
+        return deflateFast(sample, out) && out.position() < size * 9 / 10;
+    }
+}
@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// CPU spent against bytes saved by deflate, for the two things that get
+// compressed: RDT replies (a whole thread cut into fragments, plain vs
+// packed, encoded through BinaryCodec) and attachment chunks (log, CSV and
+// random data in CHUNK_SIZE pieces, at a few levels)
+//
+// usage: java CompressionBenchmark [posts] [attachment_mb]
+public class CompressionBenchmark {
+
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int posts = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int attachmentMb = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        replies(posts);
+        System.out.println();
+        System.out.printf("%-8s %6s %10s %12s %12s%n", "data", "level", "ratio", "deflate MB/s", "inflate MB/s");
+        byte[][] samples = { logLines(attachmentMb << 20), csvRows(attachmentMb << 20), random(attachmentMb << 20) };
+        String[] names = { "log", "csv", "random" };
+        for (int s = 0; s < samples.length; s++) {
+            for (int level : new int[] { 1, 6, 9 })
+                chunks(names[s], samples[s], level);
+        }
+    }
+
+    /* ---------- RDT ---------- */
+
+    private static void replies(int posts) {
+        Fragments.Chunker plain = new Fragments.Chunker(true, Fragments.PAYLOAD_BUDGET);
+        Fragments.Chunker packed = new Fragments.Chunker(true, Fragments.PACKED_BUDGET);
+        Random random = new Random(42);
+        String[] users = { "hans", "yoda", "leia", "chewbacca", "lando" };
+        for (int i = 1; i <= posts; i++) {
+            String post = i + " " + users[random.nextInt(users.length)] + ": "
+                    + sentence(random, 4 + random.nextInt(20));
+            plain.add(post);
+            packed.add(post);
+        }
+
+        System.out.printf("RDT of %d posts%n", posts);
+        System.out.printf("%-8s %10s %12s %12s %14s%n", "reply", "datagrams", "text bytes", "wire bytes",
+                "encode us/dgm");
+        report("plain", plain.chunks(), false);
+        report("deflate", plain.chunks(), true);
+        report("packed", packed.chunks(), true);
+    }
+
+    private static void report(String name, List<String> chunks, boolean deflate) {
+        ByteBuffer out = ByteBuffer.allocate(Server.MAX_DATAGRAM);
+        long text = 0, wire = 0;
+        for (String chunk : chunks) {
+            text += chunk.getBytes(StandardCharsets.UTF_8).length;
+            out.clear();
+            BinaryCodec.INSTANCE.encode(Server.RDT, Server.FRAGMENT, 1, "hans", chunk, deflate, out);
+            wire += out.position();
+        }
+        for (int r = 0; r < ROUNDS; r++) // warm up
+            encodeAll(chunks, deflate, out);
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++)
+            encodeAll(chunks, deflate, out);
+        double micros = (System.nanoTime() - start) / 1e3 / ROUNDS / chunks.size();
+        System.out.printf("%-8s %10d %12d %12d %14.1f%n", name, chunks.size(), text, wire, micros);
+    }
+
+    private static void encodeAll(List<String> chunks, boolean deflate, ByteBuffer out) {
+        for (String chunk : chunks) {
+            out.clear();
+            BinaryCodec.INSTANCE.encode(Server.RDT, Server.FRAGMENT, 1, "hans", chunk, deflate, out);
+        }
+    }
+
+    /* ---------- attachment chunks ---------- */
+
+    private static void chunks(String name, byte[] data, int level) throws Exception {
+        int chunkSize = ServerConfig.CHUNK_SIZE;
+        Deflater deflater = new Deflater(level, true);
+        Inflater inflater = new Inflater(true);
+        byte[] packed = new byte[chunkSize + 1024];
+        byte[] unpacked = new byte[chunkSize];
+
+        long stored = 0, deflateNanos = 0, inflateNanos = 0;
+        for (int off = 0; off < data.length; off += chunkSize) {
+            int length = Math.min(chunkSize, data.length - off);
+            long start = System.nanoTime();
+            deflater.setInput(data, off, length);
+            deflater.finish();
+            int packedLength = 0;
+            while (!deflater.finished())
+                packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength);
+            deflater.reset();
+            deflateNanos += System.nanoTime() - start;
+
+            // what goes out is whichever is smaller, as in ChunkedTransfer
+            if (packedLength >= length) {
+                stored += length;
+                continue;
+            }
+            stored += packedLength;
+            start = System.nanoTime();
+            inflater.setInput(packed, 0, packedLength);
+            int got = inflater.inflate(unpacked);
+            inflater.reset();
+            inflateNanos += System.nanoTime() - start;
+            if (got != length)
+                throw new IllegalStateException("inflated " + got + " of " + length);
+        }
+        deflater.end();
+        inflater.end();
+        double mb = data.length / 1e6;
+        System.out.printf("%-8s %6d %10.2f %12.0f %12s%n", name, level, (double) data.length / stored,
+                mb / (deflateNanos / 1e9),
+                inflateNanos == 0 ? "-" : String.format("%.0f", mb / (inflateNanos / 1e9)));
+    }
+
+    private static byte[] logLines(int size) {
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder(size + 200);
+        for (int i = 0; text.length() < size; i++) {
+            text.append(String.format("2026-10-16 12:%02d:%02d.%03d INFO  [worker-%d] handled %s %s in %d ms%n",
+                    i / 60 % 60, i % 60, random.nextInt(1000), random.nextInt(16),
+                    random.nextBoolean() ? "GET" : "POST", "/threads/" + random.nextInt(500),
+                    random.nextInt(250)));
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] csvRows(int size) {
+        Random random = new Random(2);
+        StringBuilder text = new StringBuilder(size + 200);
+        text.append("id,user,thread,posts,score,updated\n");
+        for (int i = 0; text.length() < size; i++) {
+            text.append(i).append(',').append("user").append(random.nextInt(5000)).append(',')
+                    .append("thread-").append(random.nextInt(800)).append(',').append(random.nextInt(400))
+                    .append(',').append(String.format("%.4f", random.nextDouble())).append(',')
+                    .append(1_790_000_000L + random.nextInt(10_000_000)).append('\n');
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+
+    private static String sentence(Random random, int words) {
+        String[] vocabulary = { "the", "forum", "thread", "server", "message", "reply", "upload", "works",
+                "again", "today", "file", "attached", "see", "above", "thanks", "for", "posting", "this" };
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0)
+                s.append(' ');
+            s.append(vocabulary[random.nextInt(vocabulary.length)]);
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// where the slow part of logging in happens. Hashing and checking
+// passwords (see PasswordHash) runs on a small pool of its own with a
+// bounded queue, so a wave of logins queues up there instead of holding
+// the request workers, and past the queue a login is refused rather than
+// waited on. Callers get a CompletableFuture and finish on the pool.
+//
+// A password that checked out recently is remembered for a while, as a
+// MAC under a key that only lives in this process, so a client logging in
+// again doesn't pay for a full hash. An entry only counts while the user's
+// stored credential is the one it was checked against.
+//
+// load() reads credentials.txt in bulk for UserList
+public final class CredentialStore implements AutoCloseable {
+
+    private final ThreadPoolExecutor pool;
+    private final Map<String, Verified> verified = new ConcurrentHashMap<>();
+    private final int cacheSize;
+    private final long cacheNanos;
+    private final byte[] cacheKey = new byte[32];
+
+    public CredentialStore(int workers, int queue, int cacheSize, long cacheMs) {
+        AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                r -> {
+                    Thread t = new Thread(r, "credentials-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.cacheSize = cacheSize;
+        this.cacheNanos = TimeUnit.MILLISECONDS.toNanos(cacheMs);
+        new SecureRandom().nextBytes(cacheKey);
+    }
+
+    // a new credential for password; fails with RejectedExecutionException
+    // if the pool is that far behind
+    public CompletableFuture<String> hash(String password) {
+        return submit(() -> PasswordHash.hash(password));
+    }
+
+    // whether password is user's, from the cache if it was checked lately;
+    // fails with RejectedExecutionException like hash()
+    public CompletableFuture<Boolean> verify(User user, String password) {
+        String stored = user.credential();
+        byte[] mac = mac(user.name(), password);
+        Verified hit = verified.get(user.name());
+        if (hit != null && hit.credential == stored && System.nanoTime() - hit.at < cacheNanos
+                && MessageDigest.isEqual(hit.mac, mac))
+            return CompletableFuture.completedFuture(true);
+        long start = System.nanoTime();
+        return submit(() -> {
+            boolean ok = PasswordHash.verify(stored, password);
+            Metrics.hash.recordNanos(System.nanoTime() - start);
+            if (ok)
+                remember(user.name(), stored, mac);
+            return ok;
+        });
+    }
+
+    // a refusal comes back in the future rather than thrown at the caller
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // logins waiting for a hashing thread
+    public int queued() {
+        return pool.getQueue().size();
+    }
+
+    private void remember(String name, String credential, byte[] mac) {
+        if (verified.size() >= cacheSize) {
+            long now = System.nanoTime();
+            verified.values().removeIf(v -> now - v.at >= cacheNanos);
+            if (verified.size() >= cacheSize)
+                return; // full of live entries, this one just isn't cached
+        }
+        verified.put(name, new Verified(credential, mac));
+    }
+
+    private byte[] mac(String name, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            mac.update(name.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is missing from this JDK", e);
+        }
+    }
+
+    // lets hashes already running finish, a plaintext upgrade among them,
+    // so the checkpoint after sees it and drops the old line
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Verified {
+        final String credential;
+        final byte[] mac;
+        final long at = System.nanoTime();
+
+        Verified(String credential, byte[] mac) {
+            this.credential = credential;
+            this.mac = mac;
+        }
+    }
+
+    /* ---------- bulk loading ---------- */
+
+    // every "<name> <credential>" line of file, in order, to into. The file
+    // is mapped a window at a time and split on the bytes, with no Scanner
+    // and no per-line regex, so millions of accounts load in well under a
+    // second. Lines that don't have exactly two fields are skipped
+    public static void load(Path file, BiConsumer<String, String> into) throws IOException {
+        if (!Files.exists(file))
+            return;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, 1 << 30));
+                int consumed = parse(window, position + window.limit() == size, into);
+                if (consumed == 0)
+                    throw new IOException("Line longer than 1 GB in " + file);
+                position += consumed;
+            }
+        }
+    }
+
+    // returns how far it got: up to the last full line, or everything if
+    // this window ends the file
+    private static int parse(MappedByteBuffer buf, boolean last, BiConsumer<String, String> into) {
+        int start = 0, limit = buf.limit();
+        byte[] line = new byte[256];
+        for (int i = 0; i < limit; i++) {
+            if (buf.get(i) != '\n')
+                continue;
+            line = line(buf, start, i, line, into);
+            start = i + 1;
+        }
+        if (last && start < limit) {
+            line(buf, start, limit, line, into);
+            start = limit;
+        }
+        return start;
+    }
+
+    private static byte[] line(MappedByteBuffer buf, int from, int to, byte[] scratch, BiConsumer<String, String> into) {
+        if (to > from && buf.get(to - 1) == '\r')
+            to--;
+        int length = to - from;
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        buf.get(from, scratch, 0, length);
+        int space = -1;
+        for (int i = 0; i < length; i++) {
+            if (scratch[i] == ' ') {
+                if (space >= 0)
+                    return scratch; // more than two fields
+                space = i;
+            }
+        }
+        if (space > 0 && space < length - 1)
+            into.accept(new String(scratch, 0, space, StandardCharsets.UTF_8),
+                    new String(scratch, space + 1, length - space - 1, StandardCharsets.UTF_8));
+        return scratch;
+    }
+}
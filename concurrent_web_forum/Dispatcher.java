@@ -0,0 +1,154 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// decides which executor runs a request; UPD/DWN hold a worker for the whole
+// TCP accept + copy, so they can be kept away from the short control commands.
+// The pools wait on AdmissionQueues, so a burst fills a bounded queue and
+// the requests that don't fit are refused (submit) instead of piling up
+// until the clients' retries double the load; see AdmissionQueue for who
+// gets refused
+public class Dispatcher {
+
+    public enum Mode {
+        // one shared fixed pool, the original behaviour
+        FIXED,
+        // a fresh virtual thread per request
+        VIRTUAL,
+        // fixed pool for control traffic, separate fixed pool for transfers
+        SPLIT
+    }
+
+    private final Mode mode;
+    private final ExecutorService control;
+    private final ExecutorService bulk;
+    // null for VIRTUAL, which has no queue and caps requests in flight instead
+    private final AdmissionQueue controlQueue, bulkQueue;
+    private final int capacity;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // requests waiting for a worker and being run, by kind of work rather
+    // than by pool so every mode reports them the same way
+    private final AtomicInteger controlQueued = new AtomicInteger(),
+            controlActive = new AtomicInteger(),
+            bulkQueued = new AtomicInteger(),
+            bulkActive = new AtomicInteger();
+
+    public Dispatcher(Mode mode, int workers, int bulkWorkers) {
+        this(mode, workers, bulkWorkers, ServerConfig.QUEUE_CAPACITY, ServerConfig.ADMISSION);
+    }
+
+    public Dispatcher(Mode mode, int workers, int bulkWorkers, int capacity, AdmissionQueue.Policy policy) {
+        this.mode = mode;
+        this.capacity = capacity;
+        switch (mode) {
+            case VIRTUAL:
+                control = Executors.newVirtualThreadPerTaskExecutor();
+                bulk = control;
+                controlQueue = null;
+                bulkQueue = null;
+                break;
+            case SPLIT:
+                controlQueue = new AdmissionQueue(capacity, policy);
+                bulkQueue = new AdmissionQueue(capacity, policy);
+                control = pool(workers, controlQueue);
+                bulk = pool(bulkWorkers, bulkQueue);
+                break;
+            default:
+                controlQueue = new AdmissionQueue(capacity, policy);
+                bulkQueue = controlQueue;
+                control = pool(workers, controlQueue);
+                bulk = control;
+                break;
+        }
+    }
+
+    // newFixedThreadPool over our queue. The workers are started up front
+    // because submit() puts jobs straight on the queue, past execute()
+    private static ExecutorService pool(int workers, AdmissionQueue queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue);
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    public static boolean isBulk(int action) {
+        return action == Server.UPD || action == Server.DWN;
+    }
+
+    // runs task whatever the load; for work that has already been let in,
+    // like the TCP side of a transfer
+    public void dispatch(int action, Runnable task) {
+        boolean isBulk = isBulk(action);
+        AtomicInteger queued = isBulk ? bulkQueued : controlQueued;
+        queued.incrementAndGet();
+        (isBulk ? bulk : control).execute(new AdmissionQueue.Job(action, tracked(isBulk, task), null));
+    }
+
+    // runs task if there is room for it. If there isn't, onRefused runs
+    // instead, on this thread, for it or for a queued request it displaced
+    public void submit(int action, Runnable task, Runnable onRefused) {
+        boolean isBulk = isBulk(action);
+        if (mode == Mode.VIRTUAL) {
+            // nothing waits, so the only choice is turning the newcomer away
+            if (inFlight.incrementAndGet() > capacity) {
+                inFlight.decrementAndGet();
+                Metrics.refused.increment();
+                onRefused.run();
+                return;
+            }
+            dispatch(action, () -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+            return;
+        }
+        AtomicInteger queued = isBulk ? bulkQueued : controlQueued;
+        queued.incrementAndGet();
+        AdmissionQueue.Job job = new AdmissionQueue.Job(action, tracked(isBulk, task), () -> {
+            queued.decrementAndGet();
+            onRefused.run();
+        });
+        AdmissionQueue.Job loser = (isBulk ? bulkQueue : controlQueue).admit(job);
+        if (loser != null) {
+            (loser == job ? Metrics.refused : Metrics.shed).increment();
+            loser.refuse();
+        }
+    }
+
+    private Runnable tracked(boolean isBulk, Runnable task) {
+        AtomicInteger queued = isBulk ? bulkQueued : controlQueued;
+        AtomicInteger active = isBulk ? bulkActive : controlActive;
+        return () -> {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        };
+    }
+
+    public int queued(boolean bulkWork) {
+        return (bulkWork ? bulkQueued : controlQueued).get();
+    }
+
+    public int active(boolean bulkWork) {
+        return (bulkWork ? bulkActive : controlActive).get();
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public void shutdown() throws InterruptedException {
+        control.shutdown();
+        bulk.shutdown();
+        control.awaitTermination(Server.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        bulk.awaitTermination(Server.TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+}
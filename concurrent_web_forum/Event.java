@@ -1,33 +1,70 @@
 import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
+// helpers for the original space separated text format,
+// "<action> <status> <username> <content>"
 public class Event {
     public static String createEvent(int action, int status, String username, String content) {
         return action + " " + status + " " + username + " " + content;
     }
 
     public static int getAction(String event) {
-        String action_str = event.split(" ")[0];
-        return Integer.parseInt(action_str);
+        return Integer.parseInt(field(event, 0));
     }
 
     public static int getStatus(String event) {
-        String status_str = event.split(" ")[1];
-        return Integer.parseInt(status_str);
+        return Integer.parseInt(field(event, 1));
     }
 
     public static String getName(String event) {
-        return event.split(" ")[2];
+        return field(event, 2);
     }
 
     public static String getContent(String event) {
-        String[] parts = event.split(" ", 4);
-        if (parts.length < 4)
+        int start = fieldStart(event, 3);
+        if (start < 0)
             return ""; // no content
-        return parts[3].trim(); // everything after the 3rd space
+        return event.substring(start).trim(); // everything after the 3rd space
     }
 
     public static String getPacketData(DatagramPacket packet) throws Exception {
         return new String(packet.getData(), 0, packet.getLength()).trim();
     }
 
+    // split a received datagram into its fields in a single pass
+    public static Frame decode(ByteBuffer packet, SocketAddress sender) {
+        String event = Charset.defaultCharset().decode(packet).toString().trim();
+        int first = event.indexOf(' ');
+        int second = event.indexOf(' ', first + 1);
+        if (first < 0 || second < 0)
+            throw new IllegalArgumentException("Malformed event: " + event);
+
+        int third = event.indexOf(' ', second + 1);
+        int action = Integer.parseInt(event.substring(0, first));
+        int status = Integer.parseInt(event.substring(first + 1, second));
+        String username = third < 0 ? event.substring(second + 1) : event.substring(second + 1, third);
+        String content = third < 0 ? "" : event.substring(third + 1).trim();
+        return new Frame(action, status, username, content, sender, TextCodec.INSTANCE);
+    }
+
+    // index of the n-th space separated field, or -1 if there are fewer fields
+    private static int fieldStart(String event, int n) {
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            start = event.indexOf(' ', start) + 1;
+            if (start == 0)
+                return -1;
+        }
+        return start;
+    }
+
+    private static String field(String event, int n) {
+        int start = fieldStart(event, n);
+        if (start < 0)
+            throw new ArrayIndexOutOfBoundsException("No field " + n + " in event");
+        int end = event.indexOf(' ', start);
+        return end < 0 ? event.substring(start) : event.substring(start, end);
+    }
 }
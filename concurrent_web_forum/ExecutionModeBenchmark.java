@@ -0,0 +1,90 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+// compares the Dispatcher modes without the network in the way: every
+// simulated client fires one request at the same moment, a small share of
+// them are UPD/DWN that park their worker (like the accept + copy does) and
+// the rest are cheap control commands
+//
+// usage: java ExecutionModeBenchmark [bulk_percent] [bulk_ms] [clients...]
+public class ExecutionModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        double bulkShare = args.length > 0 ? Double.parseDouble(args[0]) / 100 : 0.01;
+        long bulkMs = args.length > 1 ? Long.parseLong(args[1]) : 200;
+        int[] clientCounts = args.length > 2
+                ? Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1_000, 10_000, 50_000 };
+
+        System.out.printf("bulk share %.1f%%, bulk hold %d ms%n", bulkShare * 100, bulkMs);
+        System.out.printf("%-8s %8s %12s %12s %12s %12s %10s%n",
+                "mode", "clients", "ctl p50 ms", "ctl p99 ms", "ctl max ms", "bulk p99 ms", "wall ms");
+        for (int clients : clientCounts) {
+            for (Dispatcher.Mode mode : Dispatcher.Mode.values()) {
+                run(mode, clients, bulkShare, bulkMs);
+            }
+        }
+    }
+
+    private static void run(Dispatcher.Mode mode, int clients, double bulkShare, long bulkMs) throws Exception {
+        Dispatcher dispatcher = new Dispatcher(mode, ServerConfig.WORKERS, ServerConfig.BULK_WORKERS);
+        boolean[] bulk = new boolean[clients];
+        long[] latency = new long[clients];
+        for (int i = 0; i < clients; i++)
+            bulk[i] = ThreadLocalRandom.current().nextDouble() < bulkShare;
+
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            final long submitted = System.nanoTime();
+            dispatcher.dispatch(bulk[i] ? Server.DWN : Server.RDT, () -> {
+                try {
+                    if (bulk[client])
+                        Thread.sleep(bulkMs);
+                    else
+                        simulateControlWork();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latency[client] = System.nanoTime() - submitted;
+                done.countDown();
+            });
+        }
+        done.await();
+        long wall = System.nanoTime() - start;
+        dispatcher.shutdown();
+
+        long[] control = select(latency, bulk, false);
+        long[] transfers = select(latency, bulk, true);
+        System.out.printf("%-8s %8d %12.2f %12.2f %12.2f %12.2f %10.0f%n",
+                mode.name().toLowerCase(), clients,
+                percentile(control, 50), percentile(control, 99), percentile(control, 100),
+                percentile(transfers, 99), wall / 1e6);
+    }
+
+    // roughly what LST/RDT on a small thread costs: a few microseconds of CPU
+    private static void simulateControlWork() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            sb.append(i).append(' ');
+        if (sb.length() == 0)
+            throw new IllegalStateException();
+    }
+
+    private static long[] select(long[] latency, boolean[] bulk, boolean wanted) {
+        return java.util.stream.IntStream.range(0, latency.length)
+                .filter(i -> bulk[i] == wanted)
+                .mapToLong(i -> latency[i])
+                .sorted()
+                .toArray();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int idx = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))] / 1e6;
+    }
+}
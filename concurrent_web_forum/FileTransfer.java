@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// moves attachment bytes between a file and a TCP connection, used by both
+// ends of UPD and DWN. The channel path leaves the download copy to the
+// kernel (sendfile for file -> socket), takes uploads through pooled direct
+// buffers and allocates nothing per transfer; the
+// stream path is the original buffered copy loop, kept as a fallback for
+// -Dforum.zeroCopy=false
+public final class FileTransfer {
+
+    public static final boolean ZERO_COPY = Boolean
+            .parseBoolean(System.getProperty("forum.zeroCopy", "true"));
+
+    public static final int STREAM_BUFFER = 102400;
+
+    // the JDK has no socket -> file splice and its transferFrom fallback
+    // copies through an 8 KB buffer, so uploads read into a large pooled
+    // direct buffer instead
+    private static final BufferPool receiveBuffers = new BufferPool(1 << 18, 16);
+
+    private FileTransfer() {
+    }
+
+    public static long send(Path file, SocketChannel out) throws IOException {
+        return ZERO_COPY ? sendChannel(file, out) : send(file, out.socket().getOutputStream());
+    }
+
+    // reads until the peer shuts down its side, replacing the file
+    public static long receive(SocketChannel in, Path file) throws IOException {
+        return ZERO_COPY ? receiveChannel(in, file) : receive(in.socket().getInputStream(), file);
+    }
+
+    /* ---------- channel path ---------- */
+
+    public static long sendChannel(Path file, SocketChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long sent = in.transferTo(position, size - position, out);
+                if (sent == 0 && in.size() <= position)
+                    break; // truncated underneath us
+                position += sent;
+            }
+            return position;
+        }
+    }
+
+    public static long receiveChannel(SocketChannel in, Path file) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = receiveBuffers.acquire();
+            try {
+                long total = 0;
+                while (in.read(buf) >= 0) {
+                    buf.flip();
+                    while (buf.hasRemaining())
+                        total += out.write(buf);
+                    buf.clear();
+                }
+                return total;
+            } finally {
+                receiveBuffers.release(buf);
+            }
+        }
+    }
+
+    /* ---------- stream fallback ---------- */
+
+    public static long send(Path file, OutputStream out) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            BufferedOutputStream bos = new BufferedOutputStream(out);
+            long total = copy(in, bos);
+            bos.flush();
+            return total;
+        }
+    }
+
+    public static long receive(InputStream in, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            return copy(new BufferedInputStream(in), out);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[STREAM_BUFFER];
+        long total = 0;
+        int length;
+        while ((length = in.read(buf)) != -1) {
+            out.write(buf, 0, length);
+            total += length;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// the forum commands as a library: every call returns a future for the
+// reply instead of blocking, and any number of them can be outstanding on
+// the one socket. Replies are matched to requests by request id, so they
+// may come back in any order; a request is retransmitted with the same id
+// after an adaptive timeout (RttEstimator) and the server's reply cache
+// makes that safe for MSG and DLT.
+//
+// Requests are not ordered with respect to each other: the server runs
+// them on a pool, so a MSG sent right behind the CRT for its thread can
+// overtake it. Chain the futures where order matters. Dependent stages run
+// on the receiving thread unless given an executor; they may send more
+// requests but must not block. UPD/DWN go over a single transfer
+// connection each and don't resume; the interactive Client does that.
+// Binary frames only, the text format has no request ids
+public final class ForumClient implements AutoCloseable {
+
+    // how far past the oldest unanswered request new ones may be sent. The
+    // server remembers a client's last forum.replyCachePerClient request
+    // ids, so while this stays under that, a retry of the oldest is still
+    // answered from its cache however many newer ones went past it. A
+    // request lost again and again holds the window up until it is answered
+    public static final int WINDOW = Integer.getInteger("forum.window", 64);
+    public static final int MIN_RTO_MS = Integer.getInteger("forum.minRto", 50),
+            MAX_RTO_MS = Integer.getInteger("forum.maxRto", 10_000);
+
+    private final DatagramChannel channel;
+    private final String username;
+    // the token LOGIN handed out, sent with every request after it
+    private volatile long session = 0;
+    private final RttEstimator rtt = new RttEstimator(Client.TIMEOUT_MS, MIN_RTO_MS, MAX_RTO_MS);
+    // request id -> call on the wire
+    private final Map<Integer, Call> pending = new ConcurrentHashMap<>();
+    private final int window;
+    // guarded by this: calls waiting for room in the window, in the order
+    // they were numbered, and the sequence numbers of the ones on the wire
+    private final Queue<Call> queued = new ArrayDeque<>();
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private long lastSeq = 0;
+    // see Client.lastRequestId
+    private int lastRequestId = new Random().nextInt();
+    private final ScheduledThreadPoolExecutor timer;
+    private final LongAdder retransmits = new LongAdder();
+    private volatile boolean closed = false;
+    // share of datagrams dropped each way, see simulateLoss
+    private volatile double loss = 0;
+
+    public ForumClient(SocketAddress server, String username) throws IOException {
+        this(server, username, WINDOW);
+    }
+
+    public ForumClient(SocketAddress server, String username, int window) throws IOException {
+        this.username = username;
+        this.window = window;
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, Client.RECEIVE_BUFFER);
+        channel.connect(server);
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "forum-client-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        // most timeouts are cancelled by their reply, don't keep them queued
+        timer.setRemoveOnCancelPolicy(true);
+        Thread receiver = new Thread(this::receiveLoop, "forum-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public static ForumClient connect(String host, int port, String username) throws IOException {
+        return new ForumClient(new InetSocketAddress(host, port), username);
+    }
+
+    /* ---------- commands ---------- */
+
+    // FIRST_CONN then LOGIN; the reply is the first one that isn't SUCCESS,
+    // or LOGIN's. Requests sent once it is done carry the session
+    public CompletableFuture<Frame> login(String password) {
+        return send(Client.FIRST_CONN, "Log in request")
+                .thenCompose(r -> r.status() == Client.SUCCESS ? send(Client.LOGIN, password)
+                        : CompletableFuture.completedFuture(r))
+                .thenApply(r -> {
+                    if (r.action() == Client.LOGIN && r.status() == Client.SUCCESS)
+                        session = r.session();
+                    return r;
+                });
+    }
+
+    public CompletableFuture<Frame> createThread(String title) {
+        return send(Client.CRT, title);
+    }
+
+    public CompletableFuture<Frame> post(String thread, String message) {
+        return send(Client.MSG, thread + " " + message);
+    }
+
+    public CompletableFuture<Frame> delete(String thread, int number) {
+        return send(Client.DLT, thread + " " + number);
+    }
+
+    public CompletableFuture<Frame> edit(String thread, int number, String message) {
+        return send(Client.EDT, thread + " " + number + " " + message);
+    }
+
+    public CompletableFuture<Frame> list() {
+        return send(Client.LST, "");
+    }
+
+    // the whole thread, fragments reassembled; posts are ';' separated
+    public CompletableFuture<Frame> read(String thread) {
+        return send(Client.RDT, thread);
+    }
+
+    public CompletableFuture<Frame> read(String thread, int offset, int limit) {
+        return send(Client.RDT, thread + " " + offset + " " + limit);
+    }
+
+    public CompletableFuture<Frame> remove(String thread) {
+        return send(Client.RMV, thread);
+    }
+
+    public CompletableFuture<Frame> logout() {
+        return send(Client.XIT, "exit");
+    }
+
+    // UPD over the chunked transfer path; completes with the server's
+    // confirmation once the file is in, or its refusal
+    public CompletableFuture<Frame> upload(String thread, Path file) {
+        return upload(thread, file.getFileName().toString(), file);
+    }
+
+    // the same, posted under another name
+    public CompletableFuture<Frame> upload(String thread, String name, Path file) {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Call request = submit(Client.UPD, thread + " " + name + " " + size);
+        return request.future.thenCompose(ready -> {
+            if (ready.status() != Client.SUCCESS)
+                return CompletableFuture.completedFuture(ready);
+            // listening before the first byte goes out, so the confirmation can't be missed
+            Call confirmation = expect(request, ready);
+            Thread.startVirtualThread(() -> {
+                String[] parts = ready.content().split(" ");
+                int chunkSize = Integer.parseInt(parts[2]);
+                int first = (int) (Long.parseLong(parts[3]) / chunkSize);
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                        SocketChannel conn = openTransfer(ready)) {
+                    if (Compression.ENABLED && ready.inflates() && Compression.worthCompressing(in))
+                        ChunkedTransfer.sendDeflated(in, size, chunkSize, first, 1, conn,
+                                ByteBuffer.allocate(chunkSize), ByteBuffer.allocate(chunkSize));
+                    else
+                        ChunkedTransfer.sendChunks(in, size, chunkSize, first, 1, conn);
+                    conn.shutdownOutput();
+                    arm(confirmation);
+                } catch (IOException | RuntimeException e) {
+                    finish(confirmation, null, e);
+                }
+            });
+            return confirmation.future;
+        });
+    }
+
+    // DWN into target over the chunked transfer path; completes once the
+    // file is in place
+    public CompletableFuture<Frame> download(String thread, String file, Path target) {
+        return send(Client.DWN, thread + " " + file + " 0").thenCompose(ready -> {
+            if (ready.status() != Client.SUCCESS)
+                return CompletableFuture.completedFuture(ready);
+            CompletableFuture<Frame> done = new CompletableFuture<>();
+            Thread.startVirtualThread(() -> {
+                String[] parts = ready.content().split(" ");
+                long size = Long.parseLong(parts[2]);
+                int chunkSize = Integer.parseInt(parts[3]);
+                PartialFile part = null;
+                try (SocketChannel conn = openTransfer(ready)) {
+                    part = PartialFile.create(target.resolveSibling(target.getFileName() + ".part"), size,
+                            chunkSize);
+                    ChunkedTransfer.writeRequest(conn, 0, 1);
+                    ChunkedTransfer.receiveChunks(conn, part, ByteBuffer.allocate(chunkSize),
+                            ByteBuffer.allocate(chunkSize));
+                    if (!part.claimCompletion())
+                        throw new IOException("Download of " + file + " is missing chunks");
+                    part.commit(target);
+                    done.complete(new Frame(Client.DWN, Client.SUCCESS, username,
+                            file + " successfully downloaded", ready.sender(), ready.codec()));
+                } catch (IOException | RuntimeException e) {
+                    if (part != null)
+                        part.abort();
+                    done.completeExceptionally(e);
+                }
+            });
+            return done;
+        });
+    }
+
+    // any command; completes with the server's reply (FAILURE and
+    // UNAUTHENTICATED included), or exceptionally once MAX_RETRIES
+    // transmissions go unanswered or the client is closed
+    public CompletableFuture<Frame> send(int action, String content) {
+        return submit(action, content).future;
+    }
+
+    private Call submit(int action, String content) {
+        ByteBuffer datagram = ByteBuffer.allocate(Client.MAX_SIZE);
+        Call call;
+        synchronized (this) {
+            if (closed)
+                return failed(action, new ClosedChannelException());
+            int id = nextRequestId();
+            try {
+                BinaryCodec.INSTANCE.encode(action, Client.FC, id, session, username, content, false, datagram);
+            } catch (BufferOverflowException | IllegalArgumentException e) {
+                return failed(action,
+                        new IllegalArgumentException("Request too long, at most " + Client.MAX_SIZE + " bytes", e));
+            }
+            call = new Call(id, ++lastSeq, action, datagram.flip());
+            queued.add(call);
+        }
+        drain();
+        return call;
+    }
+
+    private static Call failed(int action, Exception e) {
+        Call call = new Call(0, 0, action, null);
+        call.future.completeExceptionally(e);
+        return call;
+    }
+
+    /* ---------- window ---------- */
+
+    // moves queued calls onto the wire while they are within the window.
+    // Called after every enqueue and every completion, so a call can't be
+    // left queued with the window open
+    private void drain() {
+        List<Call> ready = new ArrayList<>();
+        synchronized (this) {
+            Call next;
+            while ((next = queued.peek()) != null
+                    && (outstanding.isEmpty() || next.seq - outstanding.first() < window)) {
+                queued.poll();
+                outstanding.add(next.seq);
+                pending.put(next.id, next);
+                ready.add(next);
+            }
+        }
+        for (Call call : ready)
+            transmit(call, rtt.rtoNanos());
+    }
+
+    private void transmit(Call call, long rtoNanos) {
+        synchronized (call) {
+            call.sentAt = System.nanoTime();
+            call.rto = rtoNanos;
+            call.attempts++;
+            call.timeout = timer.schedule(() -> expire(call), rtoNanos, TimeUnit.NANOSECONDS);
+        }
+        try {
+            if (loss == 0 || ThreadLocalRandom.current().nextDouble() >= loss)
+                channel.write(call.datagram.duplicate());
+        } catch (IOException e) {
+            // treated as a lost datagram, the timeout sends it again
+        }
+    }
+
+    // a second reply the server sends to an answered request (UPD's
+    // confirmation), under the same id. It sits outside the window and
+    // nothing times it out until it is armed; after that the request is
+    // sent again as usual, and the server's reply cache answers with the
+    // first reply, which is skipped, then this one once it exists
+    private Call expect(Call request, Frame answered) {
+        Call call = new Call(request.id, 0, request.action, request.datagram);
+        call.answered = answered.content();
+        pending.put(call.id, call);
+        return call;
+    }
+
+    private void arm(Call call) {
+        long rto = rtt.rtoNanos();
+        synchronized (call) {
+            call.rto = rto;
+            call.timeout = timer.schedule(() -> expire(call), rto, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // connect to the server's transfer port and present the token from
+    // the "ready" reply, as Client.openTransfer does
+    private SocketChannel openTransfer(Frame ready) throws IOException {
+        String[] parts = ready.content().split(" ");
+        if (parts.length < 2)
+            throw new IOException("Server did not hand out a transfer token");
+        SocketChannel conn = SocketChannel.open(channel.getRemoteAddress());
+        ByteBuffer token = ByteBuffer.wrap(parts[1].getBytes(StandardCharsets.US_ASCII));
+        while (token.hasRemaining())
+            conn.write(token);
+        return conn;
+    }
+
+    private void expire(Call call) {
+        if (pending.get(call.id) != call)
+            return; // answered meanwhile
+        long rto;
+        synchronized (call) {
+            // a lost fragment means asking for the whole reply again
+            call.fragments.reset();
+            rto = call.attempts < Client.MAX_RETRIES ? rtt.backoff(call.rto) : -1;
+        }
+        if (rto < 0) {
+            finish(call, null, new SocketTimeoutException("No reply after " + Client.MAX_RETRIES + " attempts"));
+            return;
+        }
+        retransmits.increment();
+        transmit(call, rto);
+    }
+
+    // the server had no room for call, or it was over our rate limit:
+    // send it again after a backed-off, jittered pause rather than when
+    // the current timeout runs out, which may be any moment. False once
+    // out of attempts, the BUSY or THROTTLED reply is the answer
+    private boolean backOff(Call call) {
+        long rto;
+        synchronized (call) {
+            if (call.attempts >= Client.MAX_RETRIES)
+                return false;
+            if (call.timeout != null)
+                call.timeout.cancel(false);
+            rto = rtt.backoff(call.rto);
+            call.rto = rto;
+            // somewhere in the second half, so clients turned away together
+            // don't all come back together
+            long pause = rto / 2 + ThreadLocalRandom.current().nextLong(rto / 2 + 1);
+            call.timeout = timer.schedule(() -> {
+                if (pending.get(call.id) != call)
+                    return;
+                retransmits.increment();
+                transmit(call, rto);
+            }, pause, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    private void finish(Call call, Frame reply, Throwable failure) {
+        if (!pending.remove(call.id, call))
+            return; // the other of reply and timeout got here first
+        synchronized (call) {
+            if (call.timeout != null)
+                call.timeout.cancel(false);
+            // follow-ups (seq 0) wait on the server, not the network
+            if (reply != null && call.attempts == 1 && call.seq > 0)
+                rtt.sample(System.nanoTime() - call.sentAt);
+        }
+        synchronized (this) {
+            outstanding.remove(call.seq);
+        }
+        drain();
+        if (reply != null)
+            call.future.complete(reply);
+        else
+            call.future.completeExceptionally(failure);
+    }
+
+    /* ---------- replies ---------- */
+
+    private void receiveLoop() {
+        ByteBuffer in = ByteBuffer.allocate(Client.MAX_DATAGRAM);
+        while (!closed) {
+            try {
+                in.clear();
+                SocketAddress sender = channel.receive(in);
+                in.flip();
+                if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss)
+                    continue;
+                Frame reply = WireCodec.forPacket(in).decode(in, sender);
+                Call call = pending.get(reply.requestId());
+                if (call == null || reply.action() != call.action || reply.content().equals(call.answered))
+                    continue; // a duplicate, or for a request that gave up
+                if ((reply.status() == Client.BUSY || reply.status() == Client.THROTTLED) && backOff(call))
+                    continue;
+                if (reply.status() == Client.FRAGMENT) {
+                    String whole;
+                    synchronized (call) {
+                        whole = call.fragments.add(reply.content());
+                    }
+                    if (whole == null)
+                        continue;
+                    reply = new Frame(reply.action(), Client.SUCCESS, reply.username(), whole, sender,
+                            reply.codec(), reply.inflates(), reply.requestId());
+                }
+                finish(call, reply, null);
+            } catch (PortUnreachableException e) {
+                // server not up (yet); the requests time out and go again
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring malformed reply: " + e.getMessage());
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Receive failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /* ---------- state ---------- */
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    public long retransmits() {
+        return retransmits.sum();
+    }
+
+    public RttEstimator rtt() {
+        return rtt;
+    }
+
+    // for load tests: drops this share of requests on the way out and of
+    // replies on the way in, as a lossy network would. Transfers aren't
+    // affected, TCP hides loss anyway
+    public void simulateLoss(double rate) {
+        loss = rate;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    // fails whatever is still outstanding; doesn't log out
+    @Override
+    public void close() throws IOException {
+        ClosedChannelException e = new ClosedChannelException();
+        List<Call> unsent;
+        synchronized (this) {
+            closed = true;
+            unsent = new ArrayList<>(queued);
+            queued.clear();
+        }
+        for (Call call : unsent)
+            call.future.completeExceptionally(e);
+        channel.close();
+        timer.shutdownNow();
+        for (Call sent : pending.values())
+            finish(sent, null, e);
+    }
+
+    // never 0, that means "no id"
+    private synchronized int nextRequestId() {
+        if (++lastRequestId == 0)
+            lastRequestId = 1;
+        return lastRequestId;
+    }
+
+    private static final class Call {
+        final int id;
+        // numbers calls in the order they were made, without wrapping
+        final long seq;
+        final int action;
+        final ByteBuffer datagram;
+        final CompletableFuture<Frame> future = new CompletableFuture<>();
+        // the rest guarded by this call
+        final Fragments.Assembler fragments = new Fragments.Assembler();
+        long sentAt;
+        long rto;
+        int attempts = 0;
+        ScheduledFuture<?> timeout;
+        // for a follow-up, the first reply, which a replay repeats
+        String answered;
+
+        Call(int id, long seq, int action, ByteBuffer datagram) {
+            this.id = id;
+            this.seq = seq;
+            this.action = action;
+            this.datagram = datagram;
+        }
+    }
+}
@@ -1,63 +1,131 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ForumThread {
 
     private final String title;
     private final User creator;
+    // posts by stable id; a deleted post leaves a null tombstone so no id
+    // ever shifts. index turns ids into visible message numbers and back,
+    // live does the same for post positions so RDT can page
     private final List<ThreadMessage> posts = new ArrayList<>();
+    private MessageIndex index = new MessageIndex();
+    private MessageIndex live = new MessageIndex();
+    // attachment posts by filename; DLT only reaches messages, so entries
+    // are never dropped
+    private final Map<String, ThreadMessage> attachments = new HashMap<>();
+    // the whole thread as RDT payloads, built by the first full read; new
+    // posts are appended to it, EDT and DLT drop it. packedView is the same
+    // cut for clients that take deflated replies
+    private Fragments.Chunker view;
+    private Fragments.Chunker packedView;
     private final Path filePath;
-    private int nextMsgNum = 1;
+    private final MutationLog log;
+    private final Materializer materializer;
+    // LSN of the last mutation reflected in posts; recovery skips log
+    // records at or below it
+    private long lastLsn = 0;
+    // set once RMV has taken the thread out of the manager; late writers
+    // that still hold a reference become no-ops instead of recreating files
+    private volatile boolean removed = false;
 
-    public ForumThread(String title, User creator, Path root) {
+    // what the background materializer still owes the thread file: either
+    // the slots past flushedPosts, or (after EDT/DLT) a full rewrite
+    private int flushedPosts = 0;
+    private boolean rewriteNeeded = true;
+    // serializes file writes against RMV deleting the file
+    private final Object fileLock = new Object();
+
+    public ForumThread(String title, User creator, Path root, MutationLog log, Materializer materializer) {
         this.title = title;
         this.creator = creator;
         this.filePath = root.resolve(title);
+        this.log = log;
+        this.materializer = materializer;
     }
 
-    public synchronized void addMessage(String text, User author) throws IOException {
-        ThreadMessage p = new ThreadMessage(author, text,
-                ThreadMessage.PostType.MESSAGE,
-                nextMsgNum++);
-        posts.add(p);
-        appendToFile(p.toString());
+    // every mutator changes memory and queues its log record under the
+    // monitor, then waits for the commit after releasing it, so writers to
+    // the same thread still share one group commit. Request paths time how
+    // long they wait for the monitor (Metrics.lockWait)
+    public void addMessage(String text, User author) throws IOException {
+        MutationLog.Commit commit;
+        long waitFrom = System.nanoTime();
+        synchronized (this) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            if (removed)
+                return;
+            applyPost(author, text);
+            commit = logged(Mutation.post(title, author.name(), text));
+        }
+        materializer.markDirty(this);
+        commit.await();
     }
 
-    public synchronized void addAttachment(String filename, User author) throws IOException {
-        ThreadMessage message = new ThreadMessage(author, filename,
-                ThreadMessage.PostType.ATTACHMENT, -1);
-        posts.add(message);
-        appendToFile(message.toString());
+    // the post takes over the caller's reference on blob; false if the
+    // thread has gone or already has a file by that name, and the
+    // reference is still the caller's. Once it is posted the reference is
+    // the post's, even if the log then fails to take it
+    public boolean addAttachment(String filename, String blob, User author) throws IOException {
+        MutationLog.Commit commit;
+        long waitFrom = System.nanoTime();
+        synchronized (this) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            // two uploads of one name can both pass the server's check
+            if (removed || attachments.containsKey(filename))
+                return false;
+            applyAttachment(author, filename, blob);
+            commit = logged(Mutation.attach(title, author.name(), filename, blob));
+        }
+        materializer.markDirty(this);
+        commit.await();
+        return true;
     }
 
-    public synchronized int deleteMessage(String requester, int postNum) throws IOException {
-        Optional<ThreadMessage> foundThread = posts.stream()
-                .filter(post -> post.type() == ThreadMessage.PostType.MESSAGE
-                        && post.number() == postNum)
-                .findFirst();
-        if (foundThread.isEmpty())
-            return 2; // not found
-        if (!foundThread.get().author().name().equals(requester))
-            return 1; // not owner
+    public int deleteMessage(String requester, int postNum) throws IOException {
+        MutationLog.Commit commit;
+        long waitFrom = System.nanoTime();
+        synchronized (this) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            if (removed)
+                return 2;
+            ThreadMessage found = findMessage(postNum);
+            if (found == null)
+                return 2; // not found
+            if (!found.author().name().equals(requester))
+                return 1; // not owner
 
-        posts.remove(foundThread.get());
-        renumber();
-        rewriteFile();
+            applyDelete(found);
+            commit = logged(Mutation.delete(title, found.id()));
+        }
+        materializer.markDirty(this);
+        commit.await();
         return 0;
     }
 
-    public synchronized int editMessage(String requester, int num, String newText) throws IOException {
-        for (ThreadMessage p : posts) {
-            if (p.type() == ThreadMessage.PostType.MESSAGE && p.number() == num) {
-                if (!p.author().name().equals(requester))
-                    return 1;
-                p.setText(newText);
-                rewriteFile();
-                return 0;
-            }
+    public int editMessage(String requester, int num, String newText) throws IOException {
+        MutationLog.Commit commit;
+        long waitFrom = System.nanoTime();
+        synchronized (this) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            if (removed)
+                return 2;
+            ThreadMessage found = findMessage(num);
+            if (found == null)
+                return 2;
+            if (!found.author().name().equals(requester))
+                return 1;
+
+            applyEdit(found, newText);
+            commit = logged(Mutation.edit(title, found.id(), newText));
         }
-        return 2;
+        materializer.markDirty(this);
+        commit.await();
+        return 0;
     }
 
     public String getTitle() {
@@ -72,54 +140,336 @@ public class ForumThread {
         return filePath;
     }
 
-    public List<ThreadMessage> getPosts() {
-        return posts;
+    public synchronized int postCount() {
+        return live.total();
+    }
+
+    public synchronized boolean isEmpty() {
+        return live.total() == 0;
+    }
+
+    // both called by ThreadManager while it holds this thread's monitor, so
+    // CRT is logged before any post and RMV after the last one
+    synchronized MutationLog.Commit logCreated() {
+        return logged(Mutation.createThread(title, creator.name()));
+    }
+
+    // a post read off an older server's thread file (LegacyImport), applied
+    // and logged like a live one; attachments have no blob, their bytes
+    // stay where that server put them
+    synchronized MutationLog.Commit imported(ThreadMessage.PostType type, User author, String text) {
+        if (type == ThreadMessage.PostType.ATTACHMENT) {
+            applyAttachment(author, text, null);
+            return logged(Mutation.attach(title, author.name(), text, null));
+        }
+        applyPost(author, text);
+        return logged(Mutation.post(title, author.name(), text));
+    }
+
+    synchronized MutationLog.Commit markRemoved() {
+        removed = true;
+        return log.append(Mutation.removeThread(title));
     }
 
     public synchronized boolean hasFile(String filename) {
-        return posts.stream().anyMatch(p -> p.type() == ThreadMessage.PostType.ATTACHMENT
-                && p.text().equals(filename));
+        return attachments.containsKey(filename);
     }
 
-    public synchronized String readFile() {
-        if (posts.isEmpty())
-            return "Thread " + title + " is empty";
-        return posts.stream()
-                .map(ThreadMessage::toString)
-                .reduce((a, b) -> a + ';' + b)
-                .orElse("");
+    // null if nothing by that name was posted here
+    public synchronized ThreadMessage attachment(String filename) {
+        return attachments.get(filename);
     }
 
-    void createFile() throws IOException {
-        Files.writeString(filePath, creator.name() + System.lineSeparator());
+    synchronized List<ThreadMessage> attachments() {
+        return new ArrayList<>(attachments.values());
     }
 
-    private void appendToFile(String line) throws IOException {
-        try (BufferedWriter bw = Files.newBufferedWriter(filePath,
-                StandardOpenOption.APPEND)) {
-            bw.write(line);
-            bw.newLine();
-        }
+    public String readFile() {
+        StringJoiner joined = new StringJoiner(";");
+        if (readPosts(0, Integer.MAX_VALUE, joined::add) == 0)
+            return "Thread " + title + " is empty";
+        return joined.toString();
     }
 
-    private void rewriteFile() throws IOException {
-        try (BufferedWriter bw = Files.newBufferedWriter(filePath,
-                StandardOpenOption.TRUNCATE_EXISTING)) {
-            bw.write(creator.name());
-            bw.newLine();
-            for (ThreadMessage p : posts) {
-                bw.write(p.toString());
-                bw.newLine();
+    // payloads for a full RDT, from the cached view when there is one
+    public List<String> view(boolean packed) {
+        long waitFrom = System.nanoTime();
+        synchronized (this) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            Fragments.Chunker cached = packed ? packedView : view;
+            if (cached != null) {
+                ViewStats.threadHits.increment();
+                return cached.chunks();
             }
+            ViewStats.threadMisses.increment();
+            Fragments.Chunker built = new Fragments.Chunker(true, Fragments.budget(packed));
+            collectPosts(0, Integer.MAX_VALUE, built::add);
+            if (packed)
+                packedView = built;
+            else
+                view = built;
+            return built.chunks();
         }
     }
 
-    private void renumber() {
-        int n = 1;
-        for (ThreadMessage p : posts) {
+    // hands up to limit formatted posts, starting at the offset-th live post
+    // (0-based), to out and returns how many it handed over; O(log n) to
+    // find the start, then one step per slot
+    public int readPosts(int offset, int limit, Consumer<String> out) {
+        long waitFrom = System.nanoTime();
+        synchronized (this) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            return collectPosts(offset, limit, out);
+        }
+    }
+
+    // readPosts, with the monitor already held
+    private int collectPosts(int offset, int limit, Consumer<String> out) {
+        int slot = live.find(offset + 1);
+        if (slot < 0)
+            return 0;
+        int number = slot == 0 ? 0 : index.rank(slot - 1);
+        int sent = 0;
+        for (; slot < posts.size() && sent < limit; slot++) {
+            ThreadMessage p = posts.get(slot);
+            if (p == null)
+                continue;
             if (p.type() == ThreadMessage.PostType.MESSAGE)
-                p.setNumber(n++);
+                number++;
+            out.accept(p.format(number));
+            sent++;
+        }
+        return sent;
+    }
+
+    /* ---------- in-memory changes, shared by live requests and replay ---------- */
+
+    private MutationLog.Commit logged(Mutation m) {
+        MutationLog.Commit commit = log.append(m);
+        lastLsn = commit.lsn();
+        return commit;
+    }
+
+    // by visible number, O(log n)
+    private ThreadMessage findMessage(int num) {
+        int slot = index.find(num);
+        return slot < 0 ? null : posts.get(slot);
+    }
+
+    // by stable id, for replay
+    private ThreadMessage messageById(int id) {
+        return id >= 0 && id < posts.size() ? posts.get(id) : null;
+    }
+
+    private void applyPost(User author, String text) {
+        int id = index.append(true);
+        live.append(true);
+        ThreadMessage post = new ThreadMessage(author, text, ThreadMessage.PostType.MESSAGE, id);
+        posts.add(post);
+        appendToView(post.format(index.total()));
+    }
+
+    private void applyAttachment(User author, String filename, String blob) {
+        int id = index.append(false);
+        live.append(true);
+        ThreadMessage post = new ThreadMessage(author, filename, ThreadMessage.PostType.ATTACHMENT, id, blob);
+        posts.add(post);
+        attachments.put(filename, post);
+        appendToView(post.format(0));
+    }
+
+    // tombstone the slot; later messages move down a number through the
+    // index without being touched
+    private void applyDelete(ThreadMessage message) {
+        posts.set(message.id(), null);
+        if (message.type() == ThreadMessage.PostType.MESSAGE)
+            index.remove(message.id());
+        live.remove(message.id());
+        rewriteNeeded = true;
+        dropView();
+    }
+
+    private void applyEdit(ThreadMessage message, String newText) {
+        message.setText(newText);
+        rewriteNeeded = true;
+        dropView();
+    }
+
+    private void appendToView(String line) {
+        if (view != null) {
+            view.add(line);
+            ViewStats.threadAppends.increment();
+        }
+        if (packedView != null) {
+            packedView.add(line);
+            ViewStats.threadAppends.increment();
+        }
+    }
+
+    // every later number shifts (DLT) or one post changes mid-view (EDT)
+    private void dropView() {
+        if (view != null) {
+            view = null;
+            ViewStats.threadInvalidations.increment();
+        }
+        if (packedView != null) {
+            packedView = null;
+            ViewStats.threadInvalidations.increment();
+        }
+    }
+
+    // re-apply a logged mutation during recovery; nothing is logged again
+    synchronized void replay(MutationLog.Entry entry, Function<String, User> users) {
+        Mutation m = entry.mutation();
+        switch (m.type()) {
+            case POST:
+                applyPost(users.apply(m.user()), m.text());
+                break;
+            case ATTACH:
+                applyAttachment(users.apply(m.user()), m.attachedFile(), m.attachedBlob());
+                break;
+            case DELETE:
+                ThreadMessage deleted = messageById(m.number());
+                if (deleted != null)
+                    applyDelete(deleted);
+                break;
+            case EDIT:
+                ThreadMessage edited = messageById(m.number());
+                if (edited != null)
+                    applyEdit(edited, m.text());
+                break;
+            default:
+                break;
+        }
+        lastLsn = entry.lsn();
+    }
+
+    synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    /* ---------- snapshot encoding ---------- */
+
+    // title | creator | last LSN | slot count | live count | live posts
+    // (type, id, author, text, blob digest or ""); tombstones are implied
+    // by the missing ids
+    synchronized byte[] snapshot() {
+        int size = 8 + 4 + 4;
+        byte[] t = Snapshot.utf8(title);
+        byte[] c = Snapshot.utf8(creator.name());
+        size += 4 + t.length + 4 + c.length;
+        byte[][] authors = new byte[posts.size()][];
+        byte[][] texts = new byte[posts.size()][];
+        byte[][] blobs = new byte[posts.size()][];
+        for (int i = 0; i < posts.size(); i++) {
+            ThreadMessage p = posts.get(i);
+            if (p == null)
+                continue;
+            authors[i] = Snapshot.utf8(p.author().name());
+            texts[i] = Snapshot.utf8(p.text());
+            blobs[i] = Snapshot.utf8(p.blob() == null ? "" : p.blob());
+            size += 1 + 4 + 4 + authors[i].length + 4 + texts[i].length + 4 + blobs[i].length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        Snapshot.putBytes(buf, t);
+        Snapshot.putBytes(buf, c);
+        buf.putLong(lastLsn).putInt(posts.size()).putInt(live.total());
+        for (int i = 0; i < posts.size(); i++) {
+            ThreadMessage p = posts.get(i);
+            if (p == null)
+                continue;
+            buf.put((byte) p.type().ordinal()).putInt(p.id());
+            Snapshot.putBytes(buf, authors[i]);
+            Snapshot.putBytes(buf, texts[i]);
+            Snapshot.putBytes(buf, blobs[i]);
+        }
+        return buf.array();
+    }
+
+    static ForumThread fromSnapshot(ByteBuffer buf, Function<String, User> users, Path root,
+            MutationLog log, Materializer materializer) {
+        String title = Snapshot.getString(buf);
+        ForumThread thread = new ForumThread(title, users.apply(Snapshot.getString(buf)), root, log, materializer);
+        thread.lastLsn = buf.getLong();
+        int slots = buf.getInt();
+        int count = buf.getInt();
+        ThreadMessage[] posts = new ThreadMessage[slots];
+        boolean[] counted = new boolean[slots];
+        boolean[] present = new boolean[slots];
+        ThreadMessage.PostType[] types = ThreadMessage.PostType.values();
+        for (int i = 0; i < count; i++) {
+            ThreadMessage.PostType type = types[buf.get()];
+            int id = buf.getInt();
+            User author = users.apply(Snapshot.getString(buf));
+            String text = Snapshot.getString(buf);
+            String blob = Snapshot.getString(buf);
+            posts[id] = new ThreadMessage(author, text, type, id, blob.isEmpty() ? null : blob);
+            if (type == ThreadMessage.PostType.ATTACHMENT)
+                thread.attachments.put(text, posts[id]);
+            counted[id] = type == ThreadMessage.PostType.MESSAGE;
+            present[id] = true;
+        }
+        thread.posts.addAll(Arrays.asList(posts));
+        thread.index = MessageIndex.of(counted, slots);
+        thread.live = MessageIndex.of(present, slots);
+        return thread;
+    }
+
+    /* ---------- thread file ---------- */
+
+    void createFile() {
+        materializer.markDirty(this);
+    }
+
+    void deleteFile() throws IOException {
+        synchronized (fileLock) {
+            Files.deleteIfExists(filePath);
+        }
+    }
+
+    // called from the materializer thread only
+    void materialize() throws IOException {
+        List<String> lines;
+        boolean rewrite;
+        synchronized (this) {
+            if (removed)
+                return;
+            rewrite = rewriteNeeded;
+            int from = rewrite ? 0 : flushedPosts;
+            lines = new ArrayList<>(posts.size() - from + 1);
+            if (rewrite)
+                lines.add(creator.name());
+            int number = from == 0 ? 0 : index.rank(from - 1);
+            for (int i = from; i < posts.size(); i++) {
+                ThreadMessage p = posts.get(i);
+                if (p == null)
+                    continue;
+                if (p.type() == ThreadMessage.PostType.MESSAGE)
+                    number++;
+                lines.add(p.format(number));
+            }
+            rewriteNeeded = false;
+            flushedPosts = posts.size();
+        }
+
+        synchronized (fileLock) {
+            if (removed)
+                return;
+            try {
+                if (rewrite) {
+                    Path tmp = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+                    Files.write(tmp, lines);
+                    Files.move(tmp, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else if (!lines.isEmpty()) {
+                    Files.write(filePath, lines, StandardOpenOption.APPEND);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    rewriteNeeded = true;
+                }
+                throw e;
+            }
         }
-        nextMsgNum = n;
     }
 }
@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+// RDT replies that don't fit one datagram go out as a run of FRAGMENT
+// replies whose content is "<seq> <more> <posts>": seq counts from 0, more
+// is 0 on the last fragment, posts are ';' separated as in a normal reply.
+// A page that fits in one fragment is still sent as a single plain reply,
+// so small threads look exactly as they always did.
+//
+// Clients that take deflated replies get up to PACKED_BUDGET worth of posts
+// per fragment instead. Forum text usually shrinks well over 4x, but a
+// packed payload is only sent as it is if it really deflates to
+// PAYLOAD_BUDGET; one that doesn't is cut again at the size it would, down
+// to PAYLOAD_BUDGET for text that doesn't shrink at all, so every fragment
+// fits the same datagram either way.
+public final class Fragments {
+
+    // post bytes per fragment; leaves room for the frame header, username
+    // and sequence prefix inside Server.MAX_SIZE
+    public static final int PAYLOAD_BUDGET = 768,
+            PACKED_BUDGET = 4 * PAYLOAD_BUDGET;
+
+    private Fragments() {
+    }
+
+    public interface Sink {
+        void send(boolean fragment, String content);
+    }
+
+    public static int budget(boolean deflated) {
+        return deflated && Compression.ENABLED ? PACKED_BUDGET : PAYLOAD_BUDGET;
+    }
+
+    // cuts a run of posts into fragment payloads of at most budget bytes
+    // (a single oversized post gets a payload of its own); with a budget
+    // over PAYLOAD_BUDGET the payloads are packed, see above. Keeps the
+    // closed payloads only if asked to, a cached thread view does, a
+    // streaming reply doesn't
+    public static final class Chunker {
+        private final List<String> closed;
+        private final int budget;
+        private final StringBuilder open;
+        private int openBytes = 0;
+        // the posts in open, only when packing: they are cut again if open
+        // doesn't deflate small enough
+        private final List<String> openPosts;
+
+        public Chunker(boolean retain, int budget) {
+            this.closed = retain ? new ArrayList<>() : null;
+            this.budget = budget;
+            this.open = new StringBuilder(budget);
+            this.openPosts = budget > PAYLOAD_BUDGET ? new ArrayList<>() : null;
+        }
+
+        // returns the payloads this post closed, usually none
+        public List<String> add(String post) {
+            int bytes = utf8Length(post);
+            List<String> full = List.of();
+            if (open.length() > 0 && openBytes + 1 + bytes > budget) {
+                full = tail();
+                if (closed != null)
+                    closed.addAll(full);
+                open.setLength(0);
+                openBytes = 0;
+                if (openPosts != null)
+                    openPosts.clear();
+            }
+            if (open.length() > 0) {
+                open.append(';');
+                openBytes++;
+            }
+            open.append(post);
+            openBytes += bytes;
+            if (openPosts != null)
+                openPosts.add(post);
+            return full;
+        }
+
+        // the open payload, as one or, if it is packed and doesn't deflate
+        // to PAYLOAD_BUDGET, as several payloads
+        List<String> tail() {
+            String payload = open.toString();
+            if (openPosts == null || openBytes <= PAYLOAD_BUDGET)
+                return List.of(payload);
+            int deflated = deflatedLength(payload);
+            if (deflated >= 0 && deflated <= PAYLOAD_BUDGET)
+                return List.of(payload);
+            // the plain size that deflates to about PAYLOAD_BUDGET at this
+            // ratio, less a little as the ratio varies; every piece is
+            // checked again, and text that doesn't shrink is cut plain
+            int smaller = deflated < 0 ? PAYLOAD_BUDGET
+                    : Math.max(PAYLOAD_BUDGET, (int) ((long) openBytes * PAYLOAD_BUDGET / deflated * 7 / 8));
+            Chunker recut = new Chunker(true, smaller);
+            for (String post : openPosts)
+                recut.add(post);
+            return recut.chunks();
+        }
+
+        // every payload so far, the open one last
+        public List<String> chunks() {
+            List<String> all = new ArrayList<>(closed.size() + 1);
+            all.addAll(closed);
+            if (open.length() > 0)
+                all.addAll(tail());
+            return all;
+        }
+    }
+
+    // server side: takes posts one at a time and sends a fragment as soon
+    // as one is full, so the full reply is never held as one string
+    public static final class Writer {
+        private final Sink sink;
+        private final Chunker chunker;
+        private int seq = 0;
+
+        public Writer(Sink sink, int budget) {
+            this.sink = sink;
+            this.chunker = new Chunker(false, budget);
+        }
+
+        public void add(String post) {
+            for (String full : chunker.add(post))
+                sink.send(true, seq++ + " 1 " + full);
+        }
+
+        public void finish() {
+            List<String> last = chunker.tail();
+            if (seq == 0 && last.size() == 1) {
+                sink.send(false, last.get(0));
+                return;
+            }
+            for (int i = 0; i < last.size(); i++)
+                sink.send(true, seq++ + " " + (i < last.size() - 1 ? 1 : 0) + " " + last.get(i));
+        }
+    }
+
+    // send payloads that were cut earlier, e.g. from a cached view
+    public static void send(List<String> chunks, Sink sink) {
+        if (chunks.size() == 1) {
+            sink.send(false, chunks.get(0));
+            return;
+        }
+        for (int seq = 0; seq < chunks.size(); seq++)
+            sink.send(true, seq + " " + (seq < chunks.size() - 1 ? 1 : 0) + " " + chunks.get(seq));
+    }
+
+    // client side: collects fragments in any order, duplicates included
+    public static final class Assembler {
+        private final Map<Integer, String> chunks = new HashMap<>();
+        private int last = -1;
+
+        // the reassembled posts once every fragment is in, null before
+        public String add(String fragment) {
+            String[] parts = fragment.split(" ", 3);
+            if (parts.length < 2)
+                throw new IllegalArgumentException("Malformed fragment: " + fragment);
+            int seq = Integer.parseInt(parts[0]);
+            chunks.put(seq, parts.length > 2 ? parts[2] : "");
+            if (parts[1].equals("0"))
+                last = seq;
+            if (last < 0)
+                return null;
+
+            StringJoiner posts = new StringJoiner(";");
+            for (int i = 0; i <= last; i++) {
+                String chunk = chunks.get(i);
+                if (chunk == null)
+                    return null;
+                posts.add(chunk);
+            }
+            reset();
+            return posts.toString();
+        }
+
+        public void reset() {
+            chunks.clear();
+            last = -1;
+        }
+    }
+
+    // payload's length once deflated the way BinaryCodec would, -1 if it
+    // wouldn't shrink and so goes out plain
+    private static int deflatedLength(String payload) {
+        if (!Compression.ENABLED)
+            return -1;
+        byte[] utf8 = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(utf8.length);
+        return Compression.deflate(ByteBuffer.wrap(utf8), out) ? out.position() : -1;
+    }
+
+    static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                bytes++;
+            else if (c < 0x800 || Character.isSurrogate(c))
+                bytes += 2; // a surrogate pair is 4 bytes in total
+            else
+                bytes += 3;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,81 @@
+import java.net.SocketAddress;
+
+// a datagram that has already been split into its fields, so workers
+// never have to re-parse the raw packet
+public final class Frame {
+
+    private final int action;
+    private final int status;
+    private final String username;
+    private final String content;
+    private final SocketAddress sender;
+    // format the frame arrived in, replies go back the same way
+    private final WireCodec codec;
+    // the sender can take deflated replies, see Compression
+    private final boolean inflates;
+    // the client's number for the request, the same on every retry; 0 if
+    // it didn't send one (text format)
+    private final int requestId;
+    // the session LOGIN handed out, on every request after it and on the
+    // LOGIN reply itself; 0 for none (text format, or not logged in)
+    private final long session;
+
+    public Frame(int action, int status, String username, String content,
+            SocketAddress sender, WireCodec codec) {
+        this(action, status, username, content, sender, codec, false, 0);
+    }
+
+    public Frame(int action, int status, String username, String content,
+            SocketAddress sender, WireCodec codec, boolean inflates, int requestId) {
+        this(action, status, username, content, sender, codec, inflates, requestId, 0);
+    }
+
+    public Frame(int action, int status, String username, String content,
+            SocketAddress sender, WireCodec codec, boolean inflates, int requestId, long session) {
+        this.action = action;
+        this.status = status;
+        this.username = username;
+        this.content = content;
+        this.sender = sender;
+        this.codec = codec;
+        this.inflates = inflates;
+        this.requestId = requestId;
+        this.session = session;
+    }
+
+    public int action() {
+        return action;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    public String content() {
+        return content;
+    }
+
+    public SocketAddress sender() {
+        return sender;
+    }
+
+    public WireCodec codec() {
+        return codec;
+    }
+
+    public boolean inflates() {
+        return inflates;
+    }
+
+    public int requestId() {
+        return requestId;
+    }
+
+    public long session() {
+        return session;
+    }
+}
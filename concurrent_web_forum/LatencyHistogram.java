@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// latencies in microseconds, bucketed the way HdrHistogram does it: exact
+// below 128 us, then 64 linear buckets per power of two, so any recorded
+// value is reported within 1/64 (1.6%) of itself from 1 us to hours, in a
+// fixed 30 KB. Recording is lock free and safe from any thread
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 7,
+            EXACT = 1 << SUB_BITS,
+            HALF = EXACT / 2,
+            BUCKETS = EXACT + (63 - SUB_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1_000));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(index(micros));
+        total.increment();
+        sum.add(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double meanMicros() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long maxMicros() {
+        return max.get();
+    }
+
+    // the value at or below which p percent of recordings fall, reported as
+    // the top of its bucket
+    public long percentileMicros(double p) {
+        long n = count();
+        if (n == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestEquivalent(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int index(long micros) {
+        if (micros < EXACT)
+            return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BITS - 1);
+        return EXACT + (shift - 1) * HALF + (int) (micros >>> shift) - HALF;
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < EXACT)
+            return index;
+        int shift = (index - EXACT) / HALF + 1;
+        long top = (index - EXACT) % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
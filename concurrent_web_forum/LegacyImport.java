@@ -0,0 +1,108 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// one-time import of what a server from before the log left in its
+// directory: a file per thread, named by its title, with the creator on the
+// first line and then the posts as RDT shows them
+//
+//   3 yoda: do or do not
+//   luke uploaded map.txt
+//
+// and each attachment next to it as "<title>-<filename>". Only runs on a
+// directory with neither a snapshot nor a log segment. Every thread goes
+// into the log as if it had just been posted, so from then on it recovers
+// like any other; attachments stay where they are and are served from
+// there (ThreadManager's legacy path), nothing is copied.
+//
+// The old server kept other files in the same directory, so a file only
+// counts as a thread if its first line names a user from credentials.txt
+// and every other line parses as a post, and it isn't one of the
+// attachments of a thread that does
+final class LegacyImport {
+
+    private static final Pattern MESSAGE = Pattern.compile("(\\d+) (\\S+): (.*)"),
+            UPLOAD = Pattern.compile("(\\S+) uploaded (\\S+)");
+
+    private LegacyImport() {
+    }
+
+    static Map<String, ForumThread> load(Path directory, UserList users, MutationLog log,
+            Materializer materializer) throws IOException {
+        Map<String, List<String>> files = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            for (Path file : stream) {
+                List<String> lines = threadLines(file, users);
+                if (lines != null)
+                    files.put(file.getFileName().toString(), lines);
+            }
+        }
+        // an attachment that happens to parse as a thread is still an attachment
+        List<String> attachments = new ArrayList<>();
+        files.forEach((title, lines) -> {
+            for (String line : lines) {
+                Matcher m = UPLOAD.matcher(line);
+                if (m.matches())
+                    attachments.add(title + '-' + m.group(2));
+            }
+        });
+        files.keySet().removeAll(attachments);
+
+        Map<String, ForumThread> threads = new HashMap<>();
+        MutationLog.Commit last = null;
+        for (Map.Entry<String, List<String>> e : files.entrySet()) {
+            List<String> lines = e.getValue();
+            ForumThread thread = new ForumThread(e.getKey(), users.resolve(lines.get(0)), directory, log,
+                    materializer);
+            last = thread.logCreated();
+            for (String line : lines.subList(1, lines.size())) {
+                // threadLines has checked that it is one or the other
+                Matcher message = MESSAGE.matcher(line);
+                Matcher upload = UPLOAD.matcher(line);
+                if (message.matches())
+                    last = thread.imported(ThreadMessage.PostType.MESSAGE, users.resolve(message.group(2)),
+                            message.group(3));
+                else if (upload.matches())
+                    last = thread.imported(ThreadMessage.PostType.ATTACHMENT, users.resolve(upload.group(1)),
+                            upload.group(2));
+            }
+            threads.put(e.getKey(), thread);
+        }
+        if (last != null)
+            last.await();
+        return threads;
+    }
+
+    // the file's non-blank lines if it looks like a thread file, else
+    // null; gives up at the first line that doesn't fit, so big attachments
+    // and binaries are never read whole
+    private static List<String> threadLines(Path file, UserList users) throws IOException {
+        String title = file.getFileName().toString();
+        if (title.contains(" ") || title.endsWith(".tmp"))
+            return null;
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            for (String line; (line = in.readLine()) != null;) {
+                if (line.isBlank())
+                    continue;
+                boolean fits = lines.isEmpty() ? users.exists(line)
+                        : MESSAGE.matcher(line).matches() || UPLOAD.matcher(line).matches();
+                if (!fits)
+                    return null;
+                lines.add(line);
+            }
+        } catch (CharacterCodingException e) {
+            return null; // not text
+        }
+        return lines.isEmpty() ? null : lines;
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// drives a running Server the way a crowd of clients would, so a change
+// can be measured before and after. Each simulated client logs in as its
+// own user on its own ForumClient and keeps depth requests going back to
+// back, picking the command from the mix and the thread by Zipf popularity
+// among a pool of seeded threads. Reports throughput and latency
+// percentiles per command, after a warm-up that isn't counted.
+//
+// usage: java LoadGenerator <server_port> [name=value ...]
+//
+//   host=127.0.0.1   clients=16   depth=1   seconds=30   warmup=5
+//   threads=64       zipf=1.0 (0 is uniform)   seed=4 (posts per thread)
+//   mix=MSG:40,RDT:25,LST:10,EDT:10,DLT:5,CRT:5,UPD:3,DWN:2
+//   payload=64 (MSG/EDT bytes)   attachment=64k (UPD size)   page=0 (RDT
+//   limit, 0 for the whole thread)   loss=0 (share dropped each way)
+//   user=load   password=load   cleanup=true (remove what was created)
+//
+// EDT and DLT pick a post number at random, so some land on other users'
+// posts and are refused; those count as "fail", not as errors
+public class LoadGenerator {
+
+    private static final String[] OPS = { "CRT", "MSG", "DLT", "EDT", "LST", "RDT", "UPD", "DWN" };
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("host", "127.0.0.1"), Map.entry("clients", "16"), Map.entry("depth", "1"),
+            Map.entry("seconds", "30"), Map.entry("warmup", "5"), Map.entry("threads", "64"),
+            Map.entry("zipf", "1.0"), Map.entry("seed", "4"),
+            Map.entry("mix", "MSG:40,RDT:25,LST:10,EDT:10,DLT:5,CRT:5,UPD:3,DWN:2"),
+            Map.entry("payload", "64"), Map.entry("attachment", "64k"), Map.entry("page", "0"),
+            Map.entry("loss", "0"), Map.entry("user", "load"), Map.entry("password", "load"),
+            Map.entry("cleanup", "true"));
+    // a single command that takes longer than this counts as an error
+    private static final long OP_TIMEOUT_S = 60;
+
+    private final Map<String, String> options;
+    private final int[] mix;
+    private final ZipfSampler popularity;
+    private final String[] pool;
+    // posts each pool thread is believed to hold, for picking EDT/DLT numbers
+    private final AtomicIntegerArray posts;
+    // {thread, file} of every attachment there is to download
+    private final List<String[]> attachments = Collections.synchronizedList(new ArrayList<>());
+    private final String text;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+    private final LongAdder[] failures = new LongAdder[OPS.length];
+    private final LongAdder[] errors = new LongAdder[OPS.length];
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java LoadGenerator <server_port> [name=value ...]");
+            return;
+        }
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        options.put("port", args[0]);
+        for (String arg : Arrays.copyOfRange(args, 1, args.length)) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown option " + arg + ", expected one of " + DEFAULTS.keySet());
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.mix = parseMix(options.get("mix"));
+        this.pool = new String[number("threads")];
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = options.get("user") + "-t" + i;
+        this.posts = new AtomicIntegerArray(pool.length);
+        this.popularity = new ZipfSampler(pool.length, Double.parseDouble(options.get("zipf")));
+        this.text = words(Math.max(1, number("payload")) * 4);
+        for (int op = 0; op < OPS.length; op++) {
+            latency[op] = new LatencyHistogram();
+            failures[op] = new LongAdder();
+            errors[op] = new LongAdder();
+        }
+    }
+
+    private void run() throws Exception {
+        InetSocketAddress server = new InetSocketAddress(options.get("host"), number("port"));
+        int clientCount = number("clients");
+        int depth = number("depth");
+        double loss = Double.parseDouble(options.get("loss"));
+        Path dir = Files.createTempDirectory("forum-load");
+
+        List<Simulated> clients = new ArrayList<>();
+        try {
+            for (int c = 0; c < clientCount; c++)
+                clients.add(new Simulated(new ForumClient(server, options.get("user") + c)));
+            List<CompletableFuture<Frame>> logins = new ArrayList<>();
+            for (Simulated client : clients)
+                logins.add(client.forum.login(options.get("password")));
+            for (int c = 0; c < clientCount; c++) {
+                Frame reply = logins.get(c).get();
+                if (reply.status() != Client.SUCCESS)
+                    throw new IOException(clients.get(c).forum.username() + ": " + reply.content());
+            }
+            setUp(clients.get(0), dir);
+            for (Simulated client : clients)
+                client.forum.simulateLoss(loss);
+
+            System.out.printf("%d clients x %d deep, %d threads (zipf %s), %d s + %d s warm-up, loss %s%n",
+                    clientCount, depth, pool.length, options.get("zipf"), number("seconds"), number("warmup"),
+                    options.get("loss"));
+            long start = System.nanoTime();
+            long measureFrom = start + TimeUnit.SECONDS.toNanos(number("warmup"));
+            long until = measureFrom + TimeUnit.SECONDS.toNanos(number("seconds"));
+            List<Thread> workers = new ArrayList<>();
+            AtomicInteger workerIds = new AtomicInteger();
+            for (Simulated client : clients) {
+                for (int d = 0; d < depth; d++) {
+                    Path scratch = dir.resolve("w" + workerIds.getAndIncrement());
+                    workers.add(Thread.startVirtualThread(() -> work(client, scratch, measureFrom, until)));
+                }
+            }
+            for (Thread worker : workers)
+                worker.join();
+            report(number("seconds"), clients);
+
+            for (Simulated client : clients)
+                client.forum.simulateLoss(0);
+            if (Boolean.parseBoolean(options.get("cleanup")))
+                cleanUp(clients);
+        } finally {
+            for (Simulated client : clients) {
+                try {
+                    client.forum.logout().get(OP_TIMEOUT_S, TimeUnit.SECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    System.err.println("Logout of " + client.forum.username() + " failed: " + e.getMessage());
+                }
+                client.forum.close();
+            }
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator)
+                    Files.deleteIfExists(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /* ---------- set up / clean up ---------- */
+
+    // the thread pool with a few posts each, and one attachment to download.
+    // Left over from an earlier run without cleanup is fine too
+    private void setUp(Simulated first, Path dir) throws Exception {
+        List<CompletableFuture<Frame>> created = new ArrayList<>();
+        for (String title : pool)
+            created.add(first.forum.createThread(title));
+        for (CompletableFuture<Frame> f : created)
+            f.get();
+
+        List<CompletableFuture<Frame>> seeded = new ArrayList<>();
+        for (int t = 0; t < pool.length; t++) {
+            for (int i = 0; i < number("seed"); i++)
+                seeded.add(first.forum.post(pool[t], payload()));
+        }
+        for (CompletableFuture<Frame> f : seeded)
+            f.get();
+        for (int t = 0; t < pool.length; t++)
+            posts.set(t, number("seed"));
+
+        if (mix[index("DWN")] > 0) {
+            Path file = dir.resolve("seed.bin");
+            writeAttachment(file, 0);
+            Frame reply = first.forum.upload(pool[0], file).get(OP_TIMEOUT_S, TimeUnit.SECONDS);
+            // already there from an earlier run is just as good
+            if (reply.status() == Client.SUCCESS || reply.content().contains("already been posted"))
+                attachments.add(new String[] { pool[0], "seed.bin" });
+            else
+                System.err.println("No attachment to download: " + reply.content());
+        }
+    }
+
+    private void cleanUp(List<Simulated> clients) throws Exception {
+        List<CompletableFuture<Frame>> removed = new ArrayList<>();
+        for (String title : pool)
+            removed.add(clients.get(0).forum.remove(title));
+        for (Simulated client : clients) {
+            for (String title : client.created)
+                removed.add(client.forum.remove(title));
+        }
+        for (CompletableFuture<Frame> f : removed)
+            f.get();
+    }
+
+    /* ---------- the load ---------- */
+
+    private void work(Simulated client, Path scratch, long measureFrom, long until) {
+        Random random = ThreadLocalRandom.current();
+        long now;
+        while ((now = System.nanoTime()) < until) {
+            int op = pick(random);
+            try {
+                Frame reply = issue(op, client, scratch, random).get(OP_TIMEOUT_S, TimeUnit.SECONDS);
+                long done = System.nanoTime();
+                if (now < measureFrom)
+                    continue;
+                latency[op].recordNanos(done - now);
+                if (reply.status() != Client.SUCCESS)
+                    failures[op].increment();
+            } catch (ExecutionException | TimeoutException e) {
+                if (now >= measureFrom)
+                    errors[op].increment();
+            } catch (IOException e) {
+                errors[op].increment();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<Frame> issue(int op, Simulated client, Path scratch, Random random)
+            throws IOException {
+        ForumClient forum = client.forum;
+        int t = popularity.sample(random);
+        String thread = pool[t];
+        switch (OPS[op]) {
+            case "CRT":
+                String title = forum.username() + "-c" + client.counter.incrementAndGet();
+                return forum.createThread(title).thenApply(reply -> {
+                    if (reply.status() == Client.SUCCESS)
+                        client.created.add(title);
+                    return reply;
+                });
+            case "MSG":
+                return forum.post(thread, payload()).thenApply(reply -> {
+                    if (reply.status() == Client.SUCCESS)
+                        posts.incrementAndGet(t);
+                    return reply;
+                });
+            case "DLT":
+                return forum.delete(thread, 1 + random.nextInt(Math.max(1, posts.get(t)))).thenApply(reply -> {
+                    if (reply.status() == Client.SUCCESS)
+                        posts.decrementAndGet(t);
+                    return reply;
+                });
+            case "EDT":
+                return forum.edit(thread, 1 + random.nextInt(Math.max(1, posts.get(t))), payload());
+            case "LST":
+                return forum.list();
+            case "RDT":
+                int page = number("page");
+                return page > 0 ? forum.read(thread, Math.max(0, posts.get(t) - page), page) : forum.read(thread);
+            case "UPD":
+                String name = forum.username() + "-" + client.counter.incrementAndGet() + ".bin";
+                writeAttachment(scratch, client.counter.get());
+                return forum.upload(thread, name, scratch).thenApply(reply -> {
+                    if (reply.status() == Client.SUCCESS)
+                        attachments.add(new String[] { thread, name });
+                    return reply;
+                });
+            case "DWN":
+                String[] attachment;
+                synchronized (attachments) {
+                    attachment = attachments.isEmpty() ? null
+                            : attachments.get(random.nextInt(attachments.size()));
+                }
+                if (attachment == null)
+                    return forum.list(); // nothing to fetch yet
+                Path target = scratch.resolveSibling(scratch.getFileName() + ".dwn");
+                return forum.download(attachment[0], attachment[1], target).thenApply(reply -> {
+                    try {
+                        Files.deleteIfExists(target);
+                    } catch (IOException e) {
+                        System.err.println("Could not remove " + target + ": " + e.getMessage());
+                    }
+                    return reply;
+                });
+            default:
+                throw new IllegalStateException(OPS[op]);
+        }
+    }
+
+    /* ---------- report ---------- */
+
+    private void report(double seconds, List<Simulated> clients) {
+        System.out.printf("%-5s %9s %7s %6s %9s %9s %9s %9s %9s %9s %9s%n", "op", "count", "fail", "err",
+                "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long total = 0;
+        for (int op = 0; op < OPS.length; op++) {
+            LatencyHistogram h = latency[op];
+            if (h.count() == 0 && errors[op].sum() == 0)
+                continue;
+            total += h.count();
+            System.out.printf("%-5s %9d %7d %6d %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", OPS[op], h.count(),
+                    failures[op].sum(), errors[op].sum(), h.count() / seconds, h.meanMicros() / 1e3,
+                    h.percentileMicros(50) / 1e3, h.percentileMicros(90) / 1e3, h.percentileMicros(99) / 1e3,
+                    h.percentileMicros(99.9) / 1e3, h.maxMicros() / 1e3);
+        }
+        long retransmits = clients.stream().mapToLong(c -> c.forum.retransmits()).sum();
+        long slowest = clients.stream().map(c -> c.forum.rtt()).mapToLong(RttEstimator::srttNanos)
+                .max().orElse(0);
+        System.out.printf("%d ops in %.1f s, %.0f ops/s; %d retransmissions, largest srtt %.2f ms%n", total,
+                seconds, total / seconds, retransmits, slowest / 1e6);
+    }
+
+    /* ---------- helpers ---------- */
+
+    private int pick(Random random) {
+        int r = random.nextInt(mix[mix.length - 1]);
+        for (int op = 0;; op++) {
+            if (r < mix[op])
+                return op;
+        }
+    }
+
+    // cumulative weights, in OPS order
+    private static int[] parseMix(String spec) {
+        int[] weights = new int[OPS.length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            int op = index(kv[0].trim().toUpperCase());
+            if (op < 0 || kv.length != 2)
+                throw new IllegalArgumentException("Bad mix entry " + part + ", expected e.g. MSG:40");
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        for (int op = 1; op < OPS.length; op++)
+            weights[op] += weights[op - 1];
+        if (weights[OPS.length - 1] <= 0)
+            throw new IllegalArgumentException("Empty mix " + spec);
+        return weights;
+    }
+
+    private static int index(String op) {
+        return Arrays.asList(OPS).indexOf(op);
+    }
+
+    private int number(String option) {
+        return (int) TransferBenchmark.parseSize(options.get(option));
+    }
+
+    // payload bytes cut from the word soup at a random point
+    private String payload() {
+        int length = Math.max(1, number("payload"));
+        int from = ThreadLocalRandom.current().nextInt(text.length() - length + 1);
+        String payload = text.substring(from, from + length).trim();
+        return payload.isEmpty() ? "x" : payload;
+    }
+
+    // random bytes, stamped with a counter so every upload is new content
+    // and isn't just deduplicated against the last one
+    private void writeAttachment(Path file, long stamp) throws IOException {
+        long size = TransferBenchmark.parseSize(options.get("attachment"));
+        if (!Files.exists(file) || Files.size(file) != size) {
+            byte[] data = new byte[(int) size];
+            ThreadLocalRandom.current().nextBytes(data);
+            Files.write(file, data);
+        }
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, stamp ^ System.nanoTime());
+            out.write(header.limit((int) Math.min(Long.BYTES, size)), 0);
+        }
+    }
+
+    private static String words(int length) {
+        String[] vocabulary = { "the", "forum", "thread", "server", "message", "reply", "upload", "works",
+                "again", "today", "file", "attached", "see", "above", "thanks", "for", "posting", "this" };
+        Random random = new Random(7);
+        StringBuilder s = new StringBuilder(length + 16);
+        while (s.length() < length)
+            s.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+        return s.toString();
+    }
+
+    private static final class Simulated {
+        final ForumClient forum;
+        // threads this client made with CRT, for cleanup
+        final List<String> created = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger counter = new AtomicInteger();
+
+        Simulated(ForumClient forum) {
+            this.forum = forum;
+        }
+    }
+
+    // ranks 0..n-1 with P(k) proportional to 1 / (k + 1)^s
+    static final class ZipfSampler {
+        private final double[] cdf;
+
+        ZipfSampler(int n, double s) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, s);
+                cdf[k] = sum;
+            }
+            for (int k = 0; k < n; k++)
+                cdf[k] /= sum;
+        }
+
+        int sample(Random random) {
+            int k = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(cdf.length - 1, k >= 0 ? k : -k - 1);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// keeps the human readable thread files and credentials.txt in step with
+// the mutation log, off the request path. The log is the source of truth;
+// these files are rewritten/appended in the background, once per interval
+// no matter how many mutations touched them in between.
+public class Materializer implements AutoCloseable {
+
+    private final Set<ForumThread> dirty = ConcurrentHashMap.newKeySet();
+    private final Queue<String> credentialLines = new ConcurrentLinkedQueue<>();
+    // a whole new credentials.txt, taken and written before any queued lines
+    private final AtomicReference<Supplier<List<String>>> credentialRewrite = new AtomicReference<>();
+    private final Path credFile;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "materializer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Materializer(Path credFile, long intervalMs) {
+        this.credFile = credFile;
+        flusher.scheduleWithFixedDelay(this::flush, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void markDirty(ForumThread thread) {
+        dirty.add(thread);
+    }
+
+    public void appendCredentials(String line) {
+        credentialLines.add(line);
+    }
+
+    // replaces credentials.txt with the lines from contents, e.g. to drop
+    // superseded plaintext passwords. contents is read on the flushing
+    // thread just before the queued lines are drained, so a line queued
+    // meanwhile is either in it or appended after; a repeat is harmless,
+    // the last line for a name wins
+    public void rewriteCredentials(Supplier<List<String>> contents) {
+        credentialRewrite.set(contents);
+    }
+
+    private void flush() {
+        for (Iterator<ForumThread> it = dirty.iterator(); it.hasNext();) {
+            ForumThread thread = it.next();
+            it.remove(); // a mutation racing with us simply re-adds it
+            try {
+                thread.materialize();
+            } catch (IOException e) {
+                System.err.println("cannot write thread file " + thread.getTitle() + ": " + e.getMessage());
+                dirty.add(thread);
+            }
+        }
+
+        Supplier<List<String>> rewrite = credentialRewrite.getAndSet(null);
+        if (rewrite != null) {
+            try {
+                Path tmp = credFile.resolveSibling(credFile.getFileName() + ".tmp");
+                Files.write(tmp, rewrite.get());
+                Files.move(tmp, credFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("cannot rewrite credentials.txt");
+                credentialRewrite.compareAndSet(null, rewrite);
+            }
+        }
+
+        if (credentialLines.isEmpty())
+            return;
+        List<String> lines = new ArrayList<>();
+        for (String line; (line = credentialLines.poll()) != null;)
+            lines.add(line);
+        try {
+            Files.write(credFile, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("cannot update credentials.txt");
+            credentialLines.addAll(lines);
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
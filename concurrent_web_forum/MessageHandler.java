@@ -1,37 +1,194 @@
-public class MessageHandler {
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-    private final UserList userList = new UserList();
-    private final ThreadManager threadManager = new ThreadManager();;
+public class MessageHandler implements AutoCloseable {
+
+    // how a LOGIN went
+    public enum Login {
+        REGISTERED, LOGGED_IN, WRONG_PASSWORD, ALREADY_ONLINE
+    }
+
+    private final Path directory;
+    private final MutationLog log;
+    private final Materializer materializer;
+    private final UserList userList;
+    private final ThreadManager threadManager;
+    private final CredentialStore credentials = new CredentialStore(ServerConfig.HASH_WORKERS,
+            ServerConfig.HASH_QUEUE, ServerConfig.CREDENTIAL_CACHE, ServerConfig.CREDENTIAL_CACHE_MS);
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "checkpointer");
+        t.setDaemon(true);
+        return t;
+    });
+    // LSN the last snapshot was cut at, so idle periods don't rewrite it
+    private long checkpointedLsn;
 
     public MessageHandler() throws Exception {
+        this(Paths.get("").toAbsolutePath()); // same as pwd
+    }
+
+    public MessageHandler(Path directory) throws Exception {
+        this.directory = directory;
+        long start = System.nanoTime();
+        Recovery recovery = Recovery.scan(directory);
+
+        log = new MutationLog(directory, ServerConfig.FSYNC_POLICY, recovery.nextGeneration(), recovery.lastLsn());
+        Path credFile = directory.resolve("credentials.txt");
+        materializer = new Materializer(credFile, ServerConfig.MATERIALIZE_INTERVAL_MS);
+        userList = new UserList(credFile, log, materializer);
+        BlobStore blobs = new BlobStore(directory.resolve("blobs"),
+                ServerConfig.PACK_ATTACHMENTS && Compression.ENABLED ? ServerConfig.CHUNK_SIZE : 0);
+        threadManager = new ThreadManager(directory, log, materializer, blobs);
+        Map<String, ForumThread> threads = recovery.restore(userList, log, materializer);
+        boolean imported = recovery.fresh();
+        if (imported)
+            threads = LegacyImport.load(directory, userList, log, materializer);
+        threadManager.restore(threads);
+        checkpointedLsn = recovery.replayedRecords() == 0 && !imported ? recovery.lastLsn() : -1;
+
+        System.out.printf("%s %d threads, %d posts (%d log records replayed) in %d ms%n",
+                imported ? "Imported" : "Recovered", threadManager.all().size(),
+                Recovery.countPosts(threadManager.all()), recovery.replayedRecords(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // periodic checkpoints, once the handler is fully built
+    public void start() {
+        long interval = ServerConfig.CHECKPOINT_INTERVAL_MS;
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // cut a new log segment, write a snapshot of everything, then drop the
+    // segments the snapshot made redundant. credentials.txt loses the
+    // plaintext lines rehashed since the last one
+    public synchronized void checkpoint() throws IOException {
+        userList.compactCredentials();
+        if (log.lastLsn() == checkpointedLsn)
+            return;
+        MutationLog.Rotation rotation = log.rotate();
+        Snapshot.write(directory.resolve(Snapshot.FILE_NAME), rotation.coveredGeneration(), rotation.lsn(),
+                userList.all(), threadManager.all());
+        rotation.await();
+        log.deleteSegmentsUpTo(rotation.coveredGeneration());
+        checkpointedLsn = rotation.lsn();
+    }
+
+    // checkpoint so the next start is a plain snapshot load, then flush the
+    // log and bring the text files up to date
+    @Override
+    public void close() throws IOException {
+        shutdown(true);
+    }
+
+    void shutdown(boolean checkpoint) throws IOException {
+        checkpointer.shutdown();
+        credentials.close();
+        if (checkpoint)
+            checkpoint();
+        log.close();
+        materializer.close();
     }
 
     /* ---------- authentication ---------- */
 
-    public void addUser(String username, String password) {
-        userList.add(username, password);
+    // hashes on the calling thread; LOGIN goes through authenticate()
+    public boolean addUser(String username, String password) throws IOException {
+        return userList.add(username, PasswordHash.hash(password));
+    }
+
+    // registers or logs in username, all the hashing on the credential
+    // pool. Completes there, or exceptionally with RejectedExecutionException
+    // when the pool is too far behind to take it
+    public CompletableFuture<Login> authenticate(String username, String password) {
+        if (userList.exists(username))
+            return check(username, password);
+        return credentials.hash(password).thenCompose(credential -> {
+            try {
+                if (!userList.add(username, credential))
+                    return check(username, password); // lost the race to register
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            userList.setOnline(username, true);
+            return CompletableFuture.completedFuture(Login.REGISTERED);
+        });
+    }
+
+    private CompletableFuture<Login> check(String username, String password) {
+        User user = userList.get(username);
+        String stored = user.credential();
+        return credentials.verify(user, password).thenApply(ok -> {
+            if (!ok)
+                return Login.WRONG_PASSWORD;
+            if (PasswordHash.needsRehash(stored))
+                upgrade(user, stored, password);
+            return userList.logIn(username) ? Login.LOGGED_IN : Login.ALREADY_ONLINE;
+        });
+    }
+
+    // a plaintext or outdated credential that just matched is replaced in
+    // the background; if the pool is too busy it waits for the next login
+    private void upgrade(User user, String old, String password) {
+        credentials.hash(password).thenAccept(credential -> {
+            try {
+                userList.rehash(user, old, credential);
+            } catch (IOException e) {
+                System.err.println("cannot store new credential for " + user.name());
+            }
+        });
     }
 
     public boolean userExists(String username) {
         return userList.exists(username);
     }
 
-    public boolean passwordOk(String username, String password) {
-        return userList.validPassword(username, password);
+    // logins waiting for a hashing thread
+    public int credentialsQueued() {
+        return credentials.queued();
     }
 
     public void setOnline(String username, boolean online) {
         userList.setOnline(username, online);
     }
 
+    public boolean logIn(String username) {
+        return userList.logIn(username);
+    }
+
     public boolean isOnline(String username) {
         return userList.isOnline(username);
     }
 
+    public User user(String username) {
+        return userList.get(username);
+    }
+
+    public void logOut(User user) {
+        userList.logOut(user);
+    }
+
     public boolean anyUserOnline() {
         return userList.anyOnline();
     }
 
+    public int onlineCount() {
+        return userList.onlineCount();
+    }
+
     /* ---------- threads ---------- */
 
     public boolean threadExists(String threadTitle) {
@@ -39,7 +196,12 @@ public class MessageHandler {
     }
 
     public boolean createThread(String threadTitle, String creator) throws Exception {
-        return threadManager.createThread(userList.get(creator), threadTitle);
+        return createThread(threadTitle, userList.get(creator));
+    }
+
+    // the creator as resolved by the session, no name lookup
+    public boolean createThread(String threadTitle, User creator) throws Exception {
+        return threadManager.createThread(creator, threadTitle);
     }
 
     public boolean removeThread(String threadTitle, String requester) throws Exception {
@@ -54,8 +216,19 @@ public class MessageHandler {
         return threadManager.readFile(threadTitle);
     }
 
+    // a full read as fragment payloads, served from the thread's cached view
+    // packed for clients that take deflated replies, see Fragments
+    public List<String> threadView(String threadTitle, boolean packed) {
+        return threadManager.view(threadTitle, packed);
+    }
+
+    public int readThread(String threadTitle, int offset, int limit, Consumer<String> out) {
+        return threadManager.readPosts(threadTitle, offset, limit, out);
+    }
+
     public boolean threadIsEmpty(String threadTitle) {
-        return threadManager.get(threadTitle).getPosts().isEmpty();
+        ForumThread thread = threadManager.get(threadTitle);
+        return thread == null || thread.isEmpty();
     }
 
     /* ---------- messages ---------- */
@@ -63,7 +236,13 @@ public class MessageHandler {
     public void postMessage(String threadTitle,
             String author,
             String messageText) throws Exception {
-        threadManager.post(threadTitle, userList.get(author), messageText);
+        postMessage(threadTitle, userList.get(author), messageText);
+    }
+
+    public void postMessage(String threadTitle,
+            User author,
+            String messageText) throws Exception {
+        threadManager.post(threadTitle, author, messageText);
     }
 
     public int deleteMessage(String threadTitle,
@@ -81,18 +260,31 @@ public class MessageHandler {
 
     /* ---------- files ---------- */
 
-    public void uploadFile(String threadTitle,
-            String uploader,
-            String fileName) {
-        threadManager.attach(threadTitle, userList.get(uploader), fileName);
+    // staged is the finished upload, see stagingPath; false if it could
+    // not be posted (thread gone, or the name taken meanwhile)
+    public boolean uploadFile(String threadTitle,
+            User uploader,
+            String fileName,
+            Path staged) throws IOException {
+        return threadManager.attach(threadTitle, uploader, fileName, staged);
     }
 
     public boolean attachmentExists(String threadTitle, String fileName) {
         return threadManager.attachmentExists(threadTitle, fileName);
     }
 
-    public String attachmentFilePath(String threadTitle, String fileName) {
-        return threadManager.getServerDirectory().toString()
-                + "/" + threadTitle + "-" + fileName;
+    // content-addressed, so the same file in two threads is one path
+    public Path attachmentPath(String threadTitle, String fileName) {
+        return threadManager.attachmentPath(threadTitle, fileName);
+    }
+
+    // a deflated copy cut into chunks, null if there is none
+    public Path packedAttachmentPath(String threadTitle, String fileName) {
+        return threadManager.packedAttachmentPath(threadTitle, fileName);
+    }
+
+    // where an upload is written until it is hashed into the blob store
+    public Path stagingPath(String threadTitle, String fileName) {
+        return threadManager.stagingPath(threadTitle, fileName);
     }
 }
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+// Fenwick (binary indexed) tree over the post slots of one thread. A slot
+// counts 1 while it holds a live post of the kind the index tracks (MESSAGE
+// posts for numbering, any post for paging), so a slot's rank is a prefix
+// sum and the slot holding the k-th counted post is found by walking down
+// the tree; both are O(log n) and neither moves any posts.
+//
+// Slots are 0-based to callers, 1-based inside the tree. Not thread safe,
+// ForumThread only touches it under its own monitor.
+final class MessageIndex {
+
+    private int[] tree;
+    private int capacity; // always a power of two
+    private int slots;
+    private int total;
+
+    MessageIndex() {
+        this(16);
+    }
+
+    private MessageIndex(int capacity) {
+        this.capacity = capacity;
+        this.tree = new int[capacity + 1];
+    }
+
+    // O(n) bulk build, used when a thread is decoded from a snapshot
+    static MessageIndex of(boolean[] counted, int slots) {
+        MessageIndex index = new MessageIndex(Math.max(16, Integer.highestOneBit(Math.max(1, slots - 1)) << 1));
+        index.slots = slots;
+        // carry partial sums all the way up, nodes past the last slot still
+        // cover it
+        for (int i = 1; i <= index.capacity; i++) {
+            if (i <= slots && counted[i - 1]) {
+                index.tree[i]++;
+                index.total++;
+            }
+            int parent = i + (i & -i);
+            if (parent <= index.capacity)
+                index.tree[parent] += index.tree[i];
+        }
+        return index;
+    }
+
+    // the next slot; returns its index
+    int append(boolean counted) {
+        if (slots == capacity)
+            grow();
+        int slot = slots++;
+        if (counted)
+            add(slot, 1);
+        return slot;
+    }
+
+    void remove(int slot) {
+        add(slot, -1);
+    }
+
+    int slots() {
+        return slots;
+    }
+
+    // number of counted slots
+    int total() {
+        return total;
+    }
+
+    // counted slots up to and including slot
+    int rank(int slot) {
+        int sum = 0;
+        for (int i = slot + 1; i > 0; i -= i & -i)
+            sum += tree[i];
+        return sum;
+    }
+
+    // slot of the k-th counted post, -1 if there is none
+    int find(int k) {
+        if (k < 1 || k > total)
+            return -1;
+        int pos = 0;
+        for (int step = capacity; step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= capacity && tree[next] < k) {
+                pos = next;
+                k -= tree[next];
+            }
+        }
+        return pos; // 1-based pos + 1, back to 0-based
+    }
+
+    private void add(int slot, int delta) {
+        total += delta;
+        for (int i = slot + 1; i <= capacity; i += i & -i)
+            tree[i] += delta;
+    }
+
+    // doubling only adds nodes whose ranges are new and empty, except the
+    // new root which covers everything so far
+    private void grow() {
+        tree = Arrays.copyOf(tree, capacity * 2 + 1);
+        capacity *= 2;
+        tree[capacity] = total;
+    }
+}
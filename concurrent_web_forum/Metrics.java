@@ -0,0 +1,231 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// request counts, reply statuses and latencies for the server, shared by
+// every thread and cheap enough to leave on: LongAdders and lock-free
+// LatencyHistograms, only summed when someone looks. A request's time is
+// split by stage (decode on the event loop, waiting for a worker, waiting
+// for a ForumThread monitor, waiting for the log commit) so a spike can be
+// put down to parsing, locking or disk; transfers are counted on their own.
+// Read through the scrape endpoint (Prometheus text format, loopback only)
+// and the periodic dump, both configured in ServerConfig
+public final class Metrics {
+
+    static final String[] OPS = { "CONN", "LOGIN", "CRT", "MSG", "DLT", "EDT", "LST", "RDT", "UPD", "DWN",
+            "RMV", "XIT", "OTHER" };
+    static final String[] STATUSES = { "FAILURE", "SUCCESS", "FC", "UNAUTHENTICATED", "FRAGMENT", "BUSY", "THROTTLED" };
+
+    private static final LongAdder[] requests = adders(OPS.length);
+    private static final LongAdder[][] replies = new LongAdder[OPS.length][];
+    private static final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+
+    static final LatencyHistogram decode = new LatencyHistogram(),
+            queueWait = new LatencyHistogram(),
+            lockWait = new LatencyHistogram(),
+            logWait = new LatencyHistogram(),
+            transfer = new LatencyHistogram(),
+            // checking a password on the credential pool, queueing included
+            hash = new LatencyHistogram();
+    static final LongAdder malformed = new LongAdder(),
+            retries = new LongAdder(),
+            workerErrors = new LongAdder(),
+            // turned away on arrival, and dropped from the queue for a newer one
+            refused = new LongAdder(),
+            shed = new LongAdder(),
+            // over a user's or an address's rate limit
+            throttled = new LongAdder(),
+            uploadBytes = new LongAdder(),
+            downloadBytes = new LongAdder(),
+            failedTransfers = new LongAdder(),
+            // replies that didn't fit Server.MAX_SIZE, which shouldn't happen
+            oversizedReplies = new LongAdder();
+
+    // point-in-time values owned elsewhere (queue depths, active workers),
+    // read when the metrics are
+    private static final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    static {
+        for (int op = 0; op < OPS.length; op++) {
+            replies[op] = adders(STATUSES.length);
+            latency[op] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static void request(int action) {
+        requests[op(action)].increment();
+    }
+
+    public static void reply(int action, int status) {
+        if (status >= 0 && status < STATUSES.length)
+            replies[op(action)][status].increment();
+    }
+
+    // from the datagram arriving to the worker being done with it
+    public static void latency(int action, long nanos) {
+        latency[op(action)].recordNanos(nanos);
+    }
+
+    public static synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    private static int op(int action) {
+        return action >= 0 && action < OPS.length - 1 ? action : OPS.length - 1;
+    }
+
+    /* ---------- reading them ---------- */
+
+    // Prometheus text exposition; latencies as summaries in seconds
+    public static synchronized String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        out.append("# TYPE forum_requests_total counter\n");
+        for (int op = 0; op < OPS.length; op++)
+            sample(out, "forum_requests_total", "op=\"" + OPS[op] + '"', requests[op].sum());
+        out.append("# TYPE forum_replies_total counter\n");
+        for (int op = 0; op < OPS.length; op++) {
+            for (int s = 0; s < STATUSES.length; s++) {
+                long n = replies[op][s].sum();
+                if (n > 0)
+                    sample(out, "forum_replies_total", "op=\"" + OPS[op] + "\",status=\"" + STATUSES[s] + '"', n);
+            }
+        }
+        out.append("# TYPE forum_request_seconds summary\n");
+        for (int op = 0; op < OPS.length; op++) {
+            if (latency[op].count() > 0)
+                summary(out, "forum_request_seconds", "op=\"" + OPS[op] + "\",", latency[op]);
+        }
+        String[] stages = { "decode", "queue", "lock", "log", "transfer", "hash" };
+        LatencyHistogram[] histograms = { decode, queueWait, lockWait, logWait, transfer, hash };
+        out.append("# TYPE forum_stage_seconds summary\n");
+        for (int i = 0; i < stages.length; i++)
+            summary(out, "forum_stage_seconds", "stage=\"" + stages[i] + "\",", histograms[i]);
+
+        counter(out, "forum_malformed_datagrams_total", malformed.sum());
+        counter(out, "forum_retries_answered_total", retries.sum());
+        counter(out, "forum_worker_errors_total", workerErrors.sum());
+        out.append("# TYPE forum_busy_total counter\n");
+        sample(out, "forum_busy_total", "reason=\"refused\"", refused.sum());
+        sample(out, "forum_busy_total", "reason=\"shed\"", shed.sum());
+        counter(out, "forum_throttled_total", throttled.sum());
+        counter(out, "forum_failed_transfers_total", failedTransfers.sum());
+        counter(out, "forum_oversized_replies_total", oversizedReplies.sum());
+        out.append("# TYPE forum_transfer_bytes_total counter\n");
+        sample(out, "forum_transfer_bytes_total", "direction=\"upload\"", uploadBytes.sum());
+        sample(out, "forum_transfer_bytes_total", "direction=\"download\"", downloadBytes.sum());
+        counter(out, "forum_view_hits_total", ViewStats.threadHits() + ViewStats.listHits());
+        counter(out, "forum_view_misses_total", ViewStats.threadMisses() + ViewStats.listMisses());
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            out.append("# TYPE ").append(g.getKey()).append(" gauge\n");
+            sample(out, g.getKey(), null, g.getValue().getAsLong());
+        }
+        return out.toString();
+    }
+
+    // a few lines for the log: every command seen, then the stages
+    public static synchronized String summary() {
+        StringBuilder out = new StringBuilder("Metrics\n");
+        out.append(String.format("  %-6s %9s %7s %7s %7s %9s %9s %9s%n", "op", "requests", "fail", "unauth",
+                "busy", "p50 ms", "p99 ms", "max ms"));
+        for (int op = 0; op < OPS.length; op++) {
+            if (requests[op].sum() == 0)
+                continue;
+            LatencyHistogram h = latency[op];
+            out.append(String.format("  %-6s %9d %7d %7d %7d %9.2f %9.2f %9.2f%n", OPS[op], requests[op].sum(),
+                    replies[op][Server.FAILURE].sum(), replies[op][Server.UNAUTHENTICATED].sum(),
+                    replies[op][Server.BUSY].sum(), h.percentileMicros(50) / 1e3, h.percentileMicros(99) / 1e3, h.maxMicros() / 1e3));
+        }
+        out.append(String.format("  p99 ms: decode %.3f, queue %.2f, lock %.2f, log %.2f, transfer %.1f, hash %.1f%n",
+                decode.percentileMicros(99) / 1e3, queueWait.percentileMicros(99) / 1e3,
+                lockWait.percentileMicros(99) / 1e3, logWait.percentileMicros(99) / 1e3,
+                transfer.percentileMicros(99) / 1e3, hash.percentileMicros(99) / 1e3));
+        out.append(String.format("  %d malformed, %d retries answered, %d refused, %d shed, %d throttled, "
+                + "%d worker errors, %d failed transfers; %.1f MB up, %.1f MB down", malformed.sum(), retries.sum(),
+                refused.sum(), shed.sum(), throttled.sum(), workerErrors.sum(), failedTransfers.sum(), uploadBytes.sum() / 1e6, downloadBytes.sum() / 1e6));
+        if (oversizedReplies.sum() > 0)
+            out.append(String.format("%n  %d replies over the datagram budget", oversizedReplies.sum()));
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet())
+            out.append(String.format("%n  %s %d", g.getKey(), g.getValue().getAsLong()));
+        return out.toString();
+    }
+
+    /* ---------- exposing them ---------- */
+
+    // GET http://127.0.0.1:<port>/metrics
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // a scrape is a handful of sums, one thread is plenty
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        http.start();
+        return http;
+    }
+
+    public static ScheduledExecutorService dumpEvery(long intervalMs) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> ServerLog.info("metrics", null, summary()), intervalMs, intervalMs,
+                TimeUnit.MILLISECONDS);
+        return dumper;
+    }
+
+    /* ---------- helpers ---------- */
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        sample(out, name, null, value);
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram h) {
+        for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 })
+            sample(out, name, labels + "quantile=\"" + q + '"', h.percentileMicros(q * 100) / 1e6);
+        sample(out, name + "_sum", labels.substring(0, labels.length() - 1), h.meanMicros() * h.count() / 1e6);
+        sample(out, name + "_count", labels.substring(0, labels.length() - 1), h.count());
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null)
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// one forum state change as it is recorded in the mutation log; every type
+// uses the same four fields and leaves the ones it doesn't need empty.
+// EDIT and DELETE name the post by its stable id, not its visible number.
+// ATTACH carries "<digest> <filename>" as its text; records from before the
+// blob store hold just the filename
+public final class Mutation {
+
+    public enum Type {
+        CREATE_THREAD, POST, EDIT, DELETE, ATTACH, REMOVE_THREAD, REGISTER, PASSWORD
+    }
+
+    private final Type type;
+    private final String thread;
+    private final String user;
+    private final int number;
+    private final String text;
+
+    private Mutation(Type type, String thread, String user, int number, String text) {
+        this.type = type;
+        this.thread = thread;
+        this.user = user;
+        this.number = number;
+        this.text = text;
+    }
+
+    public static Mutation createThread(String title, String creator) {
+        return new Mutation(Type.CREATE_THREAD, title, creator, 0, "");
+    }
+
+    public static Mutation post(String title, String author, String text) {
+        return new Mutation(Type.POST, title, author, 0, text);
+    }
+
+    public static Mutation edit(String title, int id, String text) {
+        return new Mutation(Type.EDIT, title, "", id, text);
+    }
+
+    public static Mutation delete(String title, int id) {
+        return new Mutation(Type.DELETE, title, "", id, "");
+    }
+
+    // blob null for an attachment from before the blob store
+    public static Mutation attach(String title, String author, String filename, String blob) {
+        return new Mutation(Type.ATTACH, title, author, 0, blob == null ? filename : blob + " " + filename);
+    }
+
+    public static Mutation removeThread(String title) {
+        return new Mutation(Type.REMOVE_THREAD, title, "", 0, "");
+    }
+
+    // the text is the user's credential, see PasswordHash
+    public static Mutation register(String username, String credential) {
+        return new Mutation(Type.REGISTER, "", username, 0, credential);
+    }
+
+    // a user's credential replaced, e.g. a plaintext one by its hash
+    public static Mutation password(String username, String credential) {
+        return new Mutation(Type.PASSWORD, "", username, 0, credential);
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public String thread() {
+        return thread;
+    }
+
+    public String user() {
+        return user;
+    }
+
+    public int number() {
+        return number;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    // ATTACH only; filenames never contain spaces, they come off a
+    // space-separated command line
+    public String attachedFile() {
+        return text.substring(text.indexOf(' ') + 1);
+    }
+
+    // ATTACH only, null for a pre-blob-store record
+    public String attachedBlob() {
+        int space = text.indexOf(' ');
+        return space < 0 ? null : text.substring(0, space);
+    }
+
+    /* ---------- encoding ---------- */
+
+    // type | thread | user | number | text, strings as int length + UTF-8
+    public byte[] encode() {
+        byte[] t = thread.getBytes(StandardCharsets.UTF_8);
+        byte[] u = user.getBytes(StandardCharsets.UTF_8);
+        byte[] x = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + t.length + 4 + u.length + 4 + 4 + x.length);
+        buf.put((byte) type.ordinal());
+        buf.putInt(t.length).put(t);
+        buf.putInt(u.length).put(u);
+        buf.putInt(number);
+        buf.putInt(x.length).put(x);
+        return buf.array();
+    }
+
+    public static Mutation decode(ByteBuffer buf) {
+        Type type = Type.values()[buf.get()];
+        String thread = getString(buf);
+        String user = getString(buf);
+        int number = buf.getInt();
+        String text = getString(buf);
+        return new Mutation(type, thread, user, number, text);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+// append-only write-ahead log for every forum mutation. Callers enqueue a
+// record while holding whatever lock orders it, then wait for durability
+// after letting go; one writer thread drains everything queued meanwhile
+// into a single gathering FileChannel write (group commit).
+//
+// The log is split into numbered segments (forum-<generation>.wal) so a
+// checkpoint can start a fresh segment and later drop the ones its
+// snapshot covers. Every record carries a log sequence number (LSN).
+//
+// record layout: body length (4) | CRC32 of body (4) | LSN (8) + mutation
+public class MutationLog implements AutoCloseable {
+
+    public enum FsyncPolicy {
+        // write in the background, never force; callers don't wait
+        NONE,
+        // one force per batch of concurrent writers
+        GROUP,
+        // one write + force per mutation
+        PER_OP
+    }
+
+    public static final int RECORD_HEADER = 8,
+            MAX_BATCH = 512;
+
+    private static final String SEGMENT_PREFIX = "forum-",
+            SEGMENT_SUFFIX = ".wal";
+
+    private static final Pending SHUTDOWN = new Pending(null, 0);
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    // guarded by queue: LSNs and rotation markers are handed out in the
+    // same order they are queued, which is the order they hit the file,
+    // and nothing is queued behind SHUTDOWN where the writer never looks
+    private boolean closed = false;
+    // set once a segment could not be put back in order after a failed
+    // write; everything after fails with it
+    private IOException failure;
+    private long lastLsn;
+    private long generation;
+
+    // writer thread only
+    private final Opener opener;
+    private FileChannel channel;
+    // end of the last record known to be whole in the current segment
+    private long written;
+    private boolean broken;
+
+    // makes segment files; tests hand in channels that fail
+    interface Opener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    // opens a brand new segment; recovery decides generation and LSN so
+    // nothing already on disk is ever appended to again
+    public MutationLog(Path directory, FsyncPolicy policy, long generation, long lastLsn) throws IOException {
+        this(directory, policy, generation, lastLsn, path -> FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    MutationLog(Path directory, FsyncPolicy policy, long generation, long lastLsn, Opener opener)
+            throws IOException {
+        this.directory = directory;
+        this.policy = policy;
+        this.generation = generation;
+        this.lastLsn = lastLsn;
+        this.opener = opener;
+        this.channel = openSegment(generation);
+        this.writer = new Thread(this::writeLoop, "mutation-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // queue a mutation; the commit completes once it is as durable as the
+    // fsync policy promises
+    public Commit append(Mutation m) {
+        byte[] body = m.encode();
+        synchronized (queue) {
+            if (closed)
+                return new Commit(-1, CompletableFuture.failedFuture(new IOException("mutation log closed")));
+            if (failure != null)
+                return new Commit(-1, CompletableFuture.failedFuture(failure));
+            long lsn = ++lastLsn;
+            Pending p = new Pending(frame(lsn, body), 0);
+            queue.add(p);
+            return new Commit(lsn, policy == FsyncPolicy.NONE ? CompletableFuture.completedFuture(null) : p.done);
+        }
+    }
+
+    // switch to a new segment; everything up to the returned LSN stays in
+    // the old generation, everything after lands in the new one
+    public Rotation rotate() {
+        synchronized (queue) {
+            if (closed || failure != null)
+                return new Rotation(generation, lastLsn, CompletableFuture.failedFuture(
+                        failure != null ? failure : new IOException("mutation log closed")));
+            Pending marker = new Pending(null, generation + 1);
+            Rotation r = new Rotation(generation, lastLsn, marker.done);
+            generation++;
+            queue.add(marker);
+            return r;
+        }
+    }
+
+    // drop segments a persisted snapshot has made redundant
+    public void deleteSegmentsUpTo(long coveredGeneration) throws IOException {
+        for (long gen : generations(directory)) {
+            if (gen <= coveredGeneration)
+                Files.deleteIfExists(segmentPath(directory, gen));
+        }
+    }
+
+    public long lastLsn() {
+        synchronized (queue) {
+            return lastLsn;
+        }
+    }
+
+    public FsyncPolicy policy() {
+        return policy;
+    }
+
+    private FileChannel openSegment(long gen) throws IOException {
+        FileChannel opened = opener.open(segmentPath(directory, gen));
+        written = opened.size();
+        return opened;
+    }
+
+    private static ByteBuffer frame(long lsn, byte[] mutation) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER + 8 + mutation.length);
+        buf.position(RECORD_HEADER);
+        buf.putLong(lsn).put(mutation);
+        crc.update(buf.array(), RECORD_HEADER, 8 + mutation.length);
+        buf.putInt(0, 8 + mutation.length).putInt(4, (int) crc.getValue());
+        return buf.flip();
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        List<Pending> run = new ArrayList<>(MAX_BATCH);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            // records between markers go out as one group; close() and
+            // rotate() queue markers rather than interrupting, an interrupt
+            // mid-write would close the FileChannel under us
+            for (Pending p : batch) {
+                if (p.record != null) {
+                    run.add(p);
+                    continue;
+                }
+                writeGroup(run);
+                run.clear();
+                if (p == SHUTDOWN) {
+                    stopping = true;
+                } else {
+                    switchSegment(p);
+                }
+            }
+            writeGroup(run);
+            run.clear();
+            batch.clear();
+        }
+    }
+
+    private void writeGroup(List<Pending> group) {
+        if (group.isEmpty())
+            return;
+        if (broken) {
+            IOException e = failure();
+            group.forEach(p -> p.done.completeExceptionally(e));
+            return;
+        }
+        try {
+            if (policy == FsyncPolicy.PER_OP) {
+                for (Pending p : group) {
+                    long end = write(new ByteBuffer[] { p.record });
+                    channel.force(false);
+                    written = end;
+                    p.done.complete(null);
+                }
+                return;
+            }
+            ByteBuffer[] records = new ByteBuffer[group.size()];
+            for (int i = 0; i < records.length; i++)
+                records[i] = group.get(i).record;
+            long end = write(records);
+            if (policy == FsyncPolicy.GROUP)
+                channel.force(false);
+            written = end;
+            group.forEach(p -> p.done.complete(null));
+        } catch (IOException e) {
+            System.err.println("Mutation log write failed: " + e.getMessage());
+            group.forEach(p -> p.done.completeExceptionally(e));
+            discardTorn(e);
+        }
+    }
+
+    // a failed write may have left part of a record behind, and read()
+    // stops at the first torn record, so nothing written after it would
+    // ever be recovered. Cut the segment back to its last whole record
+    // (under NONE that loses records callers were already told about, the
+    // policy never promised them). If even that fails, the log stops
+    private void discardTorn(IOException cause) {
+        try {
+            channel.truncate(written);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            fail(cause);
+        }
+    }
+
+    // from here on every append, queued or not, fails with cause
+    private void fail(IOException cause) {
+        System.err.println("Mutation log failed, no more mutations will be accepted: " + cause.getMessage());
+        broken = true;
+        synchronized (queue) {
+            failure = new IOException("mutation log failed", cause);
+        }
+    }
+
+    private IOException failure() {
+        synchronized (queue) {
+            return failure;
+        }
+    }
+
+    private void switchSegment(Pending marker) {
+        if (broken) {
+            marker.done.completeExceptionally(failure());
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+            channel = openSegment(marker.nextGeneration);
+            marker.done.complete(null);
+        } catch (IOException e) {
+            // the old segment is closed and there is no new one to write to
+            System.err.println("Mutation log rotation failed: " + e.getMessage());
+            marker.done.completeExceptionally(e);
+            fail(e);
+        }
+    }
+
+    // returns the segment's end once the records are all in it
+    private long write(ByteBuffer[] records) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer r : records)
+            remaining += r.remaining();
+        long end = written + remaining;
+        while (remaining > 0)
+            remaining -= channel.write(records);
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed)
+                return;
+            closed = true;
+            queue.add(SHUTDOWN);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!broken)
+            channel.force(false);
+        channel.close();
+    }
+
+    /* ---------- reading, used by recovery ---------- */
+
+    static Path segmentPath(Path directory, long gen) {
+        return directory.resolve(SEGMENT_PREFIX + gen + SEGMENT_SUFFIX);
+    }
+
+    // generations of every segment in the directory, oldest first
+    public static List<Long> generations(Path directory) throws IOException {
+        List<Long> gens = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    gens.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        gens.sort(null);
+        return gens;
+    }
+
+    // every intact record of one segment in file order; a torn or corrupt
+    // record (crash mid-write) ends the segment
+    public static List<Entry> read(Path directory, long gen) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(segmentPath(directory, gen)));
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= RECORD_HEADER) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length < 8 || length > buf.remaining())
+                break;
+            crc.reset();
+            crc.update(buf.array(), buf.position(), length);
+            if ((int) crc.getValue() != checksum)
+                break;
+            ByteBuffer body = buf.slice(buf.position(), length);
+            buf.position(buf.position() + length);
+            long lsn = body.getLong();
+            entries.add(new Entry(lsn, Mutation.decode(body)));
+        }
+        return entries;
+    }
+
+    public static final class Entry {
+        private final long lsn;
+        private final Mutation mutation;
+
+        Entry(long lsn, Mutation mutation) {
+            this.lsn = lsn;
+            this.mutation = mutation;
+        }
+
+        public long lsn() {
+            return lsn;
+        }
+
+        public Mutation mutation() {
+            return mutation;
+        }
+    }
+
+    // handle for one queued mutation
+    public static final class Commit {
+        private final long lsn;
+        private final CompletableFuture<Void> done;
+
+        Commit(long lsn, CompletableFuture<Void> done) {
+            this.lsn = lsn;
+            this.done = done;
+        }
+
+        public long lsn() {
+            return lsn;
+        }
+
+        // block until committed, surfacing a failed write as IOException
+        public void await() throws IOException {
+            long from = System.nanoTime();
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                throw new IOException("mutation log write failed", e.getCause());
+            } finally {
+                Metrics.logWait.recordNanos(System.nanoTime() - from);
+            }
+        }
+    }
+
+    // result of rotate(): the old generation holds every LSN <= lsn, and is
+    // fully written once done completes
+    public static final class Rotation {
+        private final long coveredGeneration;
+        private final long lsn;
+        private final CompletableFuture<Void> done;
+
+        Rotation(long coveredGeneration, long lsn, CompletableFuture<Void> done) {
+            this.coveredGeneration = coveredGeneration;
+            this.lsn = lsn;
+            this.done = done;
+        }
+
+        public long coveredGeneration() {
+            return coveredGeneration;
+        }
+
+        public long lsn() {
+            return lsn;
+        }
+
+        public void await() throws IOException {
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                throw new IOException("mutation log rotation failed", e.getCause());
+            }
+        }
+    }
+
+    private static class Pending {
+        final ByteBuffer record; // null for rotation / shutdown markers
+        final long nextGeneration;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(ByteBuffer record, long nextGeneration) {
+            this.record = record;
+            this.nextGeneration = nextGeneration;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// a blob kept a second time as deflated chunks, so a chunked DWN to a
+// client that can inflate streams the stored bytes with transferTo and
+// never compresses anything on the request path. Layout:
+//
+//   magic (4) | chunk size (4) | chunk count (4)
+//   per chunk: offset (8) | stored length (4, top bit if deflated) | CRC32C (4)
+//   chunk bytes
+//
+// chunks that wouldn't shrink are stored as they are. The checksums are
+// over the original bytes, the same ones ChunkedTransfer puts on the wire
+public final class PackedBlob implements AutoCloseable {
+
+    private static final int MAGIC = 0x464F525A, // "FORZ"
+            HEADER = 12,
+            ENTRY = 16;
+
+    private final FileChannel file;
+    private final int chunkSize;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] checksums;
+
+    private PackedBlob(FileChannel file, int chunkSize, long[] offsets, int[] lengths, int[] checksums) {
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.checksums = checksums;
+    }
+
+    // writes target from blob; a reader never sees it half written
+    public static void write(Path blob, Path target, int chunkSize) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(blob, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            int chunks = ChunkedTransfer.chunkCount(size, chunkSize);
+            ByteBuffer table = ByteBuffer.allocate(HEADER + chunks * ENTRY);
+            table.putInt(MAGIC).putInt(chunkSize).putInt(chunks);
+            ByteBuffer raw = ByteBuffer.allocateDirect(chunkSize);
+            ByteBuffer packed = ByteBuffer.allocateDirect(chunkSize);
+            long offset = table.capacity();
+            for (int i = 0; i < chunks; i++) {
+                raw.clear();
+                while (raw.hasRemaining()) {
+                    if (in.read(raw) < 0)
+                        break; // the last, short chunk
+                }
+                raw.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(raw);
+                raw.flip();
+
+                packed.clear();
+                boolean deflated = Compression.deflate(raw, packed);
+                ByteBuffer body = deflated ? packed.flip() : raw.rewind();
+                int length = body.remaining();
+                table.putLong(offset).putInt(length | (deflated ? ChunkedTransfer.DEFLATED : 0))
+                        .putInt((int) crc.getValue());
+                while (body.hasRemaining())
+                    offset += out.write(body, offset);
+            }
+            table.flip();
+            while (table.hasRemaining())
+                out.write(table, table.position());
+            out.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static PackedBlob open(Path path) throws IOException {
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            file.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC)
+                throw new IOException("Not a packed blob: " + path);
+            int chunkSize = header.getInt();
+            int chunks = header.getInt();
+            ByteBuffer table = ByteBuffer.allocate(chunks * ENTRY);
+            while (table.hasRemaining()) {
+                if (file.read(table, HEADER + table.position()) < 0)
+                    throw new IOException("Truncated packed blob: " + path);
+            }
+            table.flip();
+            long[] offsets = new long[chunks];
+            int[] lengths = new int[chunks];
+            int[] checksums = new int[chunks];
+            for (int i = 0; i < chunks; i++) {
+                offsets[i] = table.getLong();
+                lengths[i] = table.getInt();
+                checksums[i] = table.getInt();
+            }
+            return new PackedBlob(file, chunkSize, offsets, lengths, checksums);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public int chunks() {
+        return offsets.length;
+    }
+
+    // chunks first, first + stride, ... straight from the stored bytes
+    public int sendChunks(int first, int stride, SocketChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ChunkedTransfer.HEADER);
+        int sent = 0;
+        for (int i = first; i < offsets.length; i += stride) {
+            int stored = lengths[i];
+            ChunkedTransfer.sendStored(file, offsets[i], stored & ~ChunkedTransfer.DEFLATED,
+                    (stored & ChunkedTransfer.DEFLATED) != 0, i, checksums[i], out, header);
+            sent++;
+        }
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
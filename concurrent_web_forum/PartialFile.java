@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+// the receiving end of a chunked transfer: a ".part" file that chunks are
+// written into at their own offsets, by any number of connections at once,
+// plus the set of chunks that have arrived with a good checksum. The server
+// keeps one per resumable upload, the client one per download.
+public final class PartialFile {
+
+    private final Path path;
+    private final long size;
+    private final int chunkSize;
+    private final int chunks;
+    private final FileChannel channel;
+    private final BitSet received;
+    private boolean completed = false;
+
+    private PartialFile(Path path, long size, int chunkSize, FileChannel channel) {
+        this.path = path;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunks = ChunkedTransfer.chunkCount(size, chunkSize);
+        this.channel = channel;
+        this.received = new BitSet(chunks);
+    }
+
+    // starts from scratch, any older part file is thrown away
+    public static PartialFile create(Path path, long size, int chunkSize) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        return new PartialFile(path, size, chunkSize, channel);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public int chunks() {
+        return chunks;
+    }
+
+    // the last chunk may be short
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    // positional writes, safe from several connections at once
+    FileChannel channel() {
+        return channel;
+    }
+
+    synchronized void mark(int index) {
+        received.set(index);
+    }
+
+    public synchronized boolean has(int index) {
+        return received.get(index);
+    }
+
+    // index of the first chunk still missing, chunks() if none is
+    public synchronized int firstMissing() {
+        return Math.min(received.nextClearBit(0), chunks);
+    }
+
+    // everything before this has been acknowledged; a resumed transfer
+    // starts here
+    public synchronized long resumeOffset() {
+        return Math.min((long) firstMissing() * chunkSize, size);
+    }
+
+    // true exactly once, for whoever saw the last chunk land
+    public synchronized boolean claimCompletion() {
+        if (completed || received.cardinality() < chunks)
+            return false;
+        completed = true;
+        return true;
+    }
+
+    // make the finished file durable and move it into place
+    public void commit(Path target) throws IOException {
+        channel.truncate(size);
+        channel.force(true);
+        channel.close();
+        Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Could not remove " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// salted, deliberately slow password hashes (PBKDF2-HMAC-SHA256 from the
+// JDK), stored as one space-free string so they travel through
+// credentials.txt, the log and the snapshot wherever a password used to:
+//
+//   pbkdf2-sha256$<iterations>$<salt, base64>$<hash, base64>
+//
+// Anything else is a plaintext password from before hashing. It still
+// verifies, and needsRehash() says to replace it on the next good login.
+// Each hash costs forum.hashIterations rounds; see CredentialStore for
+// where that time is spent
+public final class PasswordHash {
+
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16, HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHash() {
+    }
+
+    public static String hash(String password) {
+        return hash(password, ServerConfig.HASH_ITERATIONS);
+    }
+
+    public static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + '$' + b64.encodeToString(salt) + '$'
+                + b64.encodeToString(derive(password, salt, iterations));
+    }
+
+    // false for a null credential, a placeholder user that can never log in
+    public static boolean verify(String stored, String password) {
+        if (stored == null || password == null)
+            return false;
+        if (!isHashed(stored))
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+                    password.getBytes(StandardCharsets.UTF_8));
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+            return false;
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(password, b64.decode(parts[2]), Integer.parseInt(parts[1])));
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    // plaintext, or hashed with fewer rounds than are configured now
+    public static boolean needsRehash(String stored) {
+        if (stored == null)
+            return false;
+        if (!isHashed(stored))
+            return true;
+        int end = stored.indexOf('$', PREFIX.length());
+        return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < ServerConfig.HASH_ITERATIONS;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is missing from this JDK", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
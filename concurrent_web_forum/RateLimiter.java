@@ -0,0 +1,193 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// token buckets per username and per client address, with a budget per
+// command, so one noisy script can't take the workers from everyone else.
+// A request has to fit both its user's bucket and its address's; the
+// address gets a multiple of the user budget since several users can share
+// one (NAT, the load generator).
+//
+// Each bucket is one long, the time its next token is due (GCRA): taking a
+// token is a single compareAndSet that moves it on by the refill interval,
+// refused if that would put it more than a burst ahead of now. No locks, no
+// refill thread. Memory is bounded: buckets left full for idleMs are swept
+// out, and past maxKeys new clients share one overflow bucket set until
+// room is swept
+public final class RateLimiter {
+
+    // the OTHER slot takes opcodes out of range
+    private static final int OPS = Metrics.OPS.length;
+
+    // per opcode: nanos per token and how far ahead of now a bucket may
+    // run, 0 for unlimited
+    private final long[] interval = new long[OPS];
+    private final long[] burst = new long[OPS];
+    private final int addressFactor;
+    private final int maxKeys;
+    private final long idleNanos;
+
+    private final Map<String, AtomicLongArray> users = new ConcurrentHashMap<>();
+    private final Map<InetAddress, AtomicLongArray> addresses = new ConcurrentHashMap<>();
+    private final AtomicLongArray overflowUsers = new AtomicLongArray(OPS),
+            overflowAddresses = new AtomicLongArray(OPS);
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    // limits like "*=100/200,CRT=5/20,XIT=off": requests per second and
+    // burst per opcode, "*" for the rest; "" or "off" for no limits at all
+    public RateLimiter(String limits, int addressFactor, int maxKeys, long idleMs) {
+        this.addressFactor = Math.max(1, addressFactor);
+        this.maxKeys = maxKeys;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        String spec = limits.trim();
+        if (spec.isEmpty() || spec.equalsIgnoreCase("off"))
+            return;
+        long[] fallback = null;
+        boolean[] set = new boolean[OPS];
+        for (String entry : spec.split(",")) {
+            String[] kv = entry.trim().split("=");
+            if (kv.length != 2)
+                throw new IllegalArgumentException("Bad rate limit \"" + entry + "\", expected OP=rate/burst");
+            long[] budget = budget(kv[1].trim());
+            if (kv[0].trim().equals("*")) {
+                fallback = budget;
+                continue;
+            }
+            int op = opcode(kv[0].trim());
+            interval[op] = budget[0];
+            burst[op] = budget[1];
+            set[op] = true;
+        }
+        if (fallback != null) {
+            for (int op = 0; op < OPS; op++) {
+                if (!set[op]) {
+                    interval[op] = fallback[0];
+                    burst[op] = fallback[1];
+                }
+            }
+        }
+    }
+
+    // "rate/burst" (or "rate", burst = rate) to {interval, burst} in nanos
+    private static long[] budget(String value) {
+        if (value.equalsIgnoreCase("off"))
+            return new long[] { 0, 0 };
+        String[] parts = value.split("/");
+        double rate = Double.parseDouble(parts[0]);
+        double tokens = parts.length > 1 ? Double.parseDouble(parts[1]) : Math.max(1, rate);
+        if (rate <= 0 || tokens < 1)
+            throw new IllegalArgumentException("Bad rate limit \"" + value + "\"");
+        long interval = Math.max(1, (long) (1e9 / rate));
+        return new long[] { interval, (long) (interval * (tokens - 1)) };
+    }
+
+    private static int opcode(String name) {
+        for (int op = 0; op < OPS - 1; op++) {
+            if (Metrics.OPS[op].equalsIgnoreCase(name))
+                return op;
+        }
+        throw new IllegalArgumentException("Unknown command \"" + name + "\" in rate limits");
+    }
+
+    public boolean enabled() {
+        for (long i : interval) {
+            if (i > 0)
+                return true;
+        }
+        return false;
+    }
+
+    // takes a token for action from the user's bucket, if there is a
+    // username, and from the address's. username has to be who the
+    // request was authenticated as, not whoever the frame names, or one
+    // client could drain another's bucket. The user goes first so a user
+    // already over their limit doesn't use up the address's budget for the
+    // others behind it; a flood under made-up names still runs into the
+    // address's
+    public boolean allow(int action, String username, InetAddress address) {
+        int op = action >= 0 && action < OPS - 1 ? action : OPS - 1;
+        if (interval[op] == 0)
+            return true;
+        long now = System.nanoTime();
+        if (username != null && !username.isEmpty()
+                && !take(buckets(users, username, overflowUsers), op, now, interval[op], burst[op]))
+            return false;
+        return address == null || take(buckets(addresses, address, overflowAddresses), op, now,
+                Math.max(1, interval[op] / addressFactor), burst[op]);
+    }
+
+    private static boolean take(AtomicLongArray buckets, int op, long now, long interval, long burst) {
+        while (true) {
+            long due = buckets.get(op);
+            // a bucket idle long enough to be full starts from now
+            long next = (due == 0 || due - now < 0 ? now : due) + interval;
+            if (next - now > burst + interval)
+                return false;
+            if (buckets.compareAndSet(op, due, next))
+                return true;
+        }
+    }
+
+    private <K> AtomicLongArray buckets(Map<K, AtomicLongArray> map, K key, AtomicLongArray overflow) {
+        AtomicLongArray buckets = map.get(key);
+        if (buckets != null)
+            return buckets;
+        if (map.size() >= maxKeys) {
+            sweep();
+            if (map.size() >= maxKeys)
+                return overflow;
+        }
+        return map.computeIfAbsent(key, k -> new AtomicLongArray(OPS));
+    }
+
+    /* ---------- eviction ---------- */
+
+    // drops buckets that have been full for idleMs, they'd start full anyway.
+    // One sweep at a time; a caller that finds one running carries on
+    public void sweep() {
+        if (!sweeping.compareAndSet(false, true))
+            return;
+        try {
+            long now = System.nanoTime();
+            sweep(users, now);
+            sweep(addresses, now);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private <K> void sweep(Map<K, AtomicLongArray> map, long now) {
+        for (Iterator<AtomicLongArray> it = map.values().iterator(); it.hasNext();) {
+            AtomicLongArray buckets = it.next();
+            boolean idle = true;
+            for (int op = 0; op < OPS && idle; op++) {
+                long due = buckets.get(op);
+                idle = due == 0 || now - due > idleNanos;
+            }
+            // a token taken between the check and the removal is forgotten,
+            // which only ever errs towards letting a request through
+            if (idle)
+                it.remove();
+        }
+    }
+
+    public ScheduledExecutorService sweepEvery(long intervalMs) {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleAtFixedRate(this::sweep, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        return sweeper;
+    }
+
+    public int tracked() {
+        return users.size() + addresses.size();
+    }
+}
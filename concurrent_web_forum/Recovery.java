@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// rebuilds users and threads at startup from the last snapshot plus the log
+// segments written after it. Snapshot thread blocks are decoded in
+// parallel, then log records are grouped by thread title and each group is
+// replayed in parallel (order within a thread is preserved).
+//
+// A thread in the snapshot replays records newer than its own LSN; a title
+// that isn't in the snapshot replays records newer than the checkpoint LSN.
+public class Recovery {
+
+    private final Path directory;
+    private final Snapshot snapshot;
+    private final List<MutationLog.Entry> tail = new ArrayList<>();
+    private long lastGeneration;
+    private long lastLsn;
+
+    private Recovery(Path directory, Snapshot snapshot) {
+        this.directory = directory;
+        this.snapshot = snapshot;
+    }
+
+    // read everything off disk; nothing is applied yet
+    public static Recovery scan(Path directory) throws IOException {
+        Snapshot snapshot = Snapshot.read(directory.resolve(Snapshot.FILE_NAME));
+        Recovery r = new Recovery(directory, snapshot);
+        long covered = snapshot == null ? 0 : snapshot.coveredGeneration();
+        r.lastGeneration = covered;
+        r.lastLsn = snapshot == null ? 0 : snapshot.checkpointLsn();
+
+        for (long gen : MutationLog.generations(directory)) {
+            r.lastGeneration = Math.max(r.lastGeneration, gen);
+            if (gen <= covered)
+                continue; // already folded into the snapshot
+            for (MutationLog.Entry e : MutationLog.read(directory, gen)) {
+                r.tail.add(e);
+                r.lastLsn = Math.max(r.lastLsn, e.lsn());
+            }
+        }
+        return r;
+    }
+
+    // the new log starts past every generation on disk
+    public long nextGeneration() {
+        return lastGeneration + 1;
+    }
+
+    public long lastLsn() {
+        return lastLsn;
+    }
+
+    // no snapshot and no segment, the directory has never had a log; it may
+    // still hold an older server's files, see LegacyImport
+    public boolean fresh() {
+        return snapshot == null && lastGeneration == 0;
+    }
+
+    public int replayedRecords() {
+        return tail.size();
+    }
+
+    public Map<String, ForumThread> restore(UserList users, MutationLog log, Materializer materializer) {
+        if (snapshot != null)
+            snapshot.users().forEach(users::restore);
+        for (MutationLog.Entry e : tail) {
+            if (e.mutation().type() == Mutation.Type.REGISTER)
+                users.restore(e.mutation().user(), e.mutation().text());
+            else if (e.mutation().type() == Mutation.Type.PASSWORD)
+                users.restoreCredential(e.mutation().user(), e.mutation().text());
+        }
+        Function<String, User> lookup = users::resolve;
+
+        Map<String, ForumThread> threads = new ConcurrentHashMap<>();
+        if (snapshot != null) {
+            snapshot.threadBlocks().parallelStream().forEach(block -> {
+                ForumThread t = ForumThread.fromSnapshot(block.duplicate(), lookup, directory, log, materializer);
+                threads.put(t.getTitle(), t);
+            });
+        }
+
+        Map<String, List<MutationLog.Entry>> byThread = new HashMap<>();
+        for (MutationLog.Entry e : tail) {
+            if (e.mutation().type() != Mutation.Type.REGISTER && e.mutation().type() != Mutation.Type.PASSWORD)
+                byThread.computeIfAbsent(e.mutation().thread(), k -> new ArrayList<>()).add(e);
+        }
+        long checkpointLsn = snapshot == null ? 0 : snapshot.checkpointLsn();
+        byThread.entrySet().parallelStream().forEach(group -> replay(group.getKey(), group.getValue(),
+                threads, checkpointLsn, lookup, log, materializer));
+        return threads;
+    }
+
+    private void replay(String title, List<MutationLog.Entry> entries, Map<String, ForumThread> threads,
+            long checkpointLsn, Function<String, User> users, MutationLog log, Materializer materializer) {
+        ForumThread thread = threads.get(title);
+        long after = thread != null ? thread.lastLsn() : checkpointLsn;
+        boolean changed = false;
+        for (MutationLog.Entry e : entries) {
+            if (e.lsn() <= after)
+                continue;
+            changed = true;
+            Mutation m = e.mutation();
+            switch (m.type()) {
+                case CREATE_THREAD:
+                    thread = new ForumThread(title, users.apply(m.user()), directory, log, materializer);
+                    thread.replay(e, users);
+                    break;
+                case REMOVE_THREAD:
+                    thread = null;
+                    break;
+                default:
+                    if (thread != null)
+                        thread.replay(e, users);
+                    break;
+            }
+        }
+        if (!changed)
+            return;
+        if (thread == null) {
+            threads.remove(title);
+        } else {
+            threads.put(title, thread);
+            materializer.markDirty(thread); // the text file may be behind the log
+        }
+    }
+
+    // for the startup banner
+    public static long countPosts(Collection<ForumThread> threads) {
+        long posts = 0;
+        for (ForumThread t : threads)
+            posts += t.postCount();
+        return posts;
+    }
+}
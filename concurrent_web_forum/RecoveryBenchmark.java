@@ -0,0 +1,83 @@
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// cold-start time against forum size. Builds a forum through the normal
+// MessageHandler path in a scratch directory, checkpoints it, adds a log
+// tail on top, stops without a final checkpoint (like a crash) and then
+// times a fresh MessageHandler recovering it.
+//
+// usage: java -Xmx8g RecoveryBenchmark <threads> <posts_per_thread> [tail_percent]
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java RecoveryBenchmark <threads> <posts_per_thread> [tail_percent]");
+            return;
+        }
+        int threads = Integer.parseInt(args[0]);
+        int postsPerThread = Integer.parseInt(args[1]);
+        double tailShare = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.05;
+
+        // nothing in the background while the forum is being built
+        System.setProperty("forum.fsync", "none");
+        System.setProperty("forum.materializeMs", "3600000");
+        System.setProperty("forum.checkpointMs", "3600000");
+
+        Path dir = Files.createTempDirectory("forum-recovery");
+        try {
+            Files.createFile(dir.resolve("credentials.txt"));
+            MessageHandler handler = new MessageHandler(dir);
+            handler.addUser("bench", "bench");
+
+            int tailPosts = (int) Math.round(postsPerThread * tailShare);
+            populate(handler, threads, postsPerThread - tailPosts, true);
+            handler.checkpoint();
+            populate(handler, threads, tailPosts, false);
+            handler.shutdown(false);
+
+            long snapshotBytes = Files.size(dir.resolve(Snapshot.FILE_NAME));
+            long logBytes = 0;
+            for (long gen : MutationLog.generations(dir))
+                logBytes += Files.size(MutationLog.segmentPath(dir, gen));
+            handler = null;
+            System.gc();
+
+            long start = System.nanoTime();
+            MessageHandler recovered = new MessageHandler(dir);
+            long elapsed = System.nanoTime() - start;
+            recovered.shutdown(false);
+
+            System.out.printf("threads=%d posts=%d snapshot=%.1f MB log tail=%.1f MB cold start=%d ms%n",
+                    threads, (long) threads * postsPerThread, snapshotBytes / 1e6, logBytes / 1e6,
+                    elapsed / 1_000_000);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static void populate(MessageHandler handler, int threads, int posts, boolean create)
+            throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        for (int t = 0; t < threads; t++) {
+            final String title = "thread" + t;
+            pool.execute(() -> {
+                try {
+                    if (create)
+                        handler.createThread(title, "bench");
+                    for (int i = 0; i < posts; i++)
+                        handler.postMessage(title, "bench", "benchmark message number " + i + " in " + title);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+    }
+}
@@ -0,0 +1,173 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// the replies already sent for recent requests, per client address and
+// request id, so a retried datagram is answered from here instead of being
+// run again: a retried MSG doesn't post twice and a retried DLT doesn't
+// delete whatever got renumbered into the old slot. A retry that arrives
+// while the first copy is still being worked on gets the replies too, once
+// it is finished.
+//
+// Bounded twice over: each client keeps its last perClient requests and
+// the least recently heard-from clients are forgotten past maxClients. A
+// reply bigger than maxEntryBytes (a long RDT) isn't kept; a retry of one
+// just runs again, which is harmless for the read-only requests that get
+// that big.
+public final class ReplyCache {
+
+    private final int perClient;
+    private final int maxEntryBytes;
+    // access ordered, so the eldest is the client heard from longest ago;
+    // guarded by this
+    private final LinkedHashMap<SocketAddress, Map<Integer, Entry>> clients;
+
+    private final LongAdder replayed = new LongAdder(),
+            inFlight = new LongAdder(),
+            rerun = new LongAdder();
+
+    public ReplyCache(int perClient, int maxClients, int maxEntryBytes) {
+        this.perClient = perClient;
+        this.maxEntryBytes = maxEntryBytes;
+        this.clients = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SocketAddress, Map<Integer, Entry>> eldest) {
+                return size() > maxClients;
+            }
+        };
+    }
+
+    // true if req should be run. Otherwise it is a retry and has been dealt
+    // with: the cached replies went to send, or will once the first copy
+    // finishes. send may be called from a worker thread
+    public boolean admit(Frame req, Consumer<ByteBuffer> send) {
+        if (req.requestId() == 0)
+            return true; // text-format clients don't number their requests
+        Entry entry;
+        synchronized (this) {
+            Map<Integer, Entry> recent = clients.computeIfAbsent(req.sender(), k -> newClient());
+            entry = recent.get(req.requestId());
+            // an id reused for a different command is a new request, e.g.
+            // from a restarted client
+            if (entry == null || entry.action != req.action()) {
+                recent.put(req.requestId(), new Entry(req.action()));
+                return true;
+            }
+        }
+        return entry.replay(send);
+    }
+
+    // keeps a copy of a datagram sent in reply to req, while it is running
+    // or after (UPD's confirmation comes once the transfer is in)
+    public void record(Frame req, ByteBuffer datagram) {
+        Entry entry = find(req);
+        if (entry != null)
+            entry.record(datagram.duplicate(), maxEntryBytes);
+    }
+
+    // req has sent everything it is going to send from its worker; retries
+    // that came in meanwhile are answered now
+    public void finish(Frame req) {
+        Entry entry = find(req);
+        if (entry != null)
+            entry.finish();
+    }
+
+    // req was never run (the server was too busy), so a retry of it is a
+    // new request rather than one to wait on
+    public synchronized void forget(Frame req) {
+        if (req.requestId() == 0)
+            return;
+        Map<Integer, Entry> recent = clients.get(req.sender());
+        if (recent != null)
+            recent.remove(req.requestId());
+    }
+
+    public String summary() {
+        return String.format("Reply cache %d replayed, %d of them while in flight, %d rerun",
+                replayed.sum(), inFlight.sum(), rerun.sum());
+    }
+
+    private synchronized Entry find(Frame req) {
+        if (req.requestId() == 0)
+            return null;
+        Map<Integer, Entry> recent = clients.get(req.sender());
+        return recent == null ? null : recent.get(req.requestId());
+    }
+
+    private Map<Integer, Entry> newClient() {
+        return new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > perClient;
+            }
+        };
+    }
+
+    private final class Entry {
+        final int action;
+        // guarded by this entry
+        private final List<byte[]> datagrams = new ArrayList<>();
+        private int bytes = 0;
+        private boolean done = false;
+        private boolean tooBig = false;
+        // a retry that came in before done, owed the replies
+        private Consumer<ByteBuffer> waiting;
+
+        Entry(int action) {
+            this.action = action;
+        }
+
+        synchronized void record(ByteBuffer datagram, int maxBytes) {
+            if (tooBig)
+                return;
+            bytes += datagram.remaining();
+            if (bytes > maxBytes) {
+                tooBig = true;
+                datagrams.clear();
+                return;
+            }
+            byte[] copy = new byte[datagram.remaining()];
+            datagram.get(copy);
+            datagrams.add(copy);
+        }
+
+        synchronized void finish() {
+            done = true;
+            // too big to keep means the retry has to come again
+            if (waiting != null && !tooBig) {
+                inFlight.increment();
+                send(waiting);
+            }
+            waiting = null;
+        }
+
+        synchronized boolean replay(Consumer<ByteBuffer> send) {
+            if (!done) {
+                waiting = send;
+                return false;
+            }
+            if (tooBig) {
+                // run it again; retries of the rerun wait for it as above
+                done = false;
+                tooBig = false;
+                bytes = 0;
+                rerun.increment();
+                return true;
+            }
+            send(send);
+            return false;
+        }
+
+        private void send(Consumer<ByteBuffer> send) {
+            for (byte[] datagram : datagrams)
+                send.accept(ByteBuffer.wrap(datagram));
+            replayed.increment();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// Jacobson/Karels retransmission timeout (RFC 6298): a smoothed round trip
+// time and its mean deviation, with the timeout at srtt + 4 * rttvar. Only
+// requests answered on their first transmission are sampled (Karn), since
+// a reply to a retransmitted one can't be matched to either send
+public final class RttEstimator {
+
+    private final long minRtoNanos;
+    private final long maxRtoNanos;
+    // guarded by this
+    private long srtt = -1;
+    private long rttvar;
+    private long rto;
+
+    public RttEstimator(long initialRtoMs, long minRtoMs, long maxRtoMs) {
+        this.minRtoNanos = minRtoMs * 1_000_000;
+        this.maxRtoNanos = maxRtoMs * 1_000_000;
+        this.rto = clamp(initialRtoMs * 1_000_000);
+    }
+
+    public synchronized void sample(long rttNanos) {
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            // gains of 1/4 and 1/8, as in the RFC
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        rto = clamp(srtt + 4 * rttvar);
+    }
+
+    public synchronized long rtoNanos() {
+        return rto;
+    }
+
+    // the smoothed round trip, -1 before the first sample
+    public synchronized long srttNanos() {
+        return srtt;
+    }
+
+    // the timeout after one more expiry of the same request
+    public long backoff(long rtoNanos) {
+        return clamp(rtoNanos * 2);
+    }
+
+    private long clamp(long nanos) {
+        return Math.max(minRtoNanos, Math.min(maxRtoNanos, nanos));
+    }
+}
@@ -1,23 +1,57 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Server {
     private static int serverPort;
-    private static ServerSocket tcpListener;
-    private static DatagramSocket socket;
+    // UPD/DWN connections, accepted by their own thread and matched to the
+    // request by session token
+    private static ServerSocketChannel tcpListener;
+    private static final TransferTable transfers = new TransferTable(ServerConfig.TRANSFER_TIMEOUT_MS,
+            ServerConfig.RESUME_WINDOW_MS);
+    private static final BufferPool chunkBuffers = new BufferPool(ServerConfig.CHUNK_SIZE, 16);
+    private static DatagramChannel channel;
+    private static Selector selector;
+    private static SelectionKey channelKey;
     private static MessageHandler handler;
+    // who is logged in, by the token LOGIN handed them
+    private static SessionTable sessions;
+    // replies are queued by workers and written by the event loop, so no
+    // worker ever blocks on the shared channel
+    private static final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
     // from spec: “We will spawn a maximum of three concurrent clients
     // when testing with multiple concurrent clients.”
-    private static final ExecutorService pool = Executors.newFixedThreadPool(10);
+    // pool layout is picked with -Dforum.exec=fixed|virtual|split
+    private static final Dispatcher dispatcher = new Dispatcher(ServerConfig.EXECUTION_MODE,
+            ServerConfig.WORKERS, ServerConfig.BULK_WORKERS);
 
     // define constants for easier correlation
     public static final int MAX_SIZE = 1024,
+            // largest payload a single UDP datagram can carry
+            MAX_DATAGRAM = 65507,
             MAX_FILE_SIZE = 102400,
             TIMEOUT_MS = 1000,
             MAX_RETRIES = 16,
+            POOLED_BUFFERS = 256,
+            // cap on datagrams drained per wakeup so queued replies still go out
+            RECEIVE_BATCH = 64,
 
             FIRST_CONN = 0,
             LOGIN = 1,
@@ -36,7 +70,21 @@ public class Server {
             SUCCESS = 1,
             // stands for from client
             FC = 2,
-            UNAUTHENTICATED = 3;
+            UNAUTHENTICATED = 3,
+            // one piece of a reply too big for a datagram, see Fragments
+            FRAGMENT = 4,
+            // the server had no room for the request; back off and send it again
+            BUSY = 5,
+            // over the sender's rate limit; same, but it is the sender's doing
+            THROTTLED = 6;
+
+    private static final BufferPool buffers = new BufferPool(MAX_SIZE, POOLED_BUFFERS);
+    // answers retries from what was sent the first time
+    private static final ReplyCache replies = new ReplyCache(ServerConfig.REPLY_CACHE_PER_CLIENT,
+            ServerConfig.REPLY_CACHE_CLIENTS, ServerConfig.REPLY_CACHE_ENTRY_BYTES);
+    // per user and per address budgets, checked before a request is queued
+    private static final RateLimiter limiter = new RateLimiter(ServerConfig.RATE_LIMITS,
+            ServerConfig.ADDRESS_RATE_FACTOR, ServerConfig.RATE_LIMIT_KEYS, ServerConfig.RATE_IDLE_MS);
 
     public static void main(String[] args) throws Exception {
         if (args.length != 1) {
@@ -45,61 +93,296 @@ public class Server {
         }
 
         serverPort = Integer.parseInt(args[0]);
-        socket = new DatagramSocket(serverPort);
-        tcpListener = new ServerSocket(serverPort);
-        tcpListener.setSoTimeout(TIMEOUT_MS);
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(serverPort));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channelKey = channel.register(selector, SelectionKey.OP_READ);
+
+        tcpListener = ServerSocketChannel.open();
+        tcpListener.bind(new InetSocketAddress(serverPort));
+        Thread acceptor = new Thread(Server::acceptLoop, "transfer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
 
         handler = new MessageHandler();
+        handler.start();
+        sessions = new SessionTable(ServerConfig.SESSION_IDLE_MS, session -> {
+            handler.logOut(session.user());
+            String name = session.user().name();
+            ServerLog.info("XIT", name, name + " timed out and has been logged out");
+        });
+        if (limiter.enabled())
+            limiter.sweepEvery(ServerConfig.RATE_IDLE_MS);
+        startMetrics();
+        // Ctrl-C still flushes the mutation log and the thread files
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                ServerLog.close();
+                System.out.println(ViewStats.summary());
+                System.out.println(replies.summary());
+                System.out.println(Metrics.summary());
+                handler.close();
+            } catch (Exception e) {
+                System.err.println("Unclean shutdown: " + e.getMessage());
+            }
+        }));
 
-        System.out.println("Waiting for clients");
+        System.out.println("Waiting for clients (" + dispatcher.mode().name().toLowerCase() + " workers)");
         eventLoop();
     }
 
+    private static void startMetrics() throws IOException {
+        Metrics.gauge("forum_control_queued", () -> dispatcher.queued(false));
+        Metrics.gauge("forum_control_active", () -> dispatcher.active(false));
+        Metrics.gauge("forum_bulk_queued", () -> dispatcher.queued(true));
+        Metrics.gauge("forum_bulk_active", () -> dispatcher.active(true));
+        Metrics.gauge("forum_users_online", () -> handler.onlineCount());
+        Metrics.gauge("forum_sessions", () -> sessions.size());
+        Metrics.gauge("forum_log_dropped", ServerLog::dropped);
+        Metrics.gauge("forum_rate_buckets", limiter::tracked);
+        Metrics.gauge("forum_credential_queued", () -> handler.credentialsQueued());
+        if (ServerConfig.METRICS_PORT > 0) {
+            Metrics.serve(ServerConfig.METRICS_PORT);
+            System.out.println("Metrics on http://127.0.0.1:" + ServerConfig.METRICS_PORT + "/metrics");
+        }
+        if (ServerConfig.METRICS_DUMP_MS > 0)
+            Metrics.dumpEvery(ServerConfig.METRICS_DUMP_MS);
+    }
+
     private static void eventLoop() throws IOException {
+        // decoding happens on this thread, so one receive buffer is enough
+        ByteBuffer in = buffers.acquire();
         while (true) {
-            DatagramPacket packet = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
-            socket.receive(packet); // blocks for next UDP datagram
-            pool.execute(new ClientTask(packet)); // hand it to a worker thread
+            selector.select(); // blocks until a datagram arrives or a worker queues a reply
+            if (channelKey.isReadable())
+                receiveBatch(in);
+            flushReplies();
+            selector.selectedKeys().clear();
         }
     }
 
-    private static class ClientTask implements Runnable {
-        private final DatagramPacket request;
+    private static void receiveBatch(ByteBuffer in) throws IOException {
+        for (int i = 0; i < RECEIVE_BATCH; i++) {
+            in.clear();
+            SocketAddress sender = channel.receive(in);
+            if (sender == null)
+                return; // socket drained
+
+            in.flip();
+            long received = System.nanoTime();
+            Frame request;
+            try {
+                request = WireCodec.forPacket(in).decode(in, sender);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                Metrics.malformed.increment();
+                ServerLog.warn("decode", null, "Dropped malformed datagram from " + sender);
+                continue;
+            }
+            long decoded = System.nanoTime();
+            Metrics.decode.recordNanos(decoded - received);
+            // a retry is answered (or ignored) right here, without a worker
+            if (!replies.admit(request, data -> queue(data, sender))) {
+                Metrics.retries.increment();
+                continue;
+            }
+            Metrics.request(request.action());
+            // a flood is turned away here, before it can take queue room.
+            // Only a request that checks out against its session is charged
+            // to its user, so nobody can spend someone else's budget by
+            // putting their name on frames; the rest count against the address
+            SessionTable.Session session = sessionOf(request);
+            String user = session == null ? null : session.user().name();
+            if (!limiter.allow(request.action(), user, ((InetSocketAddress) sender).getAddress())) {
+                Metrics.throttled.increment();
+                turnAway(request, THROTTLED, "Too many requests, slow down");
+                continue;
+            }
+            // hand it to a worker thread, if there is room for it
+            dispatcher.submit(request.action(), new ClientTask(request, received, decoded),
+                    () -> turnAway(request, BUSY, "Server busy, try again shortly"));
+        }
+    }
+
+    private static void flushReplies() throws IOException {
+        Outbound reply;
+        while ((reply = outbound.peek()) != null) {
+            try {
+                if (channel.send(reply.data, reply.target) == 0) {
+                    // kernel buffer full, wait until the channel is writable again
+                    channelKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException e) {
+                ServerLog.warn("send", null, "Failed to send reply to " + reply.target + ": " + e.getMessage());
+            }
+            outbound.poll();
+            buffers.release(reply.data);
+        }
+        channelKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    // encode straight into a pooled buffer, in whichever wire format the
+    // client spoke, and queue it for the event loop; safe from any worker.
+    // RDT and LST replies are the bulky text ones, they go out deflated to
+    // clients that can take it. A copy is kept for retries of the request
+    private static void reply(Frame req, int status, String content) {
+        reply(req, status, content, 0);
+    }
 
-        // packet is stored as a copy
-        ClientTask(DatagramPacket packet) {
-            byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
-            this.request = new DatagramPacket(data, data.length,
-                    packet.getAddress(), packet.getPort());
+    // the same, handing the client a session token (LOGIN)
+    private static void reply(Frame req, int status, String content, long session) {
+        boolean deflate = req.inflates() && (req.action() == RDT || req.action() == LST);
+        ByteBuffer buf = buffers.acquire();
+        try {
+            req.codec().encode(req.action(), status, req.requestId(), session, req.username(), content, deflate, buf);
+        } catch (BufferOverflowException e) {
+            // fragments are cut to fit MAX_SIZE, so this is a bug (or a single
+            // post too long for any fragment). Still sent whole rather than
+            // leaving the client retrying into the same overflow
+            buffers.release(buf);
+            buf = ByteBuffer.allocate(MAX_DATAGRAM);
+            req.codec().encode(req.action(), status, req.requestId(), session, req.username(), content, deflate, buf);
+            Metrics.oversizedReplies.increment();
+            ServerLog.error("reply", req.username(), "Reply to " + Metrics.OPS[req.action()] + " took "
+                    + buf.position() + " bytes, over the " + MAX_SIZE + "-byte datagram budget");
+        }
+        buf.flip();
+        replies.record(req, buf);
+        Metrics.reply(req.action(), status);
+        queue(buf, req.sender());
+    }
+
+    // req won't be run (BUSY, THROTTLED): say so, and forget it so the
+    // client's retry, after backing off, is run rather than left waiting
+    // for this copy. The reply isn't cached for the same reason
+    private static void turnAway(Frame req, int status, String content) {
+        replies.forget(req);
+        ServerLog.sampled(status == BUSY ? "busy" : "throttled", req.username(),
+                content + ", turned away a request from " + req.username());
+        ByteBuffer buf = buffers.acquire();
+        req.codec().encode(req.action(), status, req.requestId(), req.username(), content, false, buf);
+        buf.flip();
+        Metrics.reply(req.action(), status);
+        queue(buf, req.sender());
+    }
+
+    private static void queue(ByteBuffer datagram, SocketAddress target) {
+        outbound.add(new Outbound(datagram, target));
+        selector.wakeup();
+    }
+
+    private static class Outbound {
+        final ByteBuffer data;
+        final SocketAddress target;
+
+        Outbound(ByteBuffer data, SocketAddress target) {
+            this.data = data;
+            this.target = target;
+        }
+    }
+
+    private static class ClientTask implements Runnable {
+        private final Frame request;
+        // System.nanoTime() when the datagram came off the socket, and when
+        // it was handed to the dispatcher
+        private final long received, dispatched;
+
+        ClientTask(Frame request, long received, long dispatched) {
+            this.request = request;
+            this.received = received;
+            this.dispatched = dispatched;
         }
 
         @Override
         public void run() {
+            Metrics.queueWait.recordNanos(System.nanoTime() - dispatched);
+            if (request.action() == LOGIN) {
+                logIn();
+                return;
+            }
             try {
                 process(request);
             } catch (Exception ex) {
-                System.err.println("Worker crashed: " + ex.getMessage());
+                Metrics.workerErrors.increment();
+                ServerLog.error("worker", request.username(), "Worker crashed: " + ex.getMessage());
+            } finally {
+                done();
             }
         }
-    }
 
-    private static void process(DatagramPacket req) throws Exception {
-        String reqStr = Event.getPacketData(req);
-        int clientPort = req.getPort();
-        InetAddress clientAddress = req.getAddress();
+        // the password is hashed on the credential pool, not here, so a
+        // wave of logins can't hold every worker; the reply goes out from
+        // the pool when the check is done
+        private void logIn() {
+            String username = request.username();
+            handler.authenticate(username, request.content()).whenComplete((login, error) -> {
+                try {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause()
+                                : error;
+                        if (cause instanceof RejectedExecutionException) {
+                            Metrics.refused.increment();
+                            turnAway(request, BUSY, "Server busy, try again shortly");
+                        } else {
+                            Metrics.workerErrors.increment();
+                            ServerLog.error("worker", username, "Login crashed: " + cause.getMessage());
+                        }
+                        return;
+                    }
+                    switch (login) {
+                        case WRONG_PASSWORD:
+                            ServerLog.info("LOGIN", username, "Incorrect password");
+                            reply(request, FAILURE, "Invalid login credentials (password)");
+                            break;
+                        case ALREADY_ONLINE:
+                            ServerLog.info("LOGIN", username, username + " has already logged in");
+                            reply(request, FAILURE, username + " has already logged in");
+                            break;
+                        default:
+                            // a text client has nowhere to put a token, it is
+                            // held to the address it logged in from instead
+                            User user = handler.user(username);
+                            SessionTable.Session session = request.codec() == TextCodec.INSTANCE
+                                    ? sessions.bind(user, request.sender())
+                                    : sessions.open(user, request.sender());
+                            ServerLog.info("LOGIN", username, username + " has successfully logged in");
+                            reply(request, SUCCESS, "Success", session.token());
+                    }
+                } finally {
+                    done();
+                }
+            });
+        }
 
+        private void done() {
+            replies.finish(request);
+            Metrics.latency(request.action(), System.nanoTime() - received);
+        }
+    }
+
+    private static void process(Frame req) throws Exception {
         // extract info
-        int command = Event.getAction(reqStr);
-        String username = Event.getName(reqStr);
-        String requestContent = Event.getContent(reqStr);
+        int command = req.action();
+        String username = req.username();
+        String requestContent = req.content();
 
         // success return message
-        byte[] response = Event.createEvent(command, SUCCESS, username, "Success").getBytes();
-
-        if (command > LOGIN && !handler.isOnline(username)) {
-            response = Event.createEvent(command, UNAUTHENTICATED, username, "Please Log in first").getBytes();
-            socket.send(new DatagramPacket(response, response.length, clientAddress, clientPort));
-            return;
+        int status = SUCCESS;
+        String message = "Success";
+
+        // looked up again rather than taken from the event loop, an XIT
+        // ahead of this request may have ended the session since
+        SessionTable.Session session = null;
+        User user = null;
+        if (command > LOGIN) {
+            session = sessionOf(req);
+            if (session == null) {
+                reply(req, UNAUTHENTICATED, "Please Log in first");
+                return;
+            }
+            user = session.user();
         }
 
         String[] contentParts;
@@ -107,297 +390,503 @@ public class Server {
         String newMessage;
         int messageNumber;
         String filename;
-        Socket tcpSocket;
+        TransferTable.Transfer transfer;
         switch (command) {
             case FIRST_CONN:
-                System.out.println("Client authenticating");
+                ServerLog.info("CONN", username, "Client authenticating");
                 if (!handler.userExists(username)) {
-                    System.out.println("New User");
-                    response = Event.createEvent(command, SUCCESS, username,
-                            "New User, enter password: ").getBytes();
+                    ServerLog.info("CONN", username, "New User");
+                    status = SUCCESS;
+                    message = "New User, enter password: ";
                 } else if (handler.isOnline(username)) {
-                    System.out.println(username + " is already logged in");
-                    response = Event.createEvent(command, FAILURE, username,
-                            username + " has already logged in").getBytes();
+                    ServerLog.info("CONN", username, username + " is already logged in");
+                    status = FAILURE;
+                    message = username + " has already logged in";
                 } else {
-                    response = Event.createEvent(command, SUCCESS, username,
-                            "Enter password: ").getBytes();
-                }
-                break;
-
-            case LOGIN:
-                String password = requestContent;
-                if (!handler.userExists(username)) {
-                    handler.addUser(username, password);
-                    handler.setOnline(username, true);
-                    System.out.println(username + " has successfully logged in");
-                } else if (!handler.passwordOk(username, password)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Invalid login credentials (password)").getBytes();
-                    System.out.println("Incorrect password");
-                } else if (handler.isOnline(username)) {
-                    System.out.println(username + " has already logged in");
-                    response = Event.createEvent(command, FAILURE, username,
-                            username + " has already logged in").getBytes();
-                } else {
-                    handler.setOnline(username, true);
-                    System.out.println(username + " has successfully logged in");
+                    status = SUCCESS;
+                    message = "Enter password: ";
                 }
                 break;
 
             case CRT:
-                System.out.println(username + " issued a CRT command");
+                ServerLog.sampled("CRT", username, username + " issued a CRT command");
                 threadTitle = requestContent;
                 if (handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " already exists").getBytes();
-                    System.out.println("Thread " + threadTitle + " already exists");
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " already exists";
+                    ServerLog.info("CRT", username, "Thread " + threadTitle + " already exists");
                 } else {
-                    handler.createThread(threadTitle, username);
-                    response = Event.createEvent(command, SUCCESS, username,
-                            "Thread " + threadTitle + " created").getBytes();
-                    System.out.println("Thread " + threadTitle + " created");
+                    handler.createThread(threadTitle, user);
+                    status = SUCCESS;
+                    message = "Thread " + threadTitle + " created";
+                    ServerLog.info("CRT", username, "Thread " + threadTitle + " created");
                 }
                 break;
 
             case MSG:
-                System.out.println(username + " issued MSG command");
+                ServerLog.sampled("MSG", username, username + " issued MSG command");
                 contentParts = separateContent(requestContent, 2);
                 threadTitle = contentParts[0];
                 newMessage = contentParts[1];
 
                 if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " does not exist").getBytes();
-                    System.out.println("Thread " + threadTitle + " does not exist");
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " does not exist";
+                    ServerLog.info("MSG", username, "Thread " + threadTitle + " does not exist");
                 } else {
-                    handler.postMessage(threadTitle, username, newMessage);
-                    response = Event.createEvent(command, SUCCESS, username,
-                            "Message posted to " + threadTitle + " thread").getBytes();
-                    System.out.println("Message posted to " + threadTitle + " thread");
+                    handler.postMessage(threadTitle, user, newMessage);
+                    status = SUCCESS;
+                    message = "Message posted to " + threadTitle + " thread";
+                    ServerLog.info("MSG", username, "Message posted to " + threadTitle + " thread");
                 }
                 break;
 
             case DLT:
-                System.out.println(username + " issued DLT command");
+                ServerLog.sampled("DLT", username, username + " issued DLT command");
                 contentParts = separateContent(requestContent, 2);
                 threadTitle = contentParts[0];
                 messageNumber = Integer.parseInt(contentParts[1]);
 
                 if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " does not exist").getBytes();
-                    System.out.println("Thread " + threadTitle + " does not exist");
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " does not exist";
+                    ServerLog.info("DLT", username, "Thread " + threadTitle + " does not exist");
                 } else {
-                    int status = handler.deleteMessage(threadTitle, username, messageNumber);
-                    if (status == 0) {
-                        System.out.println("Message has been deleted");
-                        response = Event.createEvent(command, SUCCESS, username,
-                                "The message has been deleted").getBytes();
-                    } else if (status == 1) {
-                        System.out.println("Message cannot be deleted");
-                        response = Event.createEvent(command, FAILURE, username,
-                                "The message belongs to another user and cannot be deleted").getBytes();
-                    } else if (status == 2) {
-                        System.out.println("Message cannot be deleted");
-                        response = Event.createEvent(command, FAILURE, username,
-                                "The message of the number does not exist").getBytes();
+                    int result = handler.deleteMessage(threadTitle, username, messageNumber);
+                    if (result == 0) {
+                        ServerLog.info("DLT", username, "Message has been deleted");
+                        status = SUCCESS;
+                        message = "The message has been deleted";
+                    } else if (result == 1) {
+                        ServerLog.info("DLT", username, "Message cannot be deleted");
+                        status = FAILURE;
+                        message = "The message belongs to another user and cannot be deleted";
+                    } else if (result == 2) {
+                        ServerLog.info("DLT", username, "Message cannot be deleted");
+                        status = FAILURE;
+                        message = "The message of the number does not exist";
                     }
                 }
                 break;
 
             case EDT:
-                System.out.println(username + " issued EDT command");
+                ServerLog.sampled("EDT", username, username + " issued EDT command");
                 contentParts = separateContent(requestContent, 3);
                 threadTitle = contentParts[0];
                 messageNumber = Integer.parseInt(contentParts[1]);
                 newMessage = contentParts[2];
 
                 if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " does not exist").getBytes();
-                    System.out.println("Thread " + threadTitle + " does not exist");
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " does not exist";
+                    ServerLog.info("EDT", username, "Thread " + threadTitle + " does not exist");
                 } else {
-                    int status = handler.editMessage(threadTitle, username, messageNumber, newMessage);
-                    if (status == 0) {
-                        System.out.println("Message has been edited");
-                        response = Event.createEvent(command, SUCCESS, username,
-                                "The message " + messageNumber + " in " + threadTitle + " has been edited").getBytes();
-                    } else if (status == 1) {
-                        System.out.println("Message cannot be edited");
-                        response = Event.createEvent(command, FAILURE, username,
-                                "The message belongs to another user and cannot be edited").getBytes();
-                    } else if (status == 2) {
-                        System.out.println("Message cannot be edited");
-                        response = Event.createEvent(command, FAILURE, username,
-                                "The message of the number does not exist").getBytes();
+                    int result = handler.editMessage(threadTitle, username, messageNumber, newMessage);
+                    if (result == 0) {
+                        ServerLog.info("EDT", username, "Message has been edited");
+                        status = SUCCESS;
+                        message = "The message " + messageNumber + " in " + threadTitle + " has been edited";
+                    } else if (result == 1) {
+                        ServerLog.info("EDT", username, "Message cannot be edited");
+                        status = FAILURE;
+                        message = "The message belongs to another user and cannot be edited";
+                    } else if (result == 2) {
+                        ServerLog.info("EDT", username, "Message cannot be edited");
+                        status = FAILURE;
+                        message = "The message of the number does not exist";
                     }
                 }
                 break;
 
             case LST:
-                System.out.println(username + " issued LST command");
+                ServerLog.sampled("LST", username, username + " issued LST command");
                 String threadList = handler.listThreads();
-                response = threadList.equals("No threads to list")
-                        ? Event.createEvent(command, FAILURE, username, threadList).getBytes()
-                        : Event.createEvent(command, SUCCESS, username, threadList).getBytes();
+                status = threadList.equals("No threads to list") ? FAILURE : SUCCESS;
+                message = threadList;
                 break;
 
             case RDT:
-                System.out.println(username + " issued RDT command");
-                threadTitle = separateContent(requestContent, 1)[0];
-                String threadContent = handler.readThread(threadTitle);
-
-                if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username, threadContent).getBytes();
-                    System.out.println("Thread " + threadTitle + " does not exist");
+                ServerLog.sampled("RDT", username, username + " issued RDT command");
+                // <title> [offset [limit]]
+                int[] range = { 0, Integer.MAX_VALUE };
+                threadTitle = splitRange(requestContent, range);
+
+                if (threadTitle == null) {
+                    status = FAILURE;
+                    message = "Usage: RDT <threadtitle> [offset [limit]]";
+                } else if (!handler.threadExists(threadTitle)) {
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " not found";
+                    ServerLog.info("RDT", username, "Thread " + threadTitle + " does not exist");
                 } else if (handler.threadIsEmpty(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username, threadContent).getBytes();
-                    System.out.println("Thread " + threadTitle + " is empty");
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " is empty";
+                    ServerLog.info("RDT", username, "Thread " + threadTitle + " is empty");
+                } else if (range[0] == 0 && range[1] == Integer.MAX_VALUE) {
+                    // full read, cut once and cached on the thread
+                    List<String> chunks = handler.threadView(threadTitle, req.inflates());
+                    if (chunks == null || chunks.isEmpty()) {
+                        status = FAILURE;
+                        message = "Thread " + threadTitle + " is empty";
+                        break;
+                    }
+                    Fragments.send(chunks, (fragment, content) -> reply(req, fragment ? FRAGMENT : SUCCESS, content));
+                    ServerLog.info("RDT", username, "Thread " + threadTitle + " content sent");
+                    return;
                 } else {
-                    response = Event.createEvent(command, SUCCESS, username, threadContent).getBytes();
-                    System.out.println("Thread " + threadTitle + " content sent");
+                    // pages are streamed straight into reply fragments
+                    Fragments.Writer pages = new Fragments.Writer(
+                            (fragment, content) -> reply(req, fragment ? FRAGMENT : SUCCESS, content),
+                            Fragments.budget(req.inflates()));
+                    if (handler.readThread(threadTitle, range[0], range[1], pages::add) == 0) {
+                        status = FAILURE;
+                        message = "No posts in " + threadTitle + " past offset " + range[0];
+                        break;
+                    }
+                    pages.finish();
+                    ServerLog.info("RDT", username, "Thread " + threadTitle + " content sent");
+                    return;
                 }
                 break;
 
             case UPD:
-                System.out.println(username + " issued UPD command");
+                ServerLog.sampled("UPD", username, username + " issued UPD command");
                 contentParts = separateContent(requestContent, 2);
                 threadTitle = contentParts[0];
+                // chunked clients add the file size
+                long uploadSize = peelNumber(contentParts, 1);
                 filename = contentParts[1];
 
                 if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " does not exist").getBytes();
-                    System.out.println("Thread " + threadTitle + " does not exist");
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " does not exist";
+                    ServerLog.info("UPD", username, "Thread " + threadTitle + " does not exist");
                     break;
                 } else if (handler.attachmentExists(threadTitle, filename)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "The file " + filename + " has already been posted in the Thread " + threadTitle)
-                            .getBytes();
-                    System.out
-                            .println("The file " + filename + " has already been posted in the Thread " + threadTitle);
+                    status = FAILURE;
+                    message = "The file " + filename + " has already been posted in the Thread " + threadTitle;
+                    ServerLog.info("UPD", username, message);
                     break;
                 }
 
-                response = Event.createEvent(command, SUCCESS, username, "ready").getBytes();
-                socket.send(new DatagramPacket(response, response.length, clientAddress, clientPort));
-
-                try {
-                    tcpSocket = tcpListener.accept();
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Stale DWN/UPD request – no TCP client arrived");
-                    break; // send FAILURE or just abandon
+                transfer = uploadSize < 0 ? transfers.open(req, user, true, threadTitle, filename)
+                        : transfers.openChunkedUpload(req, user, threadTitle, filename, uploadSize,
+                                ServerConfig.CHUNK_SIZE, Path.of(handler.stagingPath(threadTitle, filename) + ".part"));
+                if (transfer == null) {
+                    status = FAILURE;
+                    message = "The file " + filename + " is already being uploaded to the Thread " + threadTitle;
+                    break;
                 }
-                handleReceiveUpload(tcpSocket, threadTitle, filename);
-                tcpSocket.close();
-
-                handler.uploadFile(threadTitle, username, filename);
-                response = Event.createEvent(UPD, SUCCESS, username, filename + " successfully uploaded").getBytes();
-                System.out.println(username + " has successfully uploaded file "
-                        + filename + " to the " + threadTitle + " thread");
-                break;
+                // the acceptor picks the connection up by its token, the
+                // completion reply is sent once the file is in
+                if (transfer.chunked()) {
+                    PartialFile part = transfer.part();
+                    reply(req, SUCCESS, "ready " + transfer.token() + " " + part.chunkSize() + " " + part.resumeOffset());
+                } else {
+                    reply(req, SUCCESS, "ready " + transfer.token());
+                }
+                return;
 
             case DWN:
-                System.out.println(username + " issued DWN command");
+                ServerLog.sampled("DWN", username, username + " issued DWN command");
                 contentParts = separateContent(requestContent, 2);
                 threadTitle = contentParts[0];
+                // chunked clients add the offset they are resuming from
+                long resumeOffset = peelNumber(contentParts, 1);
                 filename = contentParts[1];
 
                 if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " does not exist").getBytes();
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " does not exist";
                     break;
                 }
-                if (!handler.attachmentExists(threadTitle, filename)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "File does not exist in Thread " + threadTitle).getBytes();
+                Path attachment = handler.attachmentPath(threadTitle, filename);
+                if (attachment == null || !Files.exists(attachment)) {
+                    status = FAILURE;
+                    message = "File does not exist in Thread " + threadTitle;
                     break;
                 }
 
-                response = Event.createEvent(command, SUCCESS, username, "ready").getBytes();
-                socket.send(new DatagramPacket(response, response.length, clientAddress, clientPort));
-
-                try {
-                    tcpSocket = tcpListener.accept();
-                } catch (SocketTimeoutException e) {
-                    System.err.println("Stale DWN/UPD request – no TCP client arrived");
-                    break; // send FAILURE or just abandon
+                if (resumeOffset < 0) {
+                    transfer = transfers.open(req, user, false, threadTitle, filename);
+                    reply(req, SUCCESS, "ready " + transfer.token());
+                    return;
                 }
-                handleSendDownload(tcpSocket, threadTitle, filename);
-                tcpSocket.close();
-                System.out.println(filename + " downloaded from Thread " + threadTitle);
-
-                response = Event.createEvent(command, SUCCESS, username,
-                        filename + " successfully downloaded").getBytes();
-                break;
+                if (resumeOffset > 0)
+                    ServerLog.info("DWN", username,
+                            username + " resumes " + filename + " at byte " + resumeOffset);
+                transfer = transfers.openChunkedDownload(req, user, threadTitle, filename);
+                long size = Files.size(attachment);
+                reply(req, SUCCESS, "ready " + transfer.token() + " " + size + " " + ServerConfig.CHUNK_SIZE);
+                return;
 
             case RMV:
-                System.out.println(username + " issued RMV command");
+                ServerLog.sampled("RMV", username, username + " issued RMV command");
                 threadTitle = requestContent;
 
                 if (!handler.threadExists(threadTitle)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread " + threadTitle + " does not exist").getBytes();
+                    status = FAILURE;
+                    message = "Thread " + threadTitle + " does not exist";
                 } else if (!handler.removeThread(threadTitle, username)) {
-                    response = Event.createEvent(command, FAILURE, username,
-                            "Thread was created by another user and cannot be removed").getBytes();
+                    status = FAILURE;
+                    message = "Thread was created by another user and cannot be removed";
                 } else {
-                    response = Event.createEvent(command, SUCCESS, username,
-                            "Thread " + threadTitle + " removed").getBytes();
-                    System.out.println("Thread " + threadTitle + " removed");
+                    status = SUCCESS;
+                    message = "Thread " + threadTitle + " removed";
+                    ServerLog.info("RMV", username, "Thread " + threadTitle + " removed");
                 }
                 break;
 
             case XIT:
-                handler.setOnline(username, false);
-                System.out.println(username + " has logged out");
-                response = Event.createEvent(command, SUCCESS, username, "Goodbye").getBytes();
+                sessions.close(session);
+                handler.logOut(user);
+                ServerLog.info("XIT", username, username + " has logged out");
+                status = SUCCESS;
+                message = "Goodbye";
                 break;
 
             default:
-                response = Event.createEvent(command, FAILURE, username, "Invalid command").getBytes();
+                status = FAILURE;
+                message = "Invalid command";
                 break;
         }
 
-        socket.send(new DatagramPacket(response, response.length,
-                clientAddress, clientPort));
+        reply(req, status, message);
     }
 
-    private static void handleReceiveUpload(Socket socket, String thread, String file) throws Exception {
-        InputStream input = socket.getInputStream();
-        BufferedInputStream bis = new BufferedInputStream(input);
-
-        FileOutputStream fos = new FileOutputStream(handler.attachmentFilePath(thread, file));
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
+    // who is asking, null before LOGIN or if it doesn't check out: binary
+    // clients present the session LOGIN gave them, from where they logged
+    // in; text clients can only be asking from the address they logged in
+    // from. Either way the frame has to name the session's user
+    private static SessionTable.Session sessionOf(Frame req) {
+        if (req.action() <= LOGIN)
+            return null;
+        SessionTable.Session session = null;
+        if (req.session() != 0)
+            session = sessions.find(req.session(), req.sender());
+        else if (req.codec() == TextCodec.INSTANCE)
+            session = sessions.bound(req.sender());
+        return session != null && session.user().name().equals(req.username()) ? session : null;
+    }
 
-        byte[] upload = new byte[MAX_FILE_SIZE];
-        int length;
-        while ((length = bis.read(upload)) != -1)
-            bos.write(upload, 0, length);
-        bos.flush();
+    private static void handleReceiveUpload(SocketChannel conn, String thread, String file) throws IOException {
+        Metrics.uploadBytes.add(FileTransfer.receive(conn, handler.stagingPath(thread, file)));
 
-        OutputStream output = socket.getOutputStream();
         String feedbackMessage = "The File " + file + " has been uploaded to Thread " + thread;
-        output.write(feedbackMessage.getBytes());
-        fos.close();
+        ByteBuffer feedback = ByteBuffer.wrap(feedbackMessage.getBytes());
+        while (feedback.hasRemaining())
+            conn.write(feedback);
+    }
+
+    private static void handleSendDownload(SocketChannel conn, String thread, String file) throws IOException {
+        Metrics.downloadBytes.add(FileTransfer.send(attachment(thread, file), conn));
+        conn.shutdownOutput();
+    }
+
+    /* ---------- transfer connections ---------- */
+
+    // never blocks on a client: each connection is handed to a worker as
+    // soon as it is accepted
+    private static void acceptLoop() {
+        while (true) {
+            try {
+                SocketChannel conn = tcpListener.accept();
+                dispatcher.dispatch(UPD, () -> serveTransfer(conn));
+            } catch (IOException e) {
+                ServerLog.warn("transfer", null, "Transfer accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void serveTransfer(SocketChannel conn) {
+        TransferTable.Transfer t = null;
+        long start = System.nanoTime();
+        try (conn) {
+            // the token has to turn up quickly, the file itself can take its time
+            conn.socket().setSoTimeout(TIMEOUT_MS);
+            byte[] token = conn.socket().getInputStream().readNBytes(TransferTable.TOKEN_LENGTH);
+            t = transfers.claim(new String(token, StandardCharsets.US_ASCII));
+            if (t == null) {
+                ServerLog.warn("transfer", null, "Dropped transfer connection with an unknown or expired token");
+                return;
+            }
+            conn.socket().setSoTimeout(0);
+            if (t.chunked()) {
+                if (t.upload())
+                    receiveChunks(conn, t);
+                else
+                    sendChunks(conn, t);
+                return;
+            }
+
+            String username = t.request().username();
+            if (t.upload()) {
+                handleReceiveUpload(conn, t.thread(), t.filename());
+                if (handler.uploadFile(t.thread(), t.user(), t.filename(),
+                        handler.stagingPath(t.thread(), t.filename())))
+                    uploaded(t);
+                else
+                    notAttached(t);
+            } else {
+                handleSendDownload(conn, t.thread(), t.filename());
+                ServerLog.info("DWN", username, t.filename() + " downloaded from Thread " + t.thread());
+                reply(t.request(), SUCCESS, t.filename() + " successfully downloaded");
+            }
+        } catch (Exception e) {
+            Metrics.failedTransfers.increment();
+            ServerLog.warn("transfer", t == null ? null : t.request().username(),
+                    "Transfer failed: " + e.getMessage());
+            // a chunked transfer stays open to be resumed
+            if (t != null && !t.chunked())
+                reply(t.request(), FAILURE, "Transfer of " + t.filename() + " failed");
+        } finally {
+            if (t != null && !t.chunked())
+                transfers.finish(t);
+            if (t != null)
+                Metrics.transfer.recordNanos(System.nanoTime() - start);
+        }
     }
 
-    private static void handleSendDownload(Socket socket, String thread, String file) throws Exception {
-        FileInputStream fis = new FileInputStream(handler.attachmentFilePath(thread, file));
-        BufferedInputStream bis = new BufferedInputStream(fis);
+    // one of possibly several connections feeding a chunked upload; the
+    // one that delivers the last missing chunk commits the file
+    private static void receiveChunks(SocketChannel conn, TransferTable.Transfer t) throws Exception {
+        PartialFile part = t.part();
+        ByteBuffer header = ByteBuffer.allocate(ChunkedTransfer.HEADER);
+        ByteBuffer buf = chunkBuffers.acquire();
+        // deflated chunks are inflated into a second one
+        ByteBuffer spare = chunkBuffers.acquire();
+        try {
+            for (int index; (index = ChunkedTransfer.readChunk(conn, part, header, buf, spare))
+                    != ChunkedTransfer.END;) {
+                t.touch();
+                if (index == ChunkedTransfer.CORRUPT)
+                    ServerLog.warn("UPD", t.request().username(), "Dropped a corrupt chunk of " + t.filename());
+                else
+                    Metrics.uploadBytes.add(part.chunkLength(index));
+            }
+        } finally {
+            chunkBuffers.release(buf);
+            chunkBuffers.release(spare);
+        }
+        if (!part.claimCompletion())
+            return;
+
+        Path staged = handler.stagingPath(t.thread(), t.filename());
+        part.commit(staged);
+        boolean attached = handler.uploadFile(t.thread(), t.user(), t.filename(), staged);
+        transfers.finish(t);
+        if (attached)
+            uploaded(t);
+        else
+            notAttached(t);
+    }
 
-        OutputStream output = socket.getOutputStream();
-        BufferedOutputStream bos = new BufferedOutputStream(output);
+    private static void uploaded(TransferTable.Transfer t) {
+        String username = t.request().username();
+        ServerLog.info("UPD", username, username + " has successfully uploaded file "
+                + t.filename() + " to the " + t.thread() + " thread");
+        reply(t.request(), SUCCESS, t.filename() + " successfully uploaded");
+    }
 
-        byte[] download = new byte[MAX_FILE_SIZE];
-        int length;
-        while ((length = bis.read(download)) != -1)
-            bos.write(download, 0, length);
+    // the thread went, or another upload of the same name got there first
+    private static void notAttached(TransferTable.Transfer t) {
+        String message = handler.threadExists(t.thread())
+                ? "The file " + t.filename() + " has already been posted in the Thread " + t.thread()
+                : "Thread " + t.thread() + " does not exist";
+        ServerLog.info("UPD", t.request().username(), message);
+        reply(t.request(), FAILURE, message);
+    }
 
-        bos.flush();
-        socket.shutdownOutput();
-        bis.close();
+    // clients that can inflate get the packed copy when there is one,
+    // everyone else the plain bytes
+    private static void sendChunks(SocketChannel conn, TransferTable.Transfer t) throws IOException {
+        int[] wanted = ChunkedTransfer.readRequest(conn);
+        Path packedPath = t.request().inflates() ? handler.packedAttachmentPath(t.thread(), t.filename()) : null;
+        if (packedPath != null) {
+            try (PackedBlob packed = PackedBlob.open(packedPath)) {
+                if (packed.chunkSize() == ServerConfig.CHUNK_SIZE) {
+                    long size = Files.size(attachment(t.thread(), t.filename()));
+                    int sent = packed.sendChunks(wanted[0], wanted[1], conn);
+                    // counted before compression, like every other transfer
+                    Metrics.downloadBytes.add(ChunkedTransfer.bytes(size, packed.chunkSize(), wanted[0],
+                            wanted[1]));
+                    ServerLog.info("DWN", t.request().username(), sent + " packed chunks of " + t.filename()
+                            + " downloaded from Thread " + t.thread());
+                    conn.shutdownOutput();
+                    return;
+                }
+            } catch (NoSuchFileException e) {
+                // released since, the plain copy may still be readable
+            }
+        }
+        Path path = attachment(t.thread(), t.filename());
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            int sent = ChunkedTransfer.sendChunks(file, file.size(), ServerConfig.CHUNK_SIZE, wanted[0], wanted[1],
+                    conn);
+            Metrics.downloadBytes.add(ChunkedTransfer.bytes(file.size(), ServerConfig.CHUNK_SIZE, wanted[0],
+                    wanted[1]));
+            ServerLog.info("DWN", t.request().username(),
+                    sent + " chunks of " + t.filename() + " downloaded from Thread " + t.thread());
+        }
+        conn.shutdownOutput();
+    }
+
+    // the thread may have been removed since the transfer was set up
+    private static Path attachment(String thread, String file) throws IOException {
+        Path path = handler.attachmentPath(thread, file);
+        if (path == null)
+            throw new NoSuchFileException(thread + "/" + file);
+        return path;
+    }
+
+    // strips a trailing number off parts[i]; -1 if there is none
+    private static long peelNumber(String[] parts, int i) {
+        if (parts[i] == null)
+            return -1;
+        int space = parts[i].lastIndexOf(' ');
+        if (space < 0)
+            return -1;
+        try {
+            long value = Long.parseLong(parts[i].substring(space + 1));
+            if (value < 0)
+                return -1;
+            parts[i] = parts[i].substring(0, space);
+            return value;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // a thread title optionally followed by offset and limit; the whole
+    // content wins if it names a thread, so titles with spaces keep working.
+    // Returns null on a negative offset or limit
+    private static String splitRange(String content, int[] range) {
+        String title = content.trim();
+        if (handler.threadExists(title))
+            return title;
+        int[] numbers = new int[2]; // peeled off the end, so limit first
+        int found = 0;
+        while (found < 2) {
+            int space = title.lastIndexOf(' ');
+            if (space < 0)
+                break;
+            try {
+                numbers[found] = Integer.parseInt(title.substring(space + 1));
+            } catch (NumberFormatException e) {
+                break;
+            }
+            if (numbers[found] < 0)
+                return null;
+            found++;
+            title = title.substring(0, space).trim();
+        }
+        if (found == 1) {
+            range[0] = numbers[0];
+        } else if (found == 2) {
+            range[0] = numbers[1];
+            range[1] = numbers[0];
+        }
+        return title;
     }
 
     private static String[] separateContent(String content, int numParts) {
@@ -0,0 +1,96 @@
+// runtime knobs, read once from -D system properties so the usage line can
+// stay "java Server <server_port>", e.g. java -Dforum.exec=virtual Server 4000
+public final class ServerConfig {
+
+    public static final Dispatcher.Mode EXECUTION_MODE = Dispatcher.Mode
+            .valueOf(System.getProperty("forum.exec", "fixed").toUpperCase());
+
+    // worker count for FIXED, and for the control pool in SPLIT
+    public static final int WORKERS = Integer.getInteger("forum.workers", 10);
+
+    // transfer pool size in SPLIT mode
+    public static final int BULK_WORKERS = Integer.getInteger("forum.bulkWorkers", 4);
+
+    // requests allowed to wait for a worker (per pool; in flight for
+    // VIRTUAL), and who is refused with BUSY past that: reject the
+    // newcomer, shed the oldest, or by priority (see AdmissionQueue)
+    public static final int QUEUE_CAPACITY = Integer.getInteger("forum.queueCapacity", 1024);
+    public static final AdmissionQueue.Policy ADMISSION = AdmissionQueue.Policy
+            .valueOf(System.getProperty("forum.admission", "priority").toUpperCase());
+
+    // token buckets per logged-in user and per address (see RateLimiter):
+    // requests per second/burst by command, "*" for the rest, "off" for
+    // none; an address gets addressRateFactor times a user's budget, and
+    // alone pays for anything sent without a session (LOGIN). Buckets idle
+    // for rateIdleMs are dropped, and at most rateLimitKeys are kept
+    public static final String RATE_LIMITS = System.getProperty("forum.rateLimits",
+            "*=100/200,LOGIN=5/10,CRT=5/20,RMV=5/20,UPD=2/10,DWN=5/20,XIT=off");
+    public static final int ADDRESS_RATE_FACTOR = Integer.getInteger("forum.addressRateFactor", 10);
+    public static final int RATE_IDLE_MS = Integer.getInteger("forum.rateIdleMs", 60_000);
+    public static final int RATE_LIMIT_KEYS = Integer.getInteger("forum.rateLimitKeys", 65_536);
+
+    // how hard the mutation log works to make each change durable
+    public static final MutationLog.FsyncPolicy FSYNC_POLICY = MutationLog.FsyncPolicy
+            .valueOf(System.getProperty("forum.fsync", "group").toUpperCase());
+
+    // how often thread files and credentials.txt are caught up with the log
+    public static final int MATERIALIZE_INTERVAL_MS = Integer.getInteger("forum.materializeMs", 200);
+
+    // how often a snapshot is cut so restarts only replay a short log tail
+    public static final int CHECKPOINT_INTERVAL_MS = Integer.getInteger("forum.checkpointMs", 60_000);
+
+    // how long a login session lasts without a request before the user is
+    // logged out (see SessionTable)
+    public static final int SESSION_IDLE_MS = Integer.getInteger("forum.sessionIdleMs", 30 * 60_000);
+
+    // password hashing (see PasswordHash, CredentialStore): PBKDF2 rounds
+    // per hash, threads it runs on and logins allowed to wait for them
+    // before the rest get BUSY, and how many recent good logins are
+    // remembered, for how long, so they skip the hash
+    public static final int HASH_ITERATIONS = Integer.getInteger("forum.hashIterations", 600_000);
+    public static final int HASH_WORKERS = Integer.getInteger("forum.hashWorkers",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    public static final int HASH_QUEUE = Integer.getInteger("forum.hashQueue", 256);
+    public static final int CREDENTIAL_CACHE = Integer.getInteger("forum.credentialCache", 10_000);
+    public static final int CREDENTIAL_CACHE_MS = Integer.getInteger("forum.credentialCacheMs", 10 * 60_000);
+
+    // how long an UPD/DWN token waits for its TCP connection
+    public static final int TRANSFER_TIMEOUT_MS = Integer.getInteger("forum.transferTimeoutMs", 10_000);
+
+    // how long a chunked transfer can sit idle and still be resumed
+    public static final int RESUME_WINDOW_MS = Integer.getInteger("forum.resumeWindowMs", 600_000);
+
+    // chunk size for chunked UPD/DWN, each chunk is checksummed on its own
+    public static final int CHUNK_SIZE = Integer.getInteger("forum.chunkSize", 1 << 20);
+
+    // keep a deflated copy of compressible attachments for chunked DWN to
+    // clients that can inflate (see PackedBlob)
+    public static final boolean PACK_ATTACHMENTS = Boolean
+            .parseBoolean(System.getProperty("forum.packAttachments", "true"));
+
+    // reply cache for retried requests: recent requests kept per client,
+    // clients kept, and the largest reply kept (see ReplyCache)
+    public static final int REPLY_CACHE_PER_CLIENT = Integer.getInteger("forum.replyCachePerClient", 128);
+    public static final int REPLY_CACHE_CLIENTS = Integer.getInteger("forum.replyCacheClients", 4096);
+    public static final int REPLY_CACHE_ENTRY_BYTES = Integer.getInteger("forum.replyCacheEntryBytes", 64 << 10);
+
+    // loopback port serving /metrics, 0 for none; and how often the same
+    // numbers are printed, 0 for never (see Metrics)
+    public static final int METRICS_PORT = Integer.getInteger("forum.metricsPort", 0);
+    public static final int METRICS_DUMP_MS = Integer.getInteger("forum.metricsDumpMs", 60_000);
+
+    // server event log (see ServerLog): lowest level written, file for JSON
+    // lines or "" for the console, rotation size and files kept, queue
+    // length before events are dropped, and 1 in how many "issued X
+    // command" events is kept
+    public static final ServerLog.Level LOG_LEVEL = ServerLog.Level
+            .valueOf(System.getProperty("forum.logLevel", "info").toUpperCase());
+    public static final String LOG_FILE = System.getProperty("forum.logFile", "");
+    public static final int LOG_MAX_MB = Integer.getInteger("forum.logMaxMb", 64);
+    public static final int LOG_FILES = Integer.getInteger("forum.logFiles", 5);
+    public static final int LOG_BUFFER = Integer.getInteger("forum.logBuffer", 8192);
+    public static final int LOG_SAMPLE = Integer.getInteger("forum.logSample", 1);
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// the server's event log, written by one background thread so a worker
+// never waits on the console or the disk. Logging an event puts a small
+// entry in a bounded queue and returns; if the writer is that far behind,
+// the entry is dropped and counted rather than holding up the request.
+// The writer takes whatever has piled up and writes it with one flush.
+//
+// To the console an event comes out as its plain message, as it always
+// has. With forum.logFile set it goes to that file as one JSON object per
+// line, and the file is rotated to .1, .2, ... once it reaches
+// forum.logMaxMb. Busy events (every "issued X command") can be thinned
+// out with forum.logSample, see sampled()
+public final class ServerLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int BATCH = 1024;
+
+    private static final Level LEVEL = ServerConfig.LOG_LEVEL;
+    private static final String FILE = ServerConfig.LOG_FILE;
+    private static final long MAX_BYTES = (long) ServerConfig.LOG_MAX_MB << 20;
+    private static final int KEEP = ServerConfig.LOG_FILES;
+    private static final int SAMPLE = Math.max(1, ServerConfig.LOG_SAMPLE);
+
+    private static final Entry SHUTDOWN = new Entry(Level.INFO, null, null, null, 0);
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(ServerConfig.LOG_BUFFER);
+    private static final LongAdder dropped = new LongAdder();
+    // how many of each sampled event have been seen
+    private static final Map<String, AtomicLong> seen = new ConcurrentHashMap<>();
+    private static final Thread writer;
+
+    // writer thread only
+    private static BufferedWriter file;
+    private static long fileBytes;
+    private static long droppedReported = 0;
+
+    static {
+        writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private ServerLog() {
+    }
+
+    public static void debug(String event, String user, String message) {
+        log(Level.DEBUG, event, user, message, 1);
+    }
+
+    public static void info(String event, String user, String message) {
+        log(Level.INFO, event, user, message, 1);
+    }
+
+    public static void warn(String event, String user, String message) {
+        log(Level.WARN, event, user, message, 1);
+    }
+
+    public static void error(String event, String user, String message) {
+        log(Level.ERROR, event, user, message, 1);
+    }
+
+    // an INFO event that happens on every request: only one in
+    // forum.logSample of each kind is kept, and the file entry says so
+    public static void sampled(String event, String user, String message) {
+        if (SAMPLE > 1 && seen.computeIfAbsent(event, e -> new AtomicLong()).getAndIncrement() % SAMPLE != 0)
+            return;
+        log(Level.INFO, event, user, message, SAMPLE);
+    }
+
+    public static boolean enabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    // writes out what is queued and closes the file; later events are lost
+    public static void close() {
+        try {
+            queue.put(SHUTDOWN);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void log(Level level, String event, String user, String message, int every) {
+        if (!enabled(level))
+            return;
+        if (!queue.offer(new Entry(level, event, user, message, every)))
+            dropped.increment();
+    }
+
+    /* ---------- writer thread ---------- */
+
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        StringBuilder out = new StringBuilder(), err = new StringBuilder();
+        try {
+            if (!FILE.isEmpty())
+                openFile();
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                boolean stop = false;
+                for (Entry e : batch) {
+                    if (e == SHUTDOWN)
+                        stop = true;
+                    else
+                        write(e, out, err);
+                }
+                long lost = dropped.sum();
+                if (lost > droppedReported) {
+                    write(new Entry(Level.WARN, "log", null, (lost - droppedReported)
+                            + " log events dropped, the writer fell behind", 1), out, err);
+                    droppedReported = lost;
+                }
+                flush(out, err);
+                batch.clear();
+                if (stop)
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Server log failed, events are no longer written: " + e.getMessage());
+        } finally {
+            try {
+                if (file != null)
+                    file.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the server log: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void write(Entry e, StringBuilder out, StringBuilder err) {
+        if (FILE.isEmpty()) {
+            (e.level.compareTo(Level.WARN) >= 0 ? err : out).append(e.message).append('\n');
+            return;
+        }
+        out.append("{\"ts\":\"").append(Instant.ofEpochMilli(e.millis)).append("\",\"level\":\"")
+                .append(e.level).append('"');
+        if (e.event != null)
+            json(out.append(",\"event\":"), e.event);
+        if (e.user != null)
+            json(out.append(",\"user\":"), e.user);
+        if (e.every > 1)
+            out.append(",\"every\":").append(e.every);
+        json(out.append(",\"msg\":"), e.message);
+        out.append("}\n");
+    }
+
+    private static void flush(StringBuilder out, StringBuilder err) throws IOException {
+        if (FILE.isEmpty()) {
+            print(System.out, out);
+            print(System.err, err);
+            return;
+        }
+        if (out.length() == 0)
+            return;
+        file.append(out);
+        file.flush();
+        fileBytes += out.length();
+        out.setLength(0);
+        if (fileBytes >= MAX_BYTES)
+            rotate();
+    }
+
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (text.length() == 0)
+            return;
+        stream.print(text);
+        stream.flush();
+        text.setLength(0);
+    }
+
+    private static void openFile() throws IOException {
+        Path path = Path.of(FILE);
+        file = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileBytes = Files.size(path);
+    }
+
+    // server.log -> server.log.1 -> ... -> server.log.<KEEP>, the oldest goes
+    private static void rotate() throws IOException {
+        file.close();
+        Path path = Path.of(FILE);
+        Files.deleteIfExists(Path.of(FILE + "." + KEEP));
+        for (int i = KEEP - 1; i >= 1; i--) {
+            Path older = Path.of(FILE + "." + i);
+            if (Files.exists(older))
+                Files.move(older, Path.of(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (KEEP > 0)
+            Files.move(path, Path.of(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.delete(path);
+        openFile();
+    }
+
+    private static void json(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    if (c < 0x20)
+                        out.append(String.format("\\u%04x", (int) c));
+                    else
+                        out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static final class Entry {
+        final Level level;
+        final String event;
+        final String user;
+        final String message;
+        final int every;
+        final long millis = System.currentTimeMillis();
+
+        Entry(Level level, String event, String user, String message, int every) {
+            this.level = level;
+            this.event = event;
+            this.user = user;
+            this.message = message;
+            this.every = every;
+        }
+    }
+}
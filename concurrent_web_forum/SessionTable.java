@@ -0,0 +1,157 @@
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// logged-in clients by session token. LOGIN opens a session bound to the
+// user and to the address the LOGIN came from, and hands back a random
+// 64-bit token; binary clients send it on every request after. Checking a
+// request is one map lookup and an address compare, and the session
+// carries the User so the request never looks the name up again. A token
+// presented from another address, or after the session has idled out, is
+// refused, so a request can't just claim to come from someone.
+//
+// Text-format clients have nowhere to put a token, so LOGIN binds them to
+// the address it came from instead (bind) and their requests are known by
+// that address (bound); another address gets nothing.
+//
+// Sessions nobody has used for idleMs are swept out and their user is
+// logged out through onExpire, so a client that vanishes without XIT
+// doesn't keep its name online forever. Only a user's latest session does
+// that: an older one going doesn't log out the login that replaced it
+public final class SessionTable {
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, Session> byAddress = new ConcurrentHashMap<>();
+    private final Map<User, Session> current = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long idleNanos;
+    private final Consumer<Session> onExpire;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SessionTable(long idleMs, Consumer<Session> onExpire) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        this.onExpire = onExpire;
+        long every = Math.max(1000, idleMs / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, every, every, TimeUnit.MILLISECONDS);
+    }
+
+    public Session open(User user, SocketAddress address) {
+        while (true) {
+            long token = random.nextLong();
+            if (token == 0)
+                continue; // 0 means "no session" on the wire
+            Session session = new Session(token, user, address);
+            if (sessions.putIfAbsent(token, session) == null) {
+                current.put(user, session);
+                return session;
+            }
+        }
+    }
+
+    // a session without a token, for a client that can't carry one; a
+    // session already bound to the address is ended
+    public Session bind(User user, SocketAddress address) {
+        Session session = new Session(0, user, address);
+        current.put(user, session);
+        Session old = byAddress.put(address, session);
+        if (old != null)
+            ended(old);
+        return session;
+    }
+
+    // the live session for token, if sender is where it logged in from;
+    // using it keeps it alive
+    public Session find(long token, SocketAddress sender) {
+        Session session = sessions.get(token);
+        if (session == null || !session.address.equals(sender))
+            return null;
+        return touch(session);
+    }
+
+    // the live session bind() gave sender, the same way
+    public Session bound(SocketAddress sender) {
+        Session session = byAddress.get(sender);
+        return session == null ? null : touch(session);
+    }
+
+    private Session touch(Session session) {
+        long now = System.nanoTime();
+        if (now - session.lastUsed > idleNanos) {
+            expire(session);
+            return null;
+        }
+        session.lastUsed = now;
+        return session;
+    }
+
+    // XIT; false if it had already gone
+    public boolean close(Session session) {
+        if (!remove(session))
+            return false;
+        current.remove(session.user, session);
+        return true;
+    }
+
+    public int size() {
+        return sessions.size() + byAddress.size();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            if (now - session.lastUsed > idleNanos)
+                expire(session);
+        }
+        for (Session session : byAddress.values()) {
+            if (now - session.lastUsed > idleNanos)
+                expire(session);
+        }
+    }
+
+    private void expire(Session session) {
+        if (remove(session))
+            ended(session);
+    }
+
+    // logs the user out, unless they have logged in again since
+    private void ended(Session session) {
+        if (current.remove(session.user, session))
+            onExpire.accept(session);
+    }
+
+    private boolean remove(Session session) {
+        return session.token == 0 ? byAddress.remove(session.address, session)
+                : sessions.remove(session.token, session);
+    }
+
+    public static final class Session {
+        private final long token;
+        private final User user;
+        private final SocketAddress address;
+        private volatile long lastUsed = System.nanoTime();
+
+        Session(long token, User user, SocketAddress address) {
+            this.token = token;
+            this.user = user;
+            this.address = address;
+        }
+
+        // 0 for a session bound to an address
+        public long token() {
+            return token;
+        }
+
+        public User user() {
+            return user;
+        }
+    }
+}
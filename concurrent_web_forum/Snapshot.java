@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// compact binary image of the whole forum, written at every checkpoint:
+//
+//   magic | version | covered log generation | checkpoint LSN
+//   user count | users (name, credential)
+//   threads, each as block length + ForumThread.snapshot(), then -1
+//
+// thread blocks are length-prefixed so recovery can slice them out of the
+// mapped file and decode them in parallel
+public final class Snapshot {
+
+    public static final String FILE_NAME = "forum.snapshot";
+    private static final int MAGIC = 0x464F5255, // "FORU"
+            VERSION = 3;
+
+    private final long coveredGeneration;
+    private final long checkpointLsn;
+    private final Map<String, String> users;
+    private final List<ByteBuffer> threadBlocks;
+
+    private Snapshot(long coveredGeneration, long checkpointLsn, Map<String, String> users,
+            List<ByteBuffer> threadBlocks) {
+        this.coveredGeneration = coveredGeneration;
+        this.checkpointLsn = checkpointLsn;
+        this.users = users;
+        this.threadBlocks = threadBlocks;
+    }
+
+    public long coveredGeneration() {
+        return coveredGeneration;
+    }
+
+    public long checkpointLsn() {
+        return checkpointLsn;
+    }
+
+    // username -> credential; null for placeholder users, in older snapshots
+    public Map<String, String> users() {
+        return users;
+    }
+
+    public List<ByteBuffer> threadBlocks() {
+        return threadBlocks;
+    }
+
+    // each thread is captured under its own monitor while the rest of the
+    // forum keeps running; LSNs sort out what the log still has to replay
+    public static void write(Path file, long coveredGeneration, long checkpointLsn,
+            Collection<User> users, Collection<ForumThread> threads) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(coveredGeneration);
+            out.writeLong(checkpointLsn);
+
+            // placeholders have nothing to keep, replay makes them again
+            List<User> userCopy = new ArrayList<>(users.size());
+            for (User u : users) {
+                if (u.credential() != null)
+                    userCopy.add(u);
+            }
+            out.writeInt(userCopy.size());
+            for (User u : userCopy) {
+                writeString(out, u.name());
+                writeString(out, u.credential());
+            }
+
+            for (ForumThread thread : threads) {
+                byte[] block = thread.snapshot();
+                out.writeInt(block.length);
+                out.write(block);
+            }
+            out.writeInt(-1);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // null if there is no snapshot yet
+    public static Snapshot read(Path file) throws IOException {
+        if (!Files.exists(file))
+            return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IOException("Unrecognised snapshot " + file);
+            long generation = buf.getLong();
+            long lsn = buf.getLong();
+
+            int userCount = buf.getInt();
+            Map<String, String> users = new LinkedHashMap<>(userCount * 2);
+            for (int i = 0; i < userCount; i++)
+                users.put(getString(buf), getString(buf));
+
+            List<ByteBuffer> blocks = new ArrayList<>();
+            for (int length; (length = buf.getInt()) >= 0;) {
+                blocks.add(buf.slice(buf.position(), length));
+                buf.position(buf.position() + length);
+            }
+            return new Snapshot(generation, lsn, users, blocks);
+        }
+    }
+
+    /* ---------- string helpers, int length + UTF-8, -1 for null ---------- */
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void putBytes(ByteBuffer buf, byte[] bytes) {
+        buf.putInt(bytes.length).put(bytes);
+    }
+
+    static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = utf8(s);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,22 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+// the original "<action> <status> <username> <content>" format, kept as the
+// fallback for clients that don't speak the binary one
+public final class TextCodec implements WireCodec {
+
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    private TextCodec() {
+    }
+
+    @Override
+    public Frame decode(ByteBuffer packet, SocketAddress sender) {
+        return Event.decode(packet, sender);
+    }
+
+    @Override
+    public void encode(int action, int status, String username, String content, ByteBuffer out) {
+        out.put(Event.createEvent(action, status, username, content).getBytes());
+    }
+}
@@ -1,35 +1,91 @@
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class ThreadManager {
 
-    private final Map<String, ForumThread> threads = new HashMap<>();
-    private final Path directory = Paths.get("").toAbsolutePath(); // same as pwd
-
-    public ThreadManager() {
+    // concurrent map so lookups never take a manager-wide lock; each
+    // ForumThread guards its own state with its monitor
+    private final Map<String, ForumThread> threads = new ConcurrentHashMap<>();
+    private final Path directory;
+    private final MutationLog log;
+    private final Materializer materializer;
+    private final BlobStore blobs;
+    // cached LST payload, tagged with the version of the title set it was
+    // built from; CRT and RMV bump the version, which is enough to
+    // invalidate it even if a rebuild is racing them
+    private final AtomicLong titlesVersion = new AtomicLong();
+    private volatile TitleView titleView;
+
+    public ThreadManager(Path directory, MutationLog log, Materializer materializer, BlobStore blobs) {
+        this.directory = directory;
+        this.log = log;
+        this.materializer = materializer;
+        this.blobs = blobs;
     }
 
-    public synchronized boolean createThread(User creator, String title) throws IOException {
-        if (threads.containsKey(title)) {
-            return false;
+    public boolean createThread(User creator, String title) throws IOException {
+        ForumThread thread = new ForumThread(title, creator, directory, log, materializer);
+        MutationLog.Commit commit;
+        // hold the new thread's lock until CRT is in the log, so a post that
+        // finds it in the map can't get logged ahead of it
+        synchronized (thread) {
+            if (threads.putIfAbsent(title, thread) != null) {
+                return false;
+            }
+            commit = thread.logCreated();
         }
-        ForumThread thread = new ForumThread(title, creator, directory);
+        titlesChanged();
         thread.createFile();
-        threads.put(title, thread);
+        commit.await();
         return true;
     }
 
-    public synchronized String listTitles() {
-        return threads.isEmpty() ? "No threads to list"
+    // install the threads recovery rebuilt, before any request is served,
+    // and count the blob references they hold
+    void restore(Map<String, ForumThread> recovered) throws IOException {
+        threads.putAll(recovered);
+        titlesChanged();
+        int swept = blobs.recount(threads.values().stream()
+                .flatMap(t -> t.attachments().stream())
+                .map(ThreadMessage::blob)
+                .filter(Objects::nonNull));
+        if (swept > 0)
+            System.out.println("Removed " + swept + " unreferenced attachment blobs");
+    }
+
+    Collection<ForumThread> all() {
+        return threads.values();
+    }
+
+    public String listTitles() {
+        long version = titlesVersion.get();
+        TitleView view = titleView;
+        if (view != null && view.version == version) {
+            ViewStats.listHits.increment();
+            return view.text;
+        }
+        ViewStats.listMisses.increment();
+        String text = threads.isEmpty() ? "No threads to list"
                 : String.join(" ", threads.keySet());
+        titleView = new TitleView(version, text);
+        return text;
+    }
+
+    private void titlesChanged() {
+        titlesVersion.incrementAndGet();
+        if (titleView != null)
+            ViewStats.listInvalidations.increment();
     }
 
-    public synchronized ForumThread get(String title) {
+    public ForumThread get(String title) {
         return threads.get(title);
     }
 
-    public synchronized boolean exists(String title) {
+    public boolean exists(String title) {
         return threads.containsKey(title);
     }
 
@@ -37,32 +93,55 @@ public class ThreadManager {
         return directory;
     }
 
-    public synchronized boolean removeThread(String requester, String title) throws IOException {
+    public boolean removeThread(String requester, String title) throws IOException {
         ForumThread thread = threads.get(title);
         if (thread == null || !thread.getCreator().name().equals(requester))
             return false;
 
-        Files.deleteIfExists(thread.getPath());
-        String prefix = title + "-";
+        MutationLog.Commit commit;
+        long waitFrom = System.nanoTime();
+        synchronized (thread) {
+            Metrics.lockWait.recordNanos(System.nanoTime() - waitFrom);
+            // lost a race with another RMV of the same thread
+            if (!threads.remove(title, thread))
+                return false;
+            commit = thread.markRemoved();
+        }
+        titlesChanged();
 
-        // this deletes all attachments associated with thread
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
-                f -> f.getFileName().toString().startsWith(prefix))) {
-            for (Path file : stream) {
-                Files.deleteIfExists(file);
-            }
+        thread.deleteFile();
+
+        // drop the thread's references; a blob other threads still post
+        // stays. Old-style attachments are deleted by name
+        for (ThreadMessage a : thread.attachments()) {
+            if (a.blob() != null)
+                blobs.release(a.blob());
+            else
+                Files.deleteIfExists(legacyPath(title, a.text()));
         }
-        threads.remove(title);
+        commit.await();
         return true;
     }
 
-    public synchronized String readFile(String title) {
+    public String readFile(String title) {
         ForumThread thread = threads.get(title);
         if (thread == null)
-            return "Thread " + thread + " not found";
+            return "Thread " + title + " not found";
         return thread.readFile();
     }
 
+    // null if the thread is gone
+    public List<String> view(String title, boolean packed) {
+        ForumThread thread = threads.get(title);
+        return thread == null ? null : thread.view(packed);
+    }
+
+    // 0 if the thread is gone or has nothing past offset
+    public int readPosts(String title, int offset, int limit, Consumer<String> out) {
+        ForumThread thread = threads.get(title);
+        return thread == null ? 0 : thread.readPosts(offset, limit, out);
+    }
+
     /* ---------- thread message functions ---------- */
 
     public void post(String threadTitle, User author, String text) throws Exception {
@@ -88,24 +167,60 @@ public class ThreadManager {
         return 2; // thread not found
     }
 
-    public void attach(String threadTitle, User author, String filename) {
+    // ingests a finished upload and posts it; false, and the blob
+    // reference goes back, if the thread is gone by then or already has
+    // the file. A post the log failed to take keeps its reference, it is
+    // up and can be downloaded
+    public boolean attach(String threadTitle, User author, String filename, Path staged) throws IOException {
+        String blob = blobs.ingest(staged);
         ForumThread thread = threads.get(threadTitle);
-        if (thread != null) {
-            try {
-                thread.addAttachment(filename, author);
-            } catch (IOException e) {
-                System.out.println("Failed to attach file");
-            }
+        boolean attached;
+        try {
+            attached = thread != null && thread.addAttachment(filename, blob, author);
+        } catch (IOException e) {
+            ServerLog.warn("UPD", author.name(), "Failed to log attachment " + filename + ": " + e.getMessage());
+            return true;
         }
+        if (!attached)
+            blobs.release(blob);
+        return attached;
     }
 
     public boolean attachmentExists(String threadTitle, String fileName) {
+        Path path = attachmentPath(threadTitle, fileName);
+        return path != null && Files.exists(path);
+    }
+
+    // where the bytes of an attachment live, null if there is none
+    public Path attachmentPath(String threadTitle, String fileName) {
         ForumThread thread = threads.get(threadTitle);
-        if (thread == null) {
-            return false;
-        }
+        ThreadMessage a = thread == null ? null : thread.attachment(fileName);
+        if (a == null)
+            return null;
+        return a.blob() != null ? blobs.path(a.blob()) : legacyPath(threadTitle, fileName);
+    }
 
-        Path filePath = directory.resolve(threadTitle + '-' + fileName);
-        return Files.exists(filePath) && thread.hasFile(fileName);
+    public Path packedAttachmentPath(String threadTitle, String fileName) {
+        ForumThread thread = threads.get(threadTitle);
+        ThreadMessage a = thread == null ? null : thread.attachment(fileName);
+        return a == null || a.blob() == null ? null : blobs.packedPath(a.blob());
+    }
+
+    public Path stagingPath(String threadTitle, String fileName) {
+        return blobs.staging(threadTitle, fileName);
+    }
+
+    private Path legacyPath(String threadTitle, String fileName) {
+        return directory.resolve(threadTitle + '-' + fileName);
+    }
+
+    private static final class TitleView {
+        final long version;
+        final String text;
+
+        TitleView(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
     }
 }
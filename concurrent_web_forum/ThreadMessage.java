@@ -9,13 +9,23 @@ public final class ThreadMessage {
     private final User author;
     private final PostType type;
     private String text;
-    private int number; // MESSAGE posts get a number >=1
+    // slot in the thread, never reused or shifted; the visible message
+    // number is derived from it by the thread's MessageIndex
+    private final int id;
+    // SHA-256 of an attachment's bytes in the BlobStore; null for messages
+    // and for attachments stored the old way, as <thread>-<file>
+    private final String blob;
 
-    public ThreadMessage(User author, String text, PostType type, int num) {
+    public ThreadMessage(User author, String text, PostType type, int id) {
+        this(author, text, type, id, null);
+    }
+
+    public ThreadMessage(User author, String text, PostType type, int id, String blob) {
         this.author = Objects.requireNonNull(author);
         this.text = text;
         this.type = type;
-        this.number = num;
+        this.id = id;
+        this.blob = blob;
     }
 
     /* getters */
@@ -31,21 +41,21 @@ public final class ThreadMessage {
         return text;
     }
 
-    public int number() {
-        return number;
+    public int id() {
+        return id;
     }
 
-    /* setters used by Thread when editing / renumbering */
-    void setText(String newText) {
-        this.text = newText;
+    public String blob() {
+        return blob;
     }
 
-    void setNumber(int num) {
-        this.number = num;
+    /* setter used by Thread when editing */
+    void setText(String newText) {
+        this.text = newText;
     }
 
-    @Override
-    public String toString() {
+    // number is the visible message number, ignored for attachments
+    public String format(int number) {
         return (type == PostType.MESSAGE)
                 ? number + " " + author.name() + ": " + text
                 : author.name() + " uploaded " + text;
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// attachment throughput over loopback for the two FileTransfer paths: a
+// download (file -> socket) and an upload (socket -> file) per size, with
+// the far end a plain channel that drains or feeds a reused direct buffer
+//
+// usage: java TransferBenchmark [sizes...]   sizes like 1m 100m 2g
+public class TransferBenchmark {
+
+    private static final int PEER_BUFFER = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : new String[] { "1m", "100m", "2g" };
+        Path dir = Files.createTempDirectory("forum-transfer");
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            System.out.printf("%-8s %-8s %12s %12s%n", "size", "path", "DWN MB/s", "UPD MB/s");
+            for (String size : sizes) {
+                long bytes = parseSize(size);
+                Path source = dir.resolve("source");
+                Path target = dir.resolve("target");
+                fill(source, bytes);
+                // small files are over in microseconds, so repeat them
+                int rounds = (int) Math.max(1, Math.min(20, (256L << 20) / bytes));
+                for (boolean zeroCopy : new boolean[] { false, true }) {
+                    run(listener, source, target, bytes, zeroCopy); // warm up
+                    double down = 0, up = 0;
+                    for (int i = 0; i < rounds; i++) {
+                        double[] rates = run(listener, source, target, bytes, zeroCopy);
+                        down += rates[0];
+                        up += rates[1];
+                    }
+                    System.out.printf("%-8s %-8s %12.0f %12.0f%n", size, zeroCopy ? "channel" : "stream",
+                            down / rounds, up / rounds);
+                }
+                Files.delete(source);
+                Files.deleteIfExists(target);
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // {download MB/s, upload MB/s}
+    private static double[] run(ServerSocketChannel listener, Path source, Path target, long bytes,
+            boolean zeroCopy) throws Exception {
+        double[] rates = new double[2];
+
+        try (SocketChannel out = SocketChannel.open(listener.getLocalAddress());
+                SocketChannel in = listener.accept()) {
+            Thread drain = Thread.ofPlatform().start(() -> drain(in));
+            long start = System.nanoTime();
+            if (zeroCopy)
+                FileTransfer.sendChannel(source, out);
+            else
+                FileTransfer.send(source, out.socket().getOutputStream());
+            out.shutdownOutput();
+            drain.join();
+            rates[0] = bytes / 1e6 / ((System.nanoTime() - start) / 1e9);
+        }
+
+        try (SocketChannel out = SocketChannel.open(listener.getLocalAddress());
+                SocketChannel in = listener.accept()) {
+            Thread feed = Thread.ofPlatform().start(() -> feed(out, bytes));
+            long start = System.nanoTime();
+            long received = zeroCopy ? FileTransfer.receiveChannel(in, target)
+                    : FileTransfer.receive(in.socket().getInputStream(), target);
+            rates[1] = received / 1e6 / ((System.nanoTime() - start) / 1e9);
+            feed.join();
+            if (received != bytes)
+                throw new IllegalStateException("received " + received + " of " + bytes + " bytes");
+        }
+        return rates;
+    }
+
+    private static void drain(SocketChannel in) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(PEER_BUFFER);
+        try {
+            while (in.read(buf) >= 0)
+                buf.clear();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void feed(SocketChannel out, long bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(PEER_BUFFER);
+        try {
+            for (long left = bytes; left > 0;) {
+                buf.clear().limit((int) Math.min(PEER_BUFFER, left));
+                left -= out.write(buf);
+            }
+            out.shutdownOutput();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void fill(Path file, long bytes) throws IOException {
+        byte[] block = new byte[PEER_BUFFER];
+        ThreadLocalRandom.current().nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long left = bytes; left > 0; left -= block.length)
+                out.write(block, 0, (int) Math.min(block.length, left));
+        }
+    }
+
+    static long parseSize(String size) {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        int shift = Arrays.asList('k', 'm', 'g').indexOf(unit) * 10 + 10;
+        if (shift < 10)
+            return Long.parseLong(size);
+        return Long.parseLong(size.substring(0, size.length() - 1)) << shift;
+    }
+}
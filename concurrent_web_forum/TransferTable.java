@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// UPD/DWN requests waiting for their TCP connection. Each one gets a random
+// session token that goes back in the "ready" reply; the client writes it
+// first thing on the connection and the acceptor claims the matching entry,
+// so simultaneous transfers can't be cross-wired. Entries nobody claims
+// within the timeout are swept out.
+//
+// A chunked transfer keeps its token for a whole resume window instead:
+// any number of connections may present it, each claim pushes the expiry
+// out again, and asking for the same upload again resumes it.
+public final class TransferTable {
+
+    // hex characters the client sends before any file bytes
+    public static final int TOKEN_LENGTH = 32;
+
+    private final Map<String, Transfer> pending = new ConcurrentHashMap<>();
+    // open upload per thread/file pair, so two uploads of the same
+    // attachment can't write the same file at once; guarded by this
+    private final Map<String, Transfer> uploads = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long timeoutNanos;
+    private final long resumeNanos;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "transfer-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public TransferTable(long timeoutMs, long resumeWindowMs) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.resumeNanos = TimeUnit.MILLISECONDS.toNanos(resumeWindowMs);
+        sweeper.scheduleWithFixedDelay(this::sweep, timeoutMs, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // a one-connection transfer; null if the same attachment is already
+    // being uploaded
+    public synchronized Transfer open(Frame request, User user, boolean upload, String thread, String filename) {
+        if (upload && uploads.containsKey(key(thread, filename)))
+            return null;
+        return register(new Transfer(newToken(), request, user, upload, thread, filename, false, null, timeoutNanos));
+    }
+
+    // a chunked download, good for any number of connections
+    public Transfer openChunkedDownload(Frame request, User user, String thread, String filename) {
+        return register(new Transfer(newToken(), request, user, false, thread, filename, true, null, resumeNanos));
+    }
+
+    // a chunked upload into part, or the one already open for the same
+    // user, attachment and size, which then carries on where it stopped;
+    // null if someone else is uploading the attachment
+    public synchronized Transfer openChunkedUpload(Frame request, User user, String thread, String filename,
+            long size, int chunkSize, Path part) throws IOException {
+        Transfer open = uploads.get(key(thread, filename));
+        if (open != null) {
+            if (open.part == null || open.part.size() != size || open.user != user)
+                return null;
+            open.request = request; // completion goes to wherever the client is now
+            open.touch();
+            return open;
+        }
+        PartialFile file = PartialFile.create(part, size, chunkSize);
+        return register(new Transfer(newToken(), request, user, true, thread, filename, true, file, resumeNanos));
+    }
+
+    // the transfer a connection presented the token for, null if the token
+    // is unknown, already used or expired
+    public Transfer claim(String token) {
+        Transfer t = pending.get(token);
+        if (t == null)
+            return null;
+        if (System.nanoTime() - t.deadline > 0) {
+            expire(t);
+            return null;
+        }
+        if (!t.chunked)
+            return pending.remove(token, t) ? t : null;
+        t.touch();
+        return t;
+    }
+
+    // a one-connection transfer is done with once its connection is, a
+    // chunked upload once it has been committed
+    public synchronized void finish(Transfer t) {
+        pending.remove(t.token, t);
+        if (t.upload)
+            uploads.remove(key(t.thread, t.filename), t);
+    }
+
+    private synchronized Transfer register(Transfer t) {
+        if (t.upload)
+            uploads.put(key(t.thread, t.filename), t);
+        pending.put(t.token, t);
+        return t;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_LENGTH / 2];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private void expire(Transfer t) {
+        if (!pending.remove(t.token, t))
+            return;
+        finish(t);
+        if (t.part != null)
+            t.part.abort();
+        System.err.println("Stale " + (t.upload ? "UPD" : "DWN") + " of " + t.filename
+                + (t.chunked ? " expired" : " expired, no TCP client arrived"));
+    }
+
+    public int pending() {
+        return pending.size();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Transfer t : pending.values()) {
+            if (now - t.deadline > 0)
+                expire(t);
+        }
+    }
+
+    private static String key(String thread, String filename) {
+        return thread + '/' + filename;
+    }
+
+    public static final class Transfer {
+        private final String token;
+        private volatile Frame request;
+        // who asked, as their session resolved them
+        private final User user;
+        private final boolean upload;
+        private final String thread;
+        private final String filename;
+        // chunked transfers reuse the token and their expiry slides
+        private final boolean chunked;
+        // null unless this is a chunked upload
+        private final PartialFile part;
+        private final long lifetime;
+        private volatile long deadline;
+
+        Transfer(String token, Frame request, User user, boolean upload, String thread, String filename,
+                boolean chunked, PartialFile part, long lifetime) {
+            this.token = token;
+            this.request = request;
+            this.user = user;
+            this.upload = upload;
+            this.thread = thread;
+            this.filename = filename;
+            this.chunked = chunked;
+            this.part = part;
+            this.lifetime = lifetime;
+            touch();
+        }
+
+        // keeps a chunked transfer alive while it is making progress
+        public void touch() {
+            deadline = System.nanoTime() + lifetime;
+        }
+
+        public boolean chunked() {
+            return chunked;
+        }
+
+        public PartialFile part() {
+            return part;
+        }
+
+        public String token() {
+            return token;
+        }
+
+        // the UDP request, its sender gets the completion reply
+        public Frame request() {
+            return request;
+        }
+
+        public User user() {
+            return user;
+        }
+
+        public boolean upload() {
+            return upload;
+        }
+
+        public String thread() {
+            return thread;
+        }
+
+        public String filename() {
+            return filename;
+        }
+    }
+}
@@ -1,11 +1,16 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class User {
     private final String name;
-    private final String password;
-    private boolean online = false;
+    // a PasswordHash string (plaintext for accounts from before hashing),
+    // null for a placeholder that can never log in; replaced when rehashed
+    private volatile String credential;
+    // flipped without any lock, so auth checks never serialize workers
+    private final AtomicBoolean online = new AtomicBoolean(false);
 
-    public User(String name, String password) {
+    public User(String name, String credential) {
         this.name = name;
-        this.password = password;
+        this.credential = credential;
     }
 
     public String name() {
@@ -13,18 +18,19 @@ public class User {
     }
 
     public boolean isOnline() {
-        return online;
+        return online.get();
     }
 
-    public void setOnline(boolean o) {
-        online = o;
+    // returns true if this call changed the state
+    public boolean setOnline(boolean o) {
+        return online.compareAndSet(!o, o);
     }
 
-    public boolean passwordOK(String p) {
-        return password.equals(p);
+    public String credential() {
+        return credential;
     }
 
-    public String password() {
-        return password;
+    void setCredential(String credential) {
+        this.credential = credential;
     }
 }
@@ -1,61 +1,156 @@
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UserList {
 
-    // wrap in a synchronizedList as a mutex guard against data races
-    // learned from 6991 rust course lol
-    private final List<User> users = Collections.synchronizedList(new ArrayList<>());
-    private final Path credFile = Paths.get("").toAbsolutePath().resolve("credentials.txt");
-
-    public UserList() {
-        try (Scanner sc = new Scanner(credFile)) {
-            while (sc.hasNextLine()) {
-                String[] tokens = sc.nextLine().split(" ");
-                if (tokens.length == 2)
-                    users.add(new User(tokens[0], tokens[1]));
-            }
+    // hashed by username so every lookup is O(1), and reads take no lock at all
+    private final Map<String, User> users;
+    private final AtomicInteger onlineCount = new AtomicInteger();
+    // a credential was replaced since credentials.txt was last rewritten
+    private final AtomicBoolean rehashed = new AtomicBoolean();
+    private final Path credFile;
+    private final MutationLog log;
+    private final Materializer materializer;
+
+    public UserList(Path credFile, MutationLog log, Materializer materializer) {
+        this.credFile = credFile;
+        this.log = log;
+        this.materializer = materializer;
+
+        // sized from the file up front (a line is rarely under 16 bytes)
+        // so a big load doesn't keep rehashing the map
+        long bytes = 0;
+        try {
+            bytes = Files.exists(credFile) ? Files.size(credFile) : 0;
+        } catch (IOException e) {
+            // just no hint
+        }
+        users = new ConcurrentHashMap<>((int) Math.min(bytes / 16 + 16, 1 << 26));
+        // a later line for the same name is a rehash, it wins
+        try {
+            CredentialStore.load(credFile, (name, credential) -> users.put(name, new User(name, credential)));
         } catch (IOException e) {
             System.err.println("cannot read credentials.txt");
         }
     }
 
-    // add new user and append to file
-    public synchronized void add(String name, String pass) {
-        users.add(new User(name, pass));
-        try (BufferedWriter bw = Files.newBufferedWriter(credFile, StandardOpenOption.APPEND)) {
-            bw.write(name + " " + pass);
-            bw.newLine();
-        } catch (IOException e) {
-            System.err.println("cannot update credentials.txt");
+    // add new user with an already hashed credential, false if the name
+    // was taken meanwhile; credentials.txt catches up in the background
+    // once the log has the registration
+    public boolean add(String name, String credential) throws IOException {
+        if (users.putIfAbsent(name, new User(name, credential)) != null)
+            return false;
+
+        log.append(Mutation.register(name, credential)).await();
+        materializer.appendCredentials(name + " " + credential);
+        return true;
+    }
+
+    // replaces a plaintext or outdated credential once the password has
+    // been seen to match it; false if it changed meanwhile
+    public boolean rehash(User user, String old, String credential) throws IOException {
+        synchronized (user) {
+            if (user.credential() != old)
+                return false;
+            user.setCredential(credential);
         }
+        log.append(Mutation.password(user.name(), credential)).await();
+        materializer.appendCredentials(user.name() + " " + credential);
+        rehashed.set(true);
+        return true;
+    }
+
+    // after rehashes, has credentials.txt rewritten without the lines they
+    // replaced (the old plaintext passwords); called at checkpoints
+    void compactCredentials() {
+        if (!rehashed.getAndSet(false))
+            return;
+        materializer.rewriteCredentials(() -> {
+            List<String> lines = new ArrayList<>(users.size());
+            for (User user : users.values()) {
+                String credential = user.credential();
+                if (credential != null)
+                    lines.add(user.name() + " " + credential);
+            }
+            return lines;
+        });
+    }
+
+    // re-add a user from the snapshot or a logged registration; users
+    // credentials.txt hadn't caught up with are written out again. A null
+    // credential is a placeholder from an older snapshot, resolve() makes
+    // it again if a post needs it, and it never goes in credentials.txt
+    void restore(String name, String credential) {
+        if (credential == null)
+            return;
+        if (users.putIfAbsent(name, new User(name, credential)) == null)
+            materializer.appendCredentials(name + " " + credential);
+    }
+
+    // a logged rehash; credentials.txt gets the line again if it is behind
+    void restoreCredential(String name, String credential) {
+        User user = resolve(name);
+        if (!credential.equals(user.credential())) {
+            user.setCredential(credential);
+            materializer.appendCredentials(name + " " + credential);
+        }
+    }
+
+    // user lookup for replay; a name with no surviving registration gets a
+    // placeholder that can never log in, rather than failing recovery
+    User resolve(String name) {
+        return users.computeIfAbsent(name, n -> new User(n, null));
+    }
+
+    Collection<User> all() {
+        return users.values();
+    }
+
+    public boolean exists(String n) {
+        return users.containsKey(n);
+    }
+
+    public User get(String name) {
+        User user = users.get(name);
+        if (user == null)
+            throw new NoSuchElementException("No such user: " + name);
+        return user;
     }
 
-    public synchronized boolean exists(String n) {
-        return users.stream().anyMatch(u -> u.name().equals(n));
+    // a session ending, by XIT or by idling out
+    public void logOut(User user) {
+        if (user.setOnline(false))
+            onlineCount.decrementAndGet();
     }
 
-    public synchronized User get(String name) {
-        return users.stream()
-                .filter(user -> user.name().equals(name))
-                .findFirst()
-                .orElseThrow(() -> new NoSuchElementException("No such user: " + name));
+    public void setOnline(String name, boolean status) {
+        if (get(name).setOnline(status))
+            onlineCount.addAndGet(status ? 1 : -1);
     }
 
-    public synchronized boolean validPassword(String name, String password) {
-        return get(name).passwordOK(password);
+    // atomically take an offline user online, false if someone beat us to it
+    public boolean logIn(String name) {
+        if (!get(name).setOnline(true))
+            return false;
+        onlineCount.incrementAndGet();
+        return true;
     }
 
-    public synchronized void setOnline(String name, boolean status) {
-        get(name).setOnline(status);
+    // unknown users are simply not online
+    public boolean isOnline(String name) {
+        User user = users.get(name);
+        return user != null && user.isOnline();
     }
 
-    public synchronized boolean isOnline(String name) {
-        return get(name).isOnline();
+    public boolean anyOnline() {
+        return onlineCount.get() > 0;
     }
 
-    public synchronized boolean anyOnline() {
-        return users.stream().anyMatch(User::isOnline);
+    public int onlineCount() {
+        return onlineCount.get();
     }
 }
@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// hit / miss / invalidation counts for the cached RDT and LST payloads,
+// shared by every thread; LongAdder so busy readers don't contend on them
+public final class ViewStats {
+
+    static final LongAdder threadHits = new LongAdder(),
+            threadMisses = new LongAdder(),
+            threadAppends = new LongAdder(),
+            threadInvalidations = new LongAdder(),
+            listHits = new LongAdder(),
+            listMisses = new LongAdder(),
+            listInvalidations = new LongAdder();
+
+    private ViewStats() {
+    }
+
+    public static long threadHits() {
+        return threadHits.sum();
+    }
+
+    public static long threadMisses() {
+        return threadMisses.sum();
+    }
+
+    public static long threadAppends() {
+        return threadAppends.sum();
+    }
+
+    public static long threadInvalidations() {
+        return threadInvalidations.sum();
+    }
+
+    public static long listHits() {
+        return listHits.sum();
+    }
+
+    public static long listMisses() {
+        return listMisses.sum();
+    }
+
+    public static long listInvalidations() {
+        return listInvalidations.sum();
+    }
+
+    public static String summary() {
+        return String.format("RDT view %d hits, %d misses, %d appends, %d invalidations; "
+                + "LST view %d hits, %d misses, %d invalidations",
+                threadHits(), threadMisses(), threadAppends(), threadInvalidations(),
+                listHits(), listMisses(), listInvalidations());
+    }
+}
@@ -0,0 +1,37 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+// turns datagrams into Frames and replies back into datagrams
+public interface WireCodec {
+
+    Frame decode(ByteBuffer packet, SocketAddress sender);
+
+    // writes the frame at out's position; the caller flips
+    void encode(int action, int status, String username, String content, ByteBuffer out);
+
+    // the same, tagged with a request id (0 for none; a client numbers its
+    // requests, replies carry the id of the request they answer) and with
+    // the content deflated if that makes it smaller, only for peers whose
+    // frames said they can inflate. The text format has nowhere to carry
+    // either, so it ignores both
+    default void encode(int action, int status, int requestId, String username, String content,
+            boolean deflate, ByteBuffer out) {
+        encode(action, status, username, content, out);
+    }
+
+    // the same, carrying a session token (0 for none), see SessionTable;
+    // again only the binary format has room for it
+    default void encode(int action, int status, int requestId, long session, String username, String content,
+            boolean deflate, ByteBuffer out) {
+        encode(action, status, requestId, username, content, deflate, out);
+    }
+
+    // binary frames open with a byte that can never start a text event (those
+    // begin with an ASCII digit), so the format is negotiated per datagram:
+    // whatever the client sends in is what it gets back
+    static WireCodec forPacket(ByteBuffer packet) {
+        return packet.hasRemaining() && packet.get(packet.position()) == BinaryCodec.MAGIC
+                ? BinaryCodec.INSTANCE
+                : TextCodec.INSTANCE;
+    }
+}
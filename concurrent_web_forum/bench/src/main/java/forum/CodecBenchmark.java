@@ -0,0 +1,67 @@
+package forum;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// a typical MSG request both ways, in each wire format
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final String USER = "chewbacca",
+            CONTENT = "general-chat the server works again today, see the file attached above";
+
+    private final SocketAddress sender = new InetSocketAddress("127.0.0.1", 4000);
+    private final ByteBuffer out = ByteBuffer.allocate(Server.MAX_DATAGRAM);
+    private ByteBuffer text, binary;
+
+    @Setup
+    public void encodeOnce() {
+        text = ByteBuffer.allocate(Server.MAX_DATAGRAM);
+        TextCodec.INSTANCE.encode(Client.MSG, Client.FC, USER, CONTENT, text);
+        text.flip();
+        binary = ByteBuffer.allocate(Server.MAX_DATAGRAM);
+        BinaryCodec.INSTANCE.encode(Client.MSG, Client.FC, 17, USER, CONTENT, false, binary);
+        binary.flip();
+    }
+
+    @Benchmark
+    public int textEncode() {
+        out.clear();
+        TextCodec.INSTANCE.encode(Client.MSG, Client.FC, USER, CONTENT, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public Frame textDecode() {
+        return Event.decode(text.duplicate(), sender);
+    }
+
+    @Benchmark
+    public int binaryEncode() {
+        out.clear();
+        BinaryCodec.INSTANCE.encode(Client.MSG, Client.FC, 17, USER, CONTENT, false, out);
+        return out.position();
+    }
+
+    @Benchmark
+    public Frame binaryDecode() {
+        return BinaryCodec.INSTANCE.decode(binary.duplicate(), sender);
+    }
+}
@@ -0,0 +1,91 @@
+package forum;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// one thread of size posts by a single author, written straight through
+// ForumThread. Each op leaves it roughly that size: addMessage grows it by
+// the posts it times, deleteMessage posts a replacement for every one it
+// removes. The file cases are the materializer's two ways of catching the
+// thread file up: one new line appended, or the whole file rewritten
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dforum.fsync=none")
+public class ForumThreadBenchmark {
+
+    // posts in the thread
+    @Param({ "10", "1k", "100k", "1m" })
+    public String size;
+
+    private final User author = new User("bench", "bench");
+    private Scratch scratch;
+    private ForumThread thread;
+
+    @Setup
+    public void build() throws Exception {
+        scratch = new Scratch("forum-thread");
+        thread = new ForumThread("bench", author, scratch.dir, scratch.log(), scratch.materializer());
+        long posts = TransferBenchmark.parseSize(size);
+        for (int i = 0; i < posts; i++)
+            thread.addMessage("benchmark message number " + i, author);
+        thread.materialize();
+    }
+
+    @TearDown
+    public void clean() throws Exception {
+        scratch.close();
+    }
+
+    private int randomPost() {
+        return 1 + ThreadLocalRandom.current().nextInt(Math.max(1, thread.postCount()));
+    }
+
+    @Benchmark
+    public void addMessage() throws Exception {
+        thread.addMessage("one more benchmark post", author);
+    }
+
+    @Benchmark
+    public int editMessage() throws Exception {
+        return thread.editMessage(author.name(), randomPost(), "edited benchmark post");
+    }
+
+    @Benchmark
+    public int deleteMessage() throws Exception {
+        int status = thread.deleteMessage(author.name(), randomPost());
+        thread.addMessage("replacement benchmark post", author);
+        return status;
+    }
+
+    @Benchmark
+    public String readFile() {
+        return thread.readFile();
+    }
+
+    @Benchmark
+    public void fileAppend() throws Exception {
+        thread.addMessage("one more benchmark post", author);
+        thread.materialize();
+    }
+
+    @Benchmark
+    public void fileRewrite() throws Exception {
+        thread.editMessage(author.name(), randomPost(), "edited benchmark post");
+        thread.materialize();
+    }
+}
@@ -0,0 +1,77 @@
+package forum;
+
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// the lookups every request makes, on one UserList and one ThreadManager
+// shared by all benchmark threads; run with -t to see them contended
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dforum.fsync=none")
+public class LookupBenchmark {
+
+    private static final int USERS = 10_000, THREADS = 1_000;
+
+    private final String[] users = Scratch.names("user", USERS),
+            strangers = Scratch.names("nobody", USERS),
+            // half of them miss
+            titles = Scratch.names("thread", 2 * THREADS);
+    private Scratch scratch;
+    private UserList userList;
+    private ThreadManager manager;
+
+    @Setup
+    public void build() throws Exception {
+        scratch = new Scratch("forum-lookup");
+        MutationLog log = scratch.log();
+        Materializer materializer = scratch.materializer();
+        userList = new UserList(Files.createFile(scratch.dir.resolve("credentials.txt")), log, materializer);
+        for (int i = 0; i < USERS; i++)
+            userList.restore(users[i], "password" + i);
+        manager = new ThreadManager(scratch.dir, log, materializer,
+                new BlobStore(scratch.dir.resolve("blobs"), ServerConfig.CHUNK_SIZE));
+        User creator = new User("bench", "bench");
+        for (int i = 0; i < THREADS; i++)
+            manager.createThread(creator, titles[i]);
+    }
+
+    @TearDown
+    public void clean() throws Exception {
+        scratch.close();
+    }
+
+    @Benchmark
+    public User usersGet() {
+        return userList.get(users[ThreadLocalRandom.current().nextInt(USERS)]);
+    }
+
+    @Benchmark
+    public boolean usersExistsMiss() {
+        return userList.exists(strangers[ThreadLocalRandom.current().nextInt(USERS)]);
+    }
+
+    @Benchmark
+    public ForumThread threadsGet() {
+        return manager.get(titles[ThreadLocalRandom.current().nextInt(THREADS)]);
+    }
+
+    @Benchmark
+    public boolean threadsExists() {
+        return manager.exists(titles[ThreadLocalRandom.current().nextInt(2 * THREADS)]);
+    }
+}
@@ -0,0 +1,54 @@
+package forum;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// a temp directory with a mutation log and a materializer that never runs
+// on its own, closed and deleted again in a benchmark's @TearDown
+final class Scratch implements AutoCloseable {
+
+    // keeps the materializer from running on its own
+    private static final long IDLE_MS = 3_600_000;
+
+    final Path dir;
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    Scratch(String prefix) throws IOException {
+        dir = Files.createTempDirectory(prefix);
+    }
+
+    MutationLog log() throws IOException {
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.NONE, 1, 0);
+        resources.add(log);
+        return log;
+    }
+
+    Materializer materializer() {
+        Materializer materializer = new Materializer(dir.resolve("credentials.txt"), IDLE_MS);
+        resources.add(materializer);
+        return materializer;
+    }
+
+    @Override
+    public void close() throws Exception {
+        Collections.reverse(resources);
+        for (AutoCloseable resource : resources)
+            resource.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    static String[] names(String prefix, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++)
+            names[i] = prefix + i;
+        return names;
+    }
+}
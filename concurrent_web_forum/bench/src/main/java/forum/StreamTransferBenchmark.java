@@ -0,0 +1,94 @@
+package forum;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FileTransfer's stream copy loops on their own, no sockets: a file sent
+// into nothing, and an endless upload written to a file. ms/op over the
+// file size is the copy rate; TransferBenchmark has the loopback numbers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class StreamTransferBenchmark {
+
+    @Param({ "16m" })
+    public String file;
+
+    private long bytes;
+    private byte[] block;
+    private Scratch scratch;
+    private Path source, target;
+
+    @Setup
+    public void build() throws Exception {
+        bytes = TransferBenchmark.parseSize(file);
+        scratch = new Scratch("forum-stream");
+        source = scratch.dir.resolve("source");
+        target = scratch.dir.resolve("target");
+        byte[] data = new byte[(int) bytes];
+        ThreadLocalRandom.current().nextBytes(data);
+        Files.write(source, data);
+        block = new byte[FileTransfer.STREAM_BUFFER];
+        ThreadLocalRandom.current().nextBytes(block);
+    }
+
+    @TearDown
+    public void clean() throws Exception {
+        scratch.close();
+    }
+
+    @Benchmark
+    public long send() throws Exception {
+        return FileTransfer.send(source, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long receive() throws Exception {
+        return FileTransfer.receive(new Repeating(block, bytes), target);
+    }
+
+    // length bytes of block over and over, like an upload arriving
+    private static final class Repeating extends InputStream {
+        private final byte[] block;
+        private long left;
+
+        Repeating(byte[] block, long length) {
+            this.block = block;
+            this.left = length;
+        }
+
+        @Override
+        public int read() {
+            return left-- > 0 ? block[(int) (left % block.length)] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (left <= 0)
+                return -1;
+            int n = (int) Math.min(Math.min(len, block.length), left);
+            System.arraycopy(block, 0, b, off, n);
+            left -= n;
+            return n;
+        }
+    }
+}
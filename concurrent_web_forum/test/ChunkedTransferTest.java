@@ -0,0 +1,153 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// chunks sent over a loopback connection land in a PartialFile only when
+// their checksum matches, and a transfer resumes from the first one missing
+class ChunkedTransferTest {
+
+    private static final int CHUNK = 1024;
+
+    @TempDir
+    Path dir;
+
+    private ServerSocketChannel listener;
+
+    @BeforeEach
+    void listen() throws IOException {
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        listener.close();
+    }
+
+    private interface Sender {
+        void send(SocketChannel out) throws IOException;
+    }
+
+    // runs sender on one end of a fresh connection and receives on the
+    // other; returns how many chunks were good
+    private int transfer(PartialFile part, Sender sender) throws Exception {
+        CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+            try (SocketChannel out = SocketChannel.open(listener.getLocalAddress())) {
+                sender.send(out);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try (SocketChannel in = listener.accept()) {
+            int good = ChunkedTransfer.receiveChunks(in, part, ByteBuffer.allocate(CHUNK),
+                    ByteBuffer.allocate(CHUNK));
+            sent.get();
+            return good;
+        }
+    }
+
+    private Path file(byte[] data) throws IOException {
+        return Files.write(dir.resolve("source"), data);
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void stridedConnectionsAssembleTheFile() throws Exception {
+        byte[] data = random(10 * CHUNK + 123);
+        Path source = file(data);
+        PartialFile part = PartialFile.create(dir.resolve("out.part"), data.length, CHUNK);
+        assertEquals(11, part.chunks());
+        try (FileChannel file = FileChannel.open(source)) {
+            assertEquals(6, transfer(part, out -> ChunkedTransfer.sendChunks(file, data.length, CHUNK, 0, 2, out)));
+            assertEquals(1, part.firstMissing());
+            assertFalse(part.claimCompletion());
+            assertEquals(5, transfer(part, out -> ChunkedTransfer.sendChunks(file, data.length, CHUNK, 1, 2, out)));
+        }
+        assertEquals(part.chunks(), part.firstMissing());
+        assertEquals(data.length, part.resumeOffset());
+        assertTrue(part.claimCompletion());
+        assertFalse(part.claimCompletion());
+        Path target = dir.resolve("out");
+        part.commit(target);
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test
+    void deflatedChunksInflateToTheSameBytes() throws Exception {
+        byte[] data = "do or do not, there is no try\n".repeat(400).getBytes(StandardCharsets.UTF_8);
+        Path source = file(data);
+        PartialFile part = PartialFile.create(dir.resolve("out.part"), data.length, CHUNK);
+        try (FileChannel file = FileChannel.open(source)) {
+            assertEquals(part.chunks(), transfer(part, out -> ChunkedTransfer.sendDeflated(file, data.length,
+                    CHUNK, 0, 1, out, ByteBuffer.allocate(CHUNK), ByteBuffer.allocate(CHUNK))));
+        }
+        Path target = dir.resolve("out");
+        part.commit(target);
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    // chunk 1 arrives damaged: it isn't counted, and the transfer resumes
+    // from it once the rest are in
+    @Test
+    void badChecksumIsNotCounted() throws Exception {
+        byte[] data = random(3 * CHUNK);
+        PartialFile part = PartialFile.create(dir.resolve("out.part"), data.length, CHUNK);
+        int good = transfer(part, out -> {
+            for (int i = 0; i < 3; i++) {
+                ByteBuffer chunk = ByteBuffer.wrap(data, i * CHUNK, CHUNK);
+                CRC32C crc = new CRC32C();
+                crc.update(chunk.duplicate());
+                int checksum = (int) crc.getValue() ^ (i == 1 ? 1 : 0);
+                ByteBuffer header = ByteBuffer.allocate(ChunkedTransfer.HEADER)
+                        .putInt(i).putInt(CHUNK).putInt(checksum).flip();
+                while (header.hasRemaining())
+                    out.write(header);
+                while (chunk.hasRemaining())
+                    out.write(chunk);
+            }
+        });
+        assertEquals(2, good);
+        assertTrue(part.has(0));
+        assertFalse(part.has(1));
+        assertTrue(part.has(2));
+        assertEquals(1, part.firstMissing());
+        assertEquals(CHUNK, part.resumeOffset());
+        assertFalse(part.claimCompletion());
+        part.abort();
+    }
+
+    @Test
+    void chunkArithmetic() {
+        assertEquals(0, ChunkedTransfer.chunkCount(0, CHUNK));
+        assertEquals(1, ChunkedTransfer.chunkCount(1, CHUNK));
+        assertEquals(1, ChunkedTransfer.chunkCount(CHUNK, CHUNK));
+        assertEquals(2, ChunkedTransfer.chunkCount(CHUNK + 1, CHUNK));
+        long size = 5L * CHUNK + 10;
+        assertEquals(3L * CHUNK, ChunkedTransfer.bytes(size, CHUNK, 0, 2));
+        assertEquals(2L * CHUNK + 10, ChunkedTransfer.bytes(size, CHUNK, 1, 2));
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+// frames survive encode then decode in both formats, and forPacket tells
+// the two apart
+class CodecTest {
+
+    private static final SocketAddress SENDER = new InetSocketAddress("127.0.0.1", 4711);
+
+    private static Frame roundTrip(WireCodec codec, int action, int status, int requestId, long session,
+            String username, String content, boolean deflate) {
+        ByteBuffer out = ByteBuffer.allocate(BinaryCodec.MAX_PAYLOAD * 2);
+        codec.encode(action, status, requestId, session, username, content, deflate, out);
+        out.flip();
+        assertSame(codec, WireCodec.forPacket(out));
+        return codec.decode(out, SENDER);
+    }
+
+    @Test
+    void binaryKeepsEveryField() {
+        Frame f = roundTrip(BinaryCodec.INSTANCE, 3, 1, 42, 0x1234_5678_9ABC_DEF0L, "yoda", "hello there",
+                false);
+        assertEquals(3, f.action());
+        assertEquals(1, f.status());
+        assertEquals(42, f.requestId());
+        assertEquals(0x1234_5678_9ABC_DEF0L, f.session());
+        assertEquals("yoda", f.username());
+        assertEquals("hello there", f.content());
+        assertSame(SENDER, f.sender());
+        assertSame(BinaryCodec.INSTANCE, f.codec());
+    }
+
+    @Test
+    void binaryLeavesOutAbsentIdAndSession() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        BinaryCodec.INSTANCE.encode(6, 0, "yoda", "", out);
+        assertEquals(BinaryCodec.HEADER_SIZE + 1 + 4 + 2, out.position());
+        out.flip();
+        Frame f = BinaryCodec.INSTANCE.decode(out, SENDER);
+        assertEquals(0, f.requestId());
+        assertEquals(0, f.session());
+        assertEquals("", f.content());
+    }
+
+    @Test
+    void binaryCarriesMultiByteUtf8() {
+        String content = "café 日本 😀";
+        Frame f = roundTrip(BinaryCodec.INSTANCE, 3, 0, 1, 0, "élève", content, false);
+        assertEquals("élève", f.username());
+        assertEquals(content, f.content());
+    }
+
+    @Test
+    void binaryDeflatesLargeRepetitivePayloads() {
+        String content = "1 yoda: do or do not, there is no try\n".repeat(200);
+        ByteBuffer out = ByteBuffer.allocate(BinaryCodec.MAX_PAYLOAD);
+        BinaryCodec.INSTANCE.encode(7, 1, 9, 0, "yoda", content, true, out);
+        if (Compression.ENABLED) {
+            assertTrue(out.position() < content.length() / 4);
+            assertTrue((out.get(1) & BinaryCodec.FLAG_DEFLATED) != 0);
+        }
+        out.flip();
+        assertEquals(content, BinaryCodec.INSTANCE.decode(out, SENDER).content());
+    }
+
+    @Test
+    void binaryRejectsTruncatedFrames() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        BinaryCodec.INSTANCE.encode(3, 0, "yoda", "hello", out);
+        out.flip().limit(out.limit() - 2);
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.INSTANCE.decode(out, SENDER));
+    }
+
+    @Test
+    void textKeepsActionStatusNameAndContent() {
+        Frame f = roundTrip(TextCodec.INSTANCE, 3, 1, 42, 99, "yoda", "hello there", true);
+        assertEquals(3, f.action());
+        assertEquals(1, f.status());
+        assertEquals("yoda", f.username());
+        assertEquals("hello there", f.content());
+        assertSame(TextCodec.INSTANCE, f.codec());
+        // nowhere to put these in the text format
+        assertEquals(0, f.requestId());
+        assertEquals(0, f.session());
+        assertFalse(f.inflates());
+    }
+
+    @Test
+    void textWithoutContent() {
+        Frame f = roundTrip(TextCodec.INSTANCE, 11, 0, 0, 0, "yoda", "", false);
+        assertEquals("yoda", f.username());
+        assertEquals("", f.content());
+    }
+}
@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringJoiner;
+
+import org.junit.jupiter.api.Test;
+
+// every RDT fragment fits Server.MAX_SIZE as the server encodes it,
+// however well or badly the posts compress, and reassembles to the thread
+class FragmentsTest {
+
+    private static final SocketAddress SENDER = new InetSocketAddress("127.0.0.1", 4711);
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789+/";
+
+    // random letters: deflate gets them down to about 3/4, nowhere near 1/4
+    private static List<String> incompressible(int posts) {
+        Random random = new Random(posts);
+        List<String> all = new ArrayList<>();
+        for (int i = 1; i <= posts; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int c = 20 + random.nextInt(60); c > 0; c--)
+                text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            all.add(i + " yoda: " + text);
+        }
+        return all;
+    }
+
+    private static List<String> compressible(int posts) {
+        List<String> all = new ArrayList<>();
+        for (int i = 1; i <= posts; i++)
+            all.add(i + " yoda: do or do not, there is no try");
+        return all;
+    }
+
+    // what the client gets back from the fragments, after checking each
+    // one fits a datagram the way reply() encodes it for a deflating client
+    private static String received(List<Frame> sent) {
+        Fragments.Assembler assembler = new Fragments.Assembler();
+        String whole = null;
+        for (Frame reply : sent) {
+            ByteBuffer out = ByteBuffer.allocate(Server.MAX_DATAGRAM);
+            BinaryCodec.INSTANCE.encode(Client.RDT, reply.status(), 42, 0, "yoda", reply.content(), true, out);
+            assertTrue(out.position() <= Server.MAX_SIZE, "fragment of " + out.position() + " bytes");
+            out.flip();
+            Frame decoded = BinaryCodec.INSTANCE.decode(out, SENDER);
+            if (sent.size() == 1)
+                return decoded.content();
+            assertNull(whole, "fragments after the last one");
+            whole = assembler.add(decoded.content());
+        }
+        return whole;
+    }
+
+    private static List<Frame> streamed(List<String> posts) {
+        List<Frame> sent = new ArrayList<>();
+        Fragments.Writer writer = new Fragments.Writer((fragment, content) -> sent.add(
+                new Frame(Client.RDT, fragment ? Client.FRAGMENT : Client.SUCCESS, "yoda", content, SENDER,
+                        BinaryCodec.INSTANCE)),
+                Fragments.budget(true));
+        posts.forEach(writer::add);
+        writer.finish();
+        return sent;
+    }
+
+    private static List<Frame> cached(List<String> posts) {
+        Fragments.Chunker view = new Fragments.Chunker(true, Fragments.budget(true));
+        posts.forEach(view::add);
+        List<Frame> sent = new ArrayList<>();
+        Fragments.send(view.chunks(), (fragment, content) -> sent.add(
+                new Frame(Client.RDT, fragment ? Client.FRAGMENT : Client.SUCCESS, "yoda", content, SENDER,
+                        BinaryCodec.INSTANCE)));
+        return sent;
+    }
+
+    private static String joined(List<String> posts) {
+        StringJoiner all = new StringJoiner(";");
+        posts.forEach(all::add);
+        return all.toString();
+    }
+
+    @Test
+    void incompressibleStreamedPagesFit() {
+        List<String> posts = incompressible(300);
+        assertEquals(joined(posts), received(streamed(posts)));
+    }
+
+    @Test
+    void incompressibleCachedViewFits() {
+        List<String> posts = incompressible(300);
+        assertEquals(joined(posts), received(cached(posts)));
+    }
+
+    // text that does shrink is still packed, into far fewer datagrams
+    @Test
+    void compressibleTextIsStillPacked() {
+        List<String> posts = compressible(300);
+        List<Frame> packed = streamed(posts);
+        assertEquals(joined(posts), received(packed));
+        assertEquals(joined(posts), received(cached(posts)));
+
+        Fragments.Chunker plain = new Fragments.Chunker(true, Fragments.PAYLOAD_BUDGET);
+        posts.forEach(plain::add);
+        assertTrue(packed.size() * 3 < plain.chunks().size(),
+                packed.size() + " packed against " + plain.chunks().size() + " plain");
+    }
+
+    // a short page is a single plain reply, packed or not
+    @Test
+    void shortPageIsOneReply() {
+        List<Frame> sent = streamed(incompressible(3));
+        assertEquals(1, sent.size());
+        assertEquals(Client.SUCCESS, sent.get(0).status());
+        assertEquals(joined(incompressible(3)), received(sent));
+    }
+}
@@ -0,0 +1,65 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    private static void assertBucketed(long micros) {
+        long top = LatencyHistogram.highestEquivalent(LatencyHistogram.index(micros));
+        assertTrue(top >= micros, micros + " reported as " + top);
+        assertTrue(top - micros <= micros / 64, micros + " reported as " + top);
+    }
+
+    @Test
+    void exactBelow128() {
+        for (long us = 0; us < 128; us++) {
+            assertEquals(us, LatencyHistogram.index(us));
+            assertEquals(us, LatencyHistogram.highestEquivalent((int) us));
+        }
+    }
+
+    @Test
+    void withinOneSixtyFourthEverywhere() {
+        for (int bit = 7; bit < 63; bit++) {
+            long power = 1L << bit;
+            assertBucketed(power - 1);
+            assertBucketed(power);
+            assertBucketed(power + 1);
+        }
+        assertBucketed(Long.MAX_VALUE);
+        Random random = new Random(1);
+        for (int i = 0; i < 10_000; i++)
+            assertBucketed((random.nextLong() >>> 1) >>> random.nextInt(63));
+    }
+
+    @Test
+    void bucketsFollowValues() {
+        int last = -1;
+        for (long us = 0; us < 1 << 20; us += 7) {
+            int index = LatencyHistogram.index(us);
+            assertTrue(index >= last, "bucket of " + us);
+            last = index;
+        }
+    }
+
+    @Test
+    void percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentileMicros(99));
+        for (long us = 1; us <= 1000; us++)
+            h.record(us);
+        h.recordNanos(-5); // a clock step back counts as 0
+        assertEquals(1001, h.count());
+        assertEquals(1000, h.maxMicros());
+        assertEquals(500500 / 1001.0, h.meanMicros(), 1e-9);
+        assertEquals(0, h.percentileMicros(0));
+        assertEquals(1000, h.percentileMicros(100));
+        long p50 = h.percentileMicros(50);
+        assertTrue(p50 >= 500 && p50 <= 500 + 500 / 64, "p50 " + p50);
+        long p99 = h.percentileMicros(99);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99 " + p99);
+    }
+}
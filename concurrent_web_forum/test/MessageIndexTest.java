@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// the Fenwick index against a plain list of counted slots, through appends
+// that grow it several times and removals all over
+class MessageIndexTest {
+
+    private static void assertMatches(List<Boolean> model, MessageIndex index) {
+        assertEquals(model.size(), index.slots());
+        int rank = 0;
+        List<Integer> counted = new ArrayList<>();
+        for (int slot = 0; slot < model.size(); slot++) {
+            if (model.get(slot)) {
+                rank++;
+                counted.add(slot);
+            }
+            assertEquals(rank, index.rank(slot), "rank of slot " + slot);
+        }
+        assertEquals(counted.size(), index.total());
+        for (int k = 1; k <= counted.size(); k++)
+            assertEquals(counted.get(k - 1), index.find(k), "slot of post " + k);
+        assertEquals(-1, index.find(0));
+        assertEquals(-1, index.find(counted.size() + 1));
+    }
+
+    @Test
+    void appendAndRemove() {
+        Random random = new Random(42);
+        List<Boolean> model = new ArrayList<>();
+        MessageIndex index = new MessageIndex();
+        for (int round = 0; round < 300; round++) {
+            if (random.nextInt(3) > 0 || model.isEmpty()) {
+                boolean counted = random.nextInt(5) > 0;
+                assertEquals(model.size(), index.append(counted));
+                model.add(counted);
+            } else {
+                int slot = random.nextInt(model.size());
+                if (model.get(slot)) {
+                    index.remove(slot);
+                    model.set(slot, false);
+                }
+            }
+            if (round % 25 == 0)
+                assertMatches(model, index);
+        }
+        assertMatches(model, index);
+    }
+
+    @Test
+    void bulkBuildMatchesAppends() {
+        Random random = new Random(7);
+        for (int slots : new int[] { 0, 1, 15, 16, 17, 100, 1024 }) {
+            boolean[] counted = new boolean[slots];
+            List<Boolean> model = new ArrayList<>();
+            for (int i = 0; i < slots; i++) {
+                counted[i] = random.nextBoolean();
+                model.add(counted[i]);
+            }
+            MessageIndex index = MessageIndex.of(counted, slots);
+            assertMatches(model, index);
+            // and it keeps working as the thread grows past it
+            for (int i = 0; i < 40; i++) {
+                index.append(true);
+                model.add(true);
+            }
+            assertMatches(model, index);
+        }
+    }
+}
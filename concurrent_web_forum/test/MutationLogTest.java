@@ -0,0 +1,270 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MutationLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static List<Long> lsns(List<MutationLog.Entry> entries) {
+        List<Long> lsns = new ArrayList<>();
+        for (MutationLog.Entry e : entries)
+            lsns.add(e.lsn());
+        return lsns;
+    }
+
+    @Test
+    void recordsReadBackInOrder() throws IOException {
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 1, 0);
+        log.append(Mutation.register("yoda", "pw")).await();
+        log.append(Mutation.createThread("swamp", "yoda")).await();
+        log.append(Mutation.post("swamp", "yoda", "do or do not")).await();
+        log.close();
+
+        assertEquals(List.of(1L), MutationLog.generations(dir));
+        List<MutationLog.Entry> entries = MutationLog.read(dir, 1);
+        assertEquals(List.of(1L, 2L, 3L), lsns(entries));
+        Mutation post = entries.get(2).mutation();
+        assertEquals(Mutation.Type.POST, post.type());
+        assertEquals("swamp", post.thread());
+        assertEquals("yoda", post.user());
+        assertEquals("do or do not", post.text());
+    }
+
+    @Test
+    void rotationSplitsSegmentsAtItsLsn() throws IOException {
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 4, 10);
+        log.append(Mutation.createThread("a", "yoda"));
+        log.append(Mutation.createThread("b", "yoda"));
+        MutationLog.Rotation rotation = log.rotate();
+        log.append(Mutation.createThread("c", "yoda")).await();
+        rotation.await();
+        log.close();
+
+        assertEquals(4, rotation.coveredGeneration());
+        assertEquals(12, rotation.lsn());
+        assertEquals(List.of(4L, 5L), MutationLog.generations(dir));
+        assertEquals(List.of(11L, 12L), lsns(MutationLog.read(dir, 4)));
+        assertEquals(List.of(13L), lsns(MutationLog.read(dir, 5)));
+
+        log.deleteSegmentsUpTo(4);
+        assertEquals(List.of(5L), MutationLog.generations(dir));
+    }
+
+    // a crash mid-write leaves a torn record, which ends the segment
+    @Test
+    void tornTailIsDropped() throws IOException {
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 1, 0);
+        log.append(Mutation.createThread("a", "yoda")).await();
+        log.append(Mutation.createThread("b", "yoda")).await();
+        log.close();
+        try (FileChannel file = FileChannel.open(MutationLog.segmentPath(dir, 1), StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 3);
+        }
+        assertEquals(List.of(1L), lsns(MutationLog.read(dir, 1)));
+    }
+
+    @Test
+    void closedLogRefusesWork() throws IOException {
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 1, 0);
+        log.close();
+        log.close(); // twice is fine
+        assertThrows(IOException.class, () -> log.append(Mutation.createThread("a", "yoda")).await());
+        assertThrows(IOException.class, () -> log.rotate().await());
+    }
+
+    // appends racing close either fail or are on disk afterwards, none is
+    // left waiting behind the shutdown
+    @Test
+    void appendsRacingCloseAreWrittenOrRefused() throws Exception {
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 1, 0);
+        Set<Long> written = ConcurrentHashMap.newKeySet();
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            Thread t = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; i < 500; i++) {
+                    MutationLog.Commit commit = log.append(Mutation.post("t", "yoda", "x"));
+                    try {
+                        commit.await();
+                        written.add(commit.lsn());
+                    } catch (IOException e) {
+                        return; // closed
+                    }
+                }
+            });
+            t.start();
+            writers.add(t);
+        }
+        started.await();
+        log.close();
+        for (Thread t : writers) {
+            t.join(10_000);
+            assertFalse(t.isAlive(), "writer stuck behind close");
+        }
+        assertTrue(lsns(MutationLog.read(dir, 1)).containsAll(written));
+    }
+
+    // a write that fails halfway through leaves a torn record; the segment
+    // is cut back so records after it are still recovered
+    @Test
+    void recordsAfterAFailedWriteAreRecovered() throws IOException {
+        FailingChannel[] channel = new FailingChannel[1];
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 1, 0,
+                path -> channel[0] = new FailingChannel(path));
+        log.append(Mutation.createThread("a", "yoda")).await();
+        channel[0].failWrites = 1;
+        assertThrows(IOException.class, () -> log.append(Mutation.createThread("b", "yoda")).await());
+        log.append(Mutation.createThread("c", "yoda")).await();
+        log.close();
+
+        List<MutationLog.Entry> entries = MutationLog.read(dir, 1);
+        assertEquals(List.of(1L, 3L), lsns(entries));
+        assertEquals("c", entries.get(1).mutation().thread());
+    }
+
+    // if the torn record can't be cut off either, the log takes nothing more
+    @Test
+    void unrepairableSegmentFailsTheLog() throws IOException {
+        FailingChannel[] channel = new FailingChannel[1];
+        MutationLog log = new MutationLog(dir, MutationLog.FsyncPolicy.GROUP, 1, 0,
+                path -> channel[0] = new FailingChannel(path));
+        log.append(Mutation.createThread("a", "yoda")).await();
+        channel[0].failWrites = 1;
+        channel[0].failTruncate = true;
+        assertThrows(IOException.class, () -> log.append(Mutation.createThread("b", "yoda")).await());
+        assertThrows(IOException.class, () -> log.append(Mutation.createThread("c", "yoda")).await());
+        assertThrows(IOException.class, () -> log.rotate().await());
+        log.close();
+
+        assertEquals(List.of(1L), lsns(MutationLog.read(dir, 1)));
+    }
+
+    // a segment file that writes only half of the next failWrites gathering
+    // writes before throwing, like a disk filling up
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        volatile int failWrites;
+        volatile boolean failTruncate;
+
+        FailingChannel(Path path) throws IOException {
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (failWrites == 0)
+                return file.write(srcs, offset, length);
+            failWrites--;
+            ByteBuffer first = srcs[offset];
+            file.write(first.slice(first.position(), first.remaining() / 2));
+            throw new IOException("no space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate)
+                throw new IOException("read-only file system");
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+}
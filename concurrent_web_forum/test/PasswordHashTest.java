@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PasswordHashTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void hashesVerify() {
+        String stored = PasswordHash.hash("do or do not");
+        assertTrue(PasswordHash.isHashed(stored));
+        assertEquals(-1, stored.indexOf(' '));
+        assertTrue(PasswordHash.verify(stored, "do or do not"));
+        assertFalse(PasswordHash.verify(stored, "there is no try"));
+        assertFalse(PasswordHash.needsRehash(stored));
+        // salted: the same password never hashes the same way twice
+        assertNotEquals(stored, PasswordHash.hash("do or do not"));
+    }
+
+    @Test
+    void plaintextStillVerifiesButNeedsRehash() {
+        assertFalse(PasswordHash.isHashed("pw"));
+        assertTrue(PasswordHash.verify("pw", "pw"));
+        assertFalse(PasswordHash.verify("pw", "pW"));
+        assertTrue(PasswordHash.needsRehash("pw"));
+    }
+
+    @Test
+    void fewerRoundsThanConfiguredNeedRehash() {
+        String weak = PasswordHash.hash("pw", ServerConfig.HASH_ITERATIONS / 2);
+        assertTrue(PasswordHash.verify(weak, "pw"));
+        assertTrue(PasswordHash.needsRehash(weak));
+    }
+
+    @Test
+    void placeholdersAndGarbageNeverVerify() {
+        assertFalse(PasswordHash.verify(null, "null"));
+        assertFalse(PasswordHash.needsRehash(null));
+        assertFalse(PasswordHash.verify("pbkdf2-sha256$1000$c2FsdA", "pw"));
+    }
+
+    // a plaintext line in credentials.txt is replaced by a hash on the first
+    // good login, and the checkpoint after drops the plaintext from the file
+    @Test
+    void plaintextUpgradedOnLogin() throws Exception {
+        Files.writeString(dir.resolve("credentials.txt"), "yoda pw\nluke x\n");
+        MessageHandler h = new MessageHandler(dir);
+        try {
+            assertEquals(MessageHandler.Login.LOGGED_IN, h.authenticate("yoda", "pw").get());
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (!PasswordHash.isHashed(h.user("yoda").credential()) && System.nanoTime() < deadline)
+                Thread.sleep(5);
+            assertTrue(PasswordHash.isHashed(h.user("yoda").credential()));
+            assertFalse(PasswordHash.isHashed(h.user("luke").credential()));
+        } finally {
+            h.close();
+        }
+
+        List<String> lines = Files.readAllLines(dir.resolve("credentials.txt"));
+        assertFalse(lines.contains("yoda pw"), lines.toString());
+        assertTrue(lines.contains("luke x"), lines.toString());
+
+        h = new MessageHandler(dir);
+        try {
+            assertEquals(MessageHandler.Login.LOGGED_IN, h.authenticate("yoda", "pw").get());
+            assertEquals(MessageHandler.Login.WRONG_PASSWORD, h.authenticate("luke", "pw").get());
+        } finally {
+            h.shutdown(false);
+        }
+    }
+}
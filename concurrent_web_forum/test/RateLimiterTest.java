@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.Test;
+
+// budgets here refill far slower than a test runs (0.001/s), so a bucket
+// holds exactly its burst; only refill() waits for a token to come back
+class RateLimiterTest {
+
+    private static final int LOGIN = 1, CRT = 2, LST = 6, XIT = 11;
+
+    private static final InetAddress A = InetAddress.getLoopbackAddress(),
+            B = new InetSocketAddress("10.0.0.2", 0).getAddress();
+
+    private static int allowed(RateLimiter limiter, int action, String user, InetAddress address, int tries) {
+        int n = 0;
+        for (int i = 0; i < tries; i++) {
+            if (limiter.allow(action, user, address))
+                n++;
+        }
+        return n;
+    }
+
+    @Test
+    void burstThenRefused() {
+        RateLimiter limiter = new RateLimiter("CRT=0.001/3", 1, 100, 60_000);
+        assertEquals(3, allowed(limiter, CRT, "yoda", null, 10));
+    }
+
+    @Test
+    void refill() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("CRT=10/1", 1, 100, 60_000);
+        assertTrue(limiter.allow(CRT, "yoda", null));
+        assertFalse(limiter.allow(CRT, "yoda", null));
+        Thread.sleep(120);
+        assertTrue(limiter.allow(CRT, "yoda", null));
+    }
+
+    @Test
+    void budgetsPerCommand() {
+        RateLimiter limiter = new RateLimiter("*=0.001/2,CRT=0.001/1,XIT=off", 1, 100, 60_000);
+        assertEquals(1, allowed(limiter, CRT, "yoda", null, 5));
+        assertEquals(2, allowed(limiter, LST, "yoda", null, 5));
+        assertEquals(5, allowed(limiter, XIT, "yoda", null, 5));
+        // opcodes out of range share the "*" budget
+        assertEquals(2, allowed(limiter, 99, "yoda", null, 5));
+    }
+
+    @Test
+    void commandsWithoutABudgetAreUnlimited() {
+        RateLimiter limiter = new RateLimiter("CRT=0.001/1", 1, 100, 60_000);
+        assertTrue(limiter.enabled());
+        assertEquals(5, allowed(limiter, LST, "yoda", A, 5));
+    }
+
+    @Test
+    void off() {
+        RateLimiter limiter = new RateLimiter("off", 1, 100, 60_000);
+        assertFalse(limiter.enabled());
+        assertEquals(50, allowed(limiter, CRT, "yoda", A, 50));
+    }
+
+    @Test
+    void usersHaveTheirOwnBuckets() {
+        RateLimiter limiter = new RateLimiter("CRT=0.001/2", 10, 100, 60_000);
+        assertEquals(2, allowed(limiter, CRT, "yoda", A, 5));
+        assertEquals(2, allowed(limiter, CRT, "luke", A, 5));
+    }
+
+    // the address gets addressFactor times the rate, so here a burst of
+    // 2 * (3 - 1) + 1 tokens, shared by everyone behind it
+    @Test
+    void addressCapsEveryoneBehindIt() {
+        RateLimiter limiter = new RateLimiter("CRT=0.001/3", 2, 100, 60_000);
+        assertEquals(3, allowed(limiter, CRT, "yoda", A, 5));
+        assertEquals(2, allowed(limiter, CRT, "luke", A, 5));
+        assertEquals(0, allowed(limiter, CRT, "leia", A, 5));
+        assertEquals(3, allowed(limiter, CRT, "han", B, 5));
+    }
+
+    // requests without an authenticated user (LOGIN, or a frame whose
+    // session didn't check out) are only charged to their address, so
+    // they can't spend anybody's budget
+    @Test
+    void unauthenticatedOnlyChargeTheAddress() {
+        RateLimiter limiter = new RateLimiter("*=0.001/2", 10, 100, 60_000);
+        assertEquals(4, allowed(limiter, LOGIN, null, B, 4));
+        assertEquals(4, allowed(limiter, LOGIN, "", B, 4));
+        assertEquals(2, allowed(limiter, LOGIN, "yoda", B, 5));
+    }
+
+    @Test
+    void pastMaxKeysNewcomersShareOneBucket() {
+        RateLimiter limiter = new RateLimiter("CRT=0.001/2", 1, 1, 60_000);
+        assertEquals(2, allowed(limiter, CRT, "yoda", null, 5));
+        assertEquals(2, allowed(limiter, CRT, "luke", null, 5));
+        assertEquals(0, allowed(limiter, CRT, "leia", null, 5));
+        assertEquals(1, limiter.tracked());
+    }
+
+    @Test
+    void sweepDropsIdleBuckets() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("CRT=1000/1", 1, 100, 1);
+        assertTrue(limiter.allow(CRT, "yoda", A));
+        assertEquals(2, limiter.tracked());
+        Thread.sleep(20);
+        limiter.sweep();
+        assertEquals(0, limiter.tracked());
+    }
+
+    @Test
+    void badSpecs() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter("CRT", 1, 100, 60_000));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter("NOPE=1/1", 1, 100, 60_000));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter("CRT=0/1", 1, 100, 60_000));
+    }
+}
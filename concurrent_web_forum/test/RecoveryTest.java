@@ -0,0 +1,171 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// state written through one MessageHandler comes back in the next one
+// over the same directory, from the log alone, from a snapshot, and from a
+// snapshot plus the log written after it
+class RecoveryTest {
+
+    @TempDir
+    Path dir;
+
+    // two users, two threads (one removed again), posts with a delete and
+    // an edit in between
+    private static void populate(MessageHandler h) throws Exception {
+        assertTrue(h.addUser("yoda", "pw"));
+        assertTrue(h.addUser("luke", "x"));
+        assertTrue(h.createThread("swamp", "yoda"));
+        h.postMessage("swamp", "yoda", "do or do not");
+        h.postMessage("swamp", "luke", "i don't believe it");
+        h.postMessage("swamp", "yoda", "that is why you fail");
+        assertEquals(0, h.deleteMessage("swamp", "luke", 2));
+        assertEquals(0, h.editMessage("swamp", "yoda", 2, "there is no try"));
+        assertTrue(h.createThread("cave", "luke"));
+        assertTrue(h.removeThread("cave", "luke"));
+    }
+
+    private static void assertPopulated(MessageHandler h) throws Exception {
+        assertTrue(h.userExists("yoda"));
+        assertTrue(h.userExists("luke"));
+        assertEquals(MessageHandler.Login.LOGGED_IN, h.authenticate("yoda", "pw").get());
+        assertEquals(MessageHandler.Login.WRONG_PASSWORD, h.authenticate("luke", "pw").get());
+        assertTrue(h.threadExists("swamp"));
+        assertFalse(h.threadExists("cave"));
+        assertEquals("1 yoda: do or do not;2 yoda: there is no try", h.readThread("swamp"));
+    }
+
+    @Test
+    void fromLogOnly() throws Exception {
+        MessageHandler h = new MessageHandler(dir);
+        populate(h);
+        h.shutdown(false);
+
+        h = new MessageHandler(dir);
+        try {
+            assertPopulated(h);
+        } finally {
+            h.shutdown(false);
+        }
+    }
+
+    @Test
+    void fromSnapshot() throws Exception {
+        MessageHandler h = new MessageHandler(dir);
+        populate(h);
+        h.close();
+
+        h = new MessageHandler(dir);
+        try {
+            assertPopulated(h);
+        } finally {
+            h.shutdown(false);
+        }
+    }
+
+    @Test
+    void fromSnapshotPlusTail() throws Exception {
+        MessageHandler h = new MessageHandler(dir);
+        populate(h);
+        h.checkpoint();
+        h.postMessage("swamp", "luke", "i will not fail you");
+        assertEquals(0, h.deleteMessage("swamp", "yoda", 1));
+        h.shutdown(false);
+
+        h = new MessageHandler(dir);
+        try {
+            assertEquals("1 yoda: there is no try;2 luke: i will not fail you", h.readThread("swamp"));
+            assertFalse(h.threadExists("cave"));
+        } finally {
+            h.shutdown(false);
+        }
+    }
+
+    // an author with no registration comes back as a placeholder that
+    // never reaches credentials.txt, however many restarts it goes through
+    @Test
+    void placeholderAuthorsStayOutOfCredentials() throws Exception {
+        MessageHandler h = new MessageHandler(dir);
+        assertTrue(h.addUser("yoda", "pw"));
+        assertTrue(h.createThread("swamp", "yoda"));
+        h.postMessage("swamp", new User("ghost", null), "boo");
+        h.close();
+
+        for (int restart = 0; restart < 2; restart++) {
+            h = new MessageHandler(dir);
+            try {
+                assertEquals("1 ghost: boo", h.readThread("swamp"));
+                assertEquals(MessageHandler.Login.WRONG_PASSWORD, h.authenticate("ghost", "null").get());
+            } finally {
+                h.close();
+            }
+            List<String> lines = Files.readAllLines(dir.resolve("credentials.txt"));
+            assertEquals(1, lines.size(), lines.toString());
+            assertTrue(lines.get(0).startsWith("yoda "));
+        }
+    }
+
+    // a directory an older server ran in: thread files, attachments next
+    // to them, and unrelated files that must be left alone
+    private void legacyFiles() throws Exception {
+        Files.writeString(dir.resolve("credentials.txt"), "yoda pw\nluke x\n");
+        Files.writeString(dir.resolve("swamp"),
+                "yoda\n1 yoda: do or do not\n2 luke: i don't believe it\nluke uploaded map.txt\n");
+        Files.writeString(dir.resolve("cave"), "luke\n");
+        // an attachment that reads like a thread file is still an attachment
+        Files.writeString(dir.resolve("swamp-map.txt"), "yoda\n");
+        Files.writeString(dir.resolve("notes"), "yoda\nnot a post\n");
+        Files.write(dir.resolve("Server.class"), new byte[] { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE });
+    }
+
+    @Test
+    void importsAnOlderServersFilesOnce() throws Exception {
+        legacyFiles();
+        MessageHandler h = new MessageHandler(dir);
+        try {
+            assertEquals("1 yoda: do or do not;2 luke: i don't believe it;luke uploaded map.txt",
+                    h.readThread("swamp"));
+            assertTrue(h.threadIsEmpty("cave"));
+            assertFalse(h.threadExists("swamp-map.txt"));
+            assertFalse(h.threadExists("notes"));
+            assertFalse(h.threadExists("Server.class"));
+            assertTrue(h.attachmentExists("swamp", "map.txt"));
+            assertEquals(dir.resolve("swamp-map.txt"), h.attachmentPath("swamp", "map.txt"));
+            h.postMessage("swamp", "yoda", "there is no try");
+            assertEquals(1, h.deleteMessage("swamp", "yoda", 2));
+            assertTrue(h.removeThread("cave", "luke"));
+        } finally {
+            h.shutdown(false);
+        }
+
+        // the second start recovers from the log, nothing is imported twice
+        h = new MessageHandler(dir);
+        try {
+            assertEquals("1 yoda: do or do not;2 luke: i don't believe it;luke uploaded map.txt;"
+                    + "3 yoda: there is no try", h.readThread("swamp"));
+            assertFalse(h.threadExists("cave"));
+            assertEquals(dir.resolve("swamp-map.txt"), h.attachmentPath("swamp", "map.txt"));
+        } finally {
+            h.close();
+        }
+        assertEquals(List.of("yoda", "1 yoda: do or do not", "2 luke: i don't believe it", "luke uploaded map.txt",
+                "3 yoda: there is no try"), Files.readAllLines(dir.resolve("swamp")));
+        assertEquals("yoda\n", Files.readString(dir.resolve("swamp-map.txt")));
+        assertEquals("yoda\nnot a post\n", Files.readString(dir.resolve("notes")));
+
+        h = new MessageHandler(dir);
+        try {
+            assertTrue(h.threadExists("swamp"));
+            assertEquals(dir.resolve("swamp-map.txt"), h.attachmentPath("swamp", "map.txt"));
+        } finally {
+            h.shutdown(false);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class SessionTableTest {
+
+    private static final SocketAddress HERE = new InetSocketAddress("127.0.0.1", 5000),
+            THERE = new InetSocketAddress("127.0.0.1", 5001);
+
+    private final User yoda = new User("yoda", "pw"), luke = new User("luke", "x");
+    // whose sessions onExpire was told about
+    private final List<SessionTable.Session> expired = new CopyOnWriteArrayList<>();
+
+    private SessionTable table(long idleMs) {
+        return new SessionTable(idleMs, expired::add);
+    }
+
+    // idle expiry is checked lazily on use, so sleeping past idleMs is
+    // enough; the background sweep runs far less often than this
+    private static void idle() throws InterruptedException {
+        Thread.sleep(30);
+    }
+
+    @Test
+    void tokenOnlyWorksFromWhereItLoggedIn() {
+        SessionTable t = table(60_000);
+        SessionTable.Session s = t.open(yoda, HERE);
+        assertNotEquals(0, s.token());
+        assertSame(s, t.find(s.token(), HERE));
+        assertSame(yoda, t.find(s.token(), HERE).user());
+        assertNull(t.find(s.token(), THERE));
+        assertNull(t.find(s.token() + 1, HERE));
+    }
+
+    @Test
+    void boundOnlyToItsAddress() {
+        SessionTable t = table(60_000);
+        SessionTable.Session s = t.bind(yoda, HERE);
+        assertEquals(0, s.token());
+        assertSame(s, t.bound(HERE));
+        assertNull(t.bound(THERE));
+        // a bound session has no token to find it by
+        assertNull(t.find(0, HERE));
+    }
+
+    @Test
+    void rebindingAnAddressEndsWhoeverHadIt() {
+        SessionTable t = table(60_000);
+        SessionTable.Session first = t.bind(yoda, HERE);
+        SessionTable.Session second = t.bind(luke, HERE);
+        assertSame(second, t.bound(HERE));
+        assertEquals(List.of(first), expired);
+        assertEquals(1, t.size());
+    }
+
+    @Test
+    void loggingInAgainFromTheSameAddressKeepsTheUserOnline() {
+        SessionTable t = table(60_000);
+        t.bind(yoda, HERE);
+        SessionTable.Session again = t.bind(yoda, HERE);
+        assertSame(again, t.bound(HERE));
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test
+    void closeEndsWithoutExpiring() {
+        SessionTable t = table(60_000);
+        SessionTable.Session s = t.open(yoda, HERE);
+        SessionTable.Session b = t.bind(luke, THERE);
+        assertEquals(2, t.size());
+        assertTrue(t.close(s));
+        assertTrue(t.close(b));
+        assertFalse(t.close(s));
+        assertNull(t.find(s.token(), HERE));
+        assertNull(t.bound(THERE));
+        assertEquals(0, t.size());
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test
+    void idleSessionsExpireOnce() throws InterruptedException {
+        SessionTable t = table(10);
+        SessionTable.Session s = t.open(yoda, HERE);
+        SessionTable.Session b = t.bind(luke, THERE);
+        idle();
+        assertNull(t.find(s.token(), HERE));
+        assertNull(t.bound(THERE));
+        assertNull(t.find(s.token(), HERE));
+        assertEquals(List.of(s, b), expired);
+        assertEquals(0, t.size());
+    }
+
+    // an older login idling out must not log out the one that replaced it
+    @Test
+    void onlyTheLatestSessionLogsOut() throws InterruptedException {
+        SessionTable t = table(10);
+        SessionTable.Session older = t.open(yoda, HERE);
+        SessionTable.Session newer = t.open(yoda, THERE);
+        idle();
+        assertNull(t.find(older.token(), HERE));
+        assertTrue(expired.isEmpty());
+        assertNull(t.find(newer.token(), THERE));
+        assertEquals(List.of(newer), expired);
+    }
+}